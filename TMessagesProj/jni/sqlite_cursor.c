@@ -77,3 +77,13 @@ int Java_org_telegram_SQLite_SQLiteCursor_columnByteBufferValue(JNIEnv *env, job
 	}
 	return 0;
 }
+
+jobject Java_org_telegram_SQLite_SQLiteCursor_columnByteBufferView(JNIEnv *env, jobject object, int statementHandle, int columnIndex) {
+	sqlite3_stmt *handle = (sqlite3_stmt *)statementHandle;
+	const void *buf = sqlite3_column_blob(handle, columnIndex);
+	int length = sqlite3_column_bytes(handle, columnIndex);
+	if (buf != 0 && length > 0) {
+		return (*env)->NewDirectByteBuffer(env, (void *)buf, length);
+	}
+	return 0;
+}
@@ -40,3 +40,17 @@ int Java_org_telegram_SQLite_SQLiteDatabase_opendb(JNIEnv *env, jobject object,
     }
     return (int)handle;
 }
+
+int Java_org_telegram_SQLite_SQLiteDatabase_opendbReadOnly(JNIEnv *env, jobject object, jstring fileName) {
+    char const *fileNameStr = (*env)->GetStringUTFChars(env, fileName, 0);
+
+    sqlite3 *handle = 0;
+    int err = sqlite3_open_v2(fileNameStr, &handle, SQLITE_OPEN_READONLY, 0);
+    if (SQLITE_OK != err) {
+        throw_sqlite3_exception(env, handle, err);
+    }
+    if (fileNameStr != 0) {
+        (*env)->ReleaseStringUTFChars(env, fileName, fileNameStr);
+    }
+    return (int)handle;
+}
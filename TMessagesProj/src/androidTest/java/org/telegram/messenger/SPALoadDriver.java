@@ -0,0 +1,310 @@
+package org.telegram.messenger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.paillier.PaillierCiphertextCodec;
+import org.paillier.PaillierPrivateKey;
+import org.paillier.PaillierPublicKey;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates one requester and N respondents against the SPA endpoints below
+ * a base URL (usually an SPALocalServer) and reports end-to-end rounds and
+ * HTTP requests per second, p50/p99 request latency and the crypto time
+ * spent per respondent.
+ */
+public class SPALoadDriver {
+
+    private static final String[] SETTINGS = {"last_seen_setting", "passcode_lock_setting", "average"};
+    private static final String[] POLICIES = {"MajorityPreferred", "MinorityPreferred", "Average"};
+    private static final int MAX_THREADS = 16;
+
+    public static class Report {
+        public int rounds;
+        public int respondents;
+        public int requests;
+        public long elapsedMs;
+        public double roundsPerSecond;
+        public double requestsPerSecond;
+        public double p50LatencyMs;
+        public double p99LatencyMs;
+        public double computeMsPerRespondent;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "rounds = %d respondents = %d requests = %d in %d ms, %.2f rounds/s, %.1f requests/s, p50 = %.1f ms, p99 = %.1f ms, crypto per respondent = %.2f ms",
+                    rounds, respondents, requests, elapsedMs, roundsPerSecond, requestsPerSecond, p50LatencyMs, p99LatencyMs, computeMsPerRespondent);
+        }
+    }
+
+    private final int respondentsCount;
+    private final String addKeysUrl;
+    private final String pollingUrl;
+    private final String sendRequestUrl;
+    private final String sendResponseUrl;
+    private final ArrayList<Long> latencies = new ArrayList<>();
+    private long computeNanos;
+
+    public SPALoadDriver(String baseUrl, int respondents) {
+        respondentsCount = respondents;
+        addKeysUrl = baseUrl + "addKeys/";
+        pollingUrl = baseUrl + "pollingKeyManager/";
+        sendRequestUrl = baseUrl + "getSPARequest/";
+        sendResponseUrl = baseUrl + "getSPAResponse/";
+    }
+
+    /**
+     * Starts a local server with keys of keyBits bits and runs the given
+     * number of rounds against it.
+     */
+    public static Report runLocal(int keyBits, int respondents, int rounds) throws Exception {
+        SPALocalServer server = new SPALocalServer(keyBits);
+        server.start(0);
+        try {
+            Report report = new SPALoadDriver(server.getBaseUrl(), respondents).run(rounds);
+            FileLog.d("tmessages", "spa load " + report);
+            return report;
+        } finally {
+            server.stop();
+        }
+    }
+
+    public Report run(int rounds) throws Exception {
+        String[] keys = post(addKeysUrl, new HashMap<String, String>()).split(" ");
+        BigInteger n = new BigInteger(keys[3]);
+        BigInteger g = new BigInteger(keys[2]);
+        PaillierPublicKey publicKey = new PaillierPublicKey(n, g);
+        PaillierPrivateKey privateKey = keys.length >= 7
+                ? new PaillierPrivateKey(new BigInteger(keys[0]), new BigInteger(keys[1]), n, new BigInteger(keys[5]), new BigInteger(keys[6]))
+                : new PaillierPrivateKey(new BigInteger(keys[0]), new BigInteger(keys[1]), n);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(respondentsCount, MAX_THREADS)));
+        long startTime = System.nanoTime();
+        try {
+            for (int round = 0; round < rounds; round++) {
+                runRound(round, keys, publicKey, privateKey, executor);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        long elapsed = System.nanoTime() - startTime;
+
+        Report report = new Report();
+        report.rounds = rounds;
+        report.respondents = respondentsCount;
+        report.elapsedMs = TimeUnit.NANOSECONDS.toMillis(elapsed);
+        synchronized (latencies) {
+            long[] sorted = new long[latencies.size()];
+            for (int a = 0; a < sorted.length; a++) {
+                sorted[a] = latencies.get(a);
+            }
+            Arrays.sort(sorted);
+            report.requests = sorted.length;
+            report.p50LatencyMs = percentile(sorted, 0.50) / 1e6;
+            report.p99LatencyMs = percentile(sorted, 0.99) / 1e6;
+            report.computeMsPerRespondent = rounds > 0 ? computeNanos / 1e6 / (rounds * respondentsCount) : 0;
+        }
+        double seconds = Math.max(elapsed, 1) / 1e9;
+        report.roundsPerSecond = rounds / seconds;
+        report.requestsPerSecond = report.requests / seconds;
+        return report;
+    }
+
+    private void runRound(int round, String[] keys, final PaillierPublicKey publicKey, PaillierPrivateKey privateKey, ExecutorService executor) throws Exception {
+        final String requester = "requester" + round;
+        JSONArray respondents = new JSONArray();
+        JSONArray weights = new JSONArray();
+        for (int a = 0; a < respondentsCount; a++) {
+            respondents.put(respondentId(round, a));
+            weights.put("" + (a % 10 + 1));
+        }
+        JSONObject content = new JSONObject();
+        content.put("settings", new JSONArray(Arrays.asList(SETTINGS)));
+        content.put("policies", new JSONArray(Arrays.asList(POLICIES)));
+        content.put("requester", requester);
+        content.put("paillier_n", keys[3]);
+        content.put("paillier_g", keys[2]);
+        content.put("ope_key", keys[4]);
+        content.put("respondents", respondents);
+        content.put("weights", weights);
+        HashMap<String, String> params = new HashMap<>();
+        params.put("content", content.toString());
+        if (!"ok".equals(post(sendRequestUrl, params))) {
+            throw new IllegalStateException("request rejected");
+        }
+
+        final CountDownLatch latch = new CountDownLatch(respondentsCount);
+        final Exception[] error = new Exception[1];
+        for (int a = 0; a < respondentsCount; a++) {
+            final String respondent = respondentId(round, a);
+            final int choice = a % 3;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        respond(respondent, choice, publicKey);
+                    } catch (Exception e) {
+                        synchronized (error) {
+                            error[0] = e;
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        latch.await();
+        synchronized (error) {
+            if (error[0] != null) {
+                throw error[0];
+            }
+        }
+
+        String merged = waitEvent(requester);
+        if (!merged.startsWith("merged:")) {
+            throw new IllegalStateException("unexpected event " + merged);
+        }
+        long start = System.nanoTime();
+        SPAWireFormat.Reader reader = new SPAWireFormat.Reader(merged.substring(7), 0);
+        reader.nextGroup();
+        reader.nextGroup();
+        ArrayList<BigInteger> ciphertexts = new ArrayList<>();
+        while (reader.nextGroup()) {
+            while (reader.hasNextToken()) {
+                String token = reader.nextToken();
+                if (token.length() > 20 || token.charAt(0) == SPAWireFormat.BINARY_PREFIX) {
+                    ciphertexts.add(SPAWireFormat.decodeCiphertext(token, 0, token.length()));
+                }
+            }
+        }
+        privateKey.decryptAll(ciphertexts);
+        addCompute(System.nanoTime() - start);
+    }
+
+    private void respond(String respondent, int choice, PaillierPublicKey publicKey) throws Exception {
+        String event = waitEvent(respondent);
+        String[] request = event.split(" ");
+        int weight = Integer.parseInt(request[1]);
+
+        long start = System.nanoTime();
+        PaillierPublicKey requesterKey = SPAKeyStore.getInstance().getPublicKey(request[2], request[3]);
+        PaillierCiphertextCodec codec = new PaillierCiphertextCodec(requesterKey);
+        int[][] groups = {
+                choice == 0 ? new int[]{weight, 0, 0} : choice == 1 ? new int[]{0, weight, 0} : new int[]{0, 0, weight},
+                choice == 0 ? new int[]{weight, 0} : new int[]{0, weight},
+                new int[]{(choice + 1) * weight}
+        };
+        StringBuilder values = new StringBuilder();
+        for (int a = 0; a < groups.length; a++) {
+            if (a != 0) {
+                values.append(',');
+            }
+            for (int b = 0; b < groups[a].length; b++) {
+                if (b != 0) {
+                    values.append(' ');
+                }
+                values.append(SPAWireFormat.encodeCiphertext(codec, requesterKey.encrypt(BigInteger.valueOf(groups[a][b]))));
+            }
+        }
+        values.append(' ').append(weight);
+        addCompute(System.nanoTime() - start);
+
+        HashMap<String, String> params = new HashMap<>();
+        params.put("values", values.toString());
+        params.put("requester", request[0]);
+        params.put("respondent", respondent);
+        params.put("spa_policies", request[6]);
+        params.put("paillier_n", request[2]);
+        params.put("paillier_g", request[3]);
+        params.put("settings", request[5]);
+        post(sendResponseUrl, params);
+    }
+
+    private String waitEvent(String id) throws Exception {
+        HashMap<String, String> params = new HashMap<>();
+        params.put("id", id);
+        params.put("wait", "25");
+        while (true) {
+            String response = post(pollingUrl, params);
+            if (!"ok".equals(response)) {
+                return response;
+            }
+        }
+    }
+
+    private String post(String url, Map<String, String> params) throws Exception {
+        StringBuilder body = new StringBuilder();
+        for (Map.Entry<String, String> entry : params.entrySet()) {
+            if (body.length() != 0) {
+                body.append('&');
+            }
+            body.append(URLEncoder.encode(entry.getKey(), "UTF-8")).append('=').append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+        }
+        byte[] bytes = body.toString().getBytes("UTF-8");
+        long start = System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(10000);
+            connection.setReadTimeout(60000);
+            connection.setFixedLengthStreamingMode(bytes.length);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+            OutputStream out = connection.getOutputStream();
+            out.write(bytes);
+            out.close();
+            InputStream in = connection.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                response.write(buffer, 0, count);
+            }
+            in.close();
+            String result = response.toString("UTF-8");
+            // long polls mostly measure the wait, not the server
+            if (!url.equals(pollingUrl)) {
+                synchronized (latencies) {
+                    latencies.add(System.nanoTime() - start);
+                }
+            }
+            return result;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void addCompute(long nanos) {
+        synchronized (latencies) {
+            computeNanos += nanos;
+        }
+    }
+
+    private static String respondentId(int round, int index) {
+        return "respondent" + round + "_" + index;
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
@@ -0,0 +1,26 @@
+package org.telegram.messenger;
+
+import android.test.InstrumentationTestCase;
+
+/**
+ * Runs the SPA load driver against a local server on the device and checks
+ * the report; the report itself is logged by SPALoadDriver.runLocal.
+ */
+public class SPALoadDriverTest extends InstrumentationTestCase {
+
+    private static final int KEY_BITS = 512;
+    private static final int RESPONDENTS = 8;
+    private static final int ROUNDS = 3;
+
+    public void testLocalRounds() throws Exception {
+        SPALoadDriver.Report report = SPALoadDriver.runLocal(KEY_BITS, RESPONDENTS, ROUNDS);
+        assertEquals(ROUNDS, report.rounds);
+        assertEquals(RESPONDENTS, report.respondents);
+        // addKeys, then one request and a response per respondent in every round
+        assertEquals(1 + ROUNDS * (1 + RESPONDENTS), report.requests);
+        assertTrue(report.roundsPerSecond > 0);
+        assertTrue(report.p50LatencyMs > 0);
+        assertTrue(report.p99LatencyMs >= report.p50LatencyMs);
+        assertTrue(report.computeMsPerRespondent > 0);
+    }
+}
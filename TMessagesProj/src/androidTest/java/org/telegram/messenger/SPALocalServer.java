@@ -0,0 +1,420 @@
+package org.telegram.messenger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.paillier.PaillierAggregator;
+import org.paillier.PaillierCiphertextCodec;
+import org.paillier.PaillierPublicKey;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Embeddable stand-in for the SPA key manager and merge server, for offline
+ * testing and benchmarks. It speaks the same form-encoded HTTP protocol and
+ * response formats ("merged:", "result:", "assess:") as the servers in
+ * SPAConfig, with the same paths below getBaseUrl().
+ */
+public class SPALocalServer {
+
+    private static final int MAX_HOLD_SECONDS = 30;
+
+    private final int keyBits;
+    private final SecureRandom random = new SecureRandom();
+    private final ExecutorService connectionExecutor = Executors.newCachedThreadPool();
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    private volatile boolean running;
+
+    private final Object sync = new Object();
+    private final HashMap<String, ArrayDeque<String>> events = new HashMap<>();
+    private final HashMap<String, PendingRequest> pendingRequests = new HashMap<>();
+    private final HashMap<String, int[]> assessments = new HashMap<>();
+
+    private static class PendingRequest {
+        String requester;
+        ArrayList<String> settings;
+        ArrayList<String> policies;
+        PaillierPublicKey publicKey;
+        ArrayList<String> respondents;
+        HashMap<String, String> responses = new HashMap<>();
+    }
+
+    public SPALocalServer(int keyBits) {
+        this.keyBits = keyBits;
+    }
+
+    public int start(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        running = true;
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        connectionExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        if (running) {
+                            FileLog.e("tmessages", e);
+                        }
+                    }
+                }
+            }
+        }, "spaLocalServer");
+        acceptThread.start();
+        return serverSocket.getLocalPort();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+        connectionExecutor.shutdownNow();
+        synchronized (sync) {
+            sync.notifyAll();
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + getPort() + "/";
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (running) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.length() == 0) {
+                    break;
+                }
+                String[] parts = requestLine.split(" ");
+                if (parts.length < 2) {
+                    break;
+                }
+                int contentLength = 0;
+                boolean keepAlive = !requestLine.endsWith("HTTP/1.0");
+                String line;
+                while ((line = readLine(in)) != null && line.length() != 0) {
+                    int colon = line.indexOf(':');
+                    if (colon < 0) {
+                        continue;
+                    }
+                    String name = line.substring(0, colon).trim();
+                    String value = line.substring(colon + 1).trim();
+                    if (name.equalsIgnoreCase("Content-Length")) {
+                        contentLength = Integer.parseInt(value);
+                    } else if (name.equalsIgnoreCase("Connection")) {
+                        keepAlive = !value.equalsIgnoreCase("close");
+                    }
+                }
+                byte[] body = new byte[contentLength];
+                int read = 0;
+                while (read < contentLength) {
+                    int count = in.read(body, read, contentLength - read);
+                    if (count < 0) {
+                        throw new IOException("unexpected end of body");
+                    }
+                    read += count;
+                }
+                String response;
+                try {
+                    response = handle(parts[1], parseForm(new String(body, "UTF-8")));
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                    response = "error";
+                }
+                byte[] bytes = response.getBytes("UTF-8");
+                String header = "HTTP/1.1 200 OK\r\nContent-Type: text/plain; charset=utf-8\r\nContent-Length: " + bytes.length
+                        + "\r\nConnection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+                out.write(header.getBytes("UTF-8"));
+                out.write(bytes);
+                out.flush();
+                if (!keepAlive) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // connection closed by the client
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private String handle(String path, HashMap<String, String> params) throws Exception {
+        if (path.startsWith("/addKeys")) {
+            return addKeys();
+        } else if (path.startsWith("/pollingKeyManager")) {
+            String wait = params.get("wait");
+            return poll(params.get("id"), wait != null ? Math.min(MAX_HOLD_SECONDS, Integer.parseInt(wait)) : 0);
+        } else if (path.startsWith("/getSPARequest")) {
+            return addRequest(new JSONObject(params.get("content")));
+        } else if (path.startsWith("/getSPAResponse")) {
+            return addResponse(params.get("requester"), params.get("respondent"), params.get("values"));
+        } else if (path.startsWith("/getResultQuality")) {
+            String[] ids = params.get("ids").trim().split(" ");
+            for (String id : ids) {
+                if (id.length() != 0) {
+                    pushEvent(id, "result:" + params.get("requester") + ": " + params.get("content"));
+                }
+            }
+            return "ok";
+        } else if (path.startsWith("/sendAssessment")) {
+            String requester = params.get("requester");
+            int assess = Integer.parseInt(params.get("assess"));
+            int[] counts;
+            synchronized (sync) {
+                counts = assessments.get(requester);
+                if (counts == null) {
+                    counts = new int[3];
+                    assessments.put(requester, counts);
+                }
+                if (assess >= 0 && assess < 3) {
+                    counts[assess]++;
+                }
+                counts = counts.clone();
+            }
+            pushEvent(requester, "assess:" + counts[0] + "," + counts[1] + "," + counts[2]);
+            return "ok";
+        }
+        return "error";
+    }
+
+    private String addKeys() {
+        BigInteger p = BigInteger.probablePrime(keyBits / 2, random);
+        BigInteger q;
+        do {
+            q = BigInteger.probablePrime(keyBits / 2, random);
+        } while (q.equals(p));
+        BigInteger n = p.multiply(q);
+        BigInteger g = n.add(BigInteger.ONE);
+        BigInteger p1 = p.subtract(BigInteger.ONE);
+        BigInteger q1 = q.subtract(BigInteger.ONE);
+        BigInteger lambda = p1.multiply(q1).divide(p1.gcd(q1));
+        BigInteger mu = g.modPow(lambda, n.multiply(n)).subtract(BigInteger.ONE).divide(n).modInverse(n);
+        String opeKey = "" + (random.nextInt(Integer.MAX_VALUE - 1) + 1);
+        return lambda + " " + mu + " " + g + " " + n + " " + opeKey + " " + p + " " + q;
+    }
+
+    private String poll(String id, int waitSeconds) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + waitSeconds * 1000L;
+        synchronized (sync) {
+            while (true) {
+                ArrayDeque<String> queue = events.get(id);
+                if (queue != null && !queue.isEmpty()) {
+                    return queue.poll();
+                }
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0 || !running) {
+                    return "ok";
+                }
+                sync.wait(left);
+            }
+        }
+    }
+
+    private void pushEvent(String id, String event) {
+        synchronized (sync) {
+            ArrayDeque<String> queue = events.get(id);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                events.put(id, queue);
+            }
+            queue.add(event);
+            sync.notifyAll();
+        }
+    }
+
+    private String addRequest(JSONObject content) throws Exception {
+        PendingRequest request = new PendingRequest();
+        request.requester = content.getString("requester");
+        request.settings = toList(content.getJSONArray("settings"));
+        request.policies = toList(content.getJSONArray("policies"));
+        request.respondents = toList(content.getJSONArray("respondents"));
+        ArrayList<String> weights = toList(content.getJSONArray("weights"));
+        String n = content.getString("paillier_n");
+        String g = content.getString("paillier_g");
+        request.publicKey = new PaillierPublicKey(new BigInteger(n), new BigInteger(g));
+        synchronized (sync) {
+            if (pendingRequests.containsKey(request.requester)) {
+                return "exists";
+            }
+            pendingRequests.put(request.requester, request);
+        }
+        StringBuilder settings = new StringBuilder();
+        StringBuilder policies = new StringBuilder();
+        for (int a = 0; a < request.settings.size(); a++) {
+            if (a != 0) {
+                settings.append(',');
+                policies.append(',');
+            }
+            settings.append(request.settings.get(a));
+            policies.append(request.policies.get(a));
+        }
+        for (int a = 0; a < request.respondents.size(); a++) {
+            String weight = a < weights.size() ? weights.get(a) : "1";
+            pushEvent(request.respondents.get(a), request.requester + " " + weight + " " + n + " " + g + " "
+                    + content.getString("ope_key") + " " + settings + " " + policies);
+        }
+        return "ok";
+    }
+
+    private String addResponse(String requester, String respondent, String values) {
+        PendingRequest request;
+        synchronized (sync) {
+            request = pendingRequests.get(requester);
+            if (request == null || !request.respondents.contains(respondent)) {
+                return "error";
+            }
+            request.responses.put(respondent, values);
+            if (request.responses.size() < request.respondents.size()) {
+                return "ok";
+            }
+            pendingRequests.remove(requester);
+        }
+        pushEvent(requester, merge(request));
+        return "ok";
+    }
+
+    /**
+     * Folds all responses of a request. Preferred policies get E(ai - aj) for
+     * every pair of options, averages get E(sum of values) and the sum of the
+     * weights.
+     */
+    private String merge(PendingRequest request) {
+        PaillierAggregator aggregator = new PaillierAggregator(request.publicKey);
+        PaillierCiphertextCodec codec = new PaillierCiphertextCodec(request.publicKey);
+        int settingsCount = request.settings.size();
+        ArrayList<ArrayList<ArrayList<BigInteger>>> columns = new ArrayList<>(settingsCount);
+        long[] weightSums = new long[settingsCount];
+        for (int a = 0; a < settingsCount; a++) {
+            columns.add(new ArrayList<ArrayList<BigInteger>>());
+        }
+        for (String values : request.responses.values()) {
+            SPAWireFormat.Reader reader = new SPAWireFormat.Reader(values, 0);
+            for (int a = 0; a < settingsCount && reader.nextGroup(); a++) {
+                String policy = request.policies.get(a);
+                boolean preferred = policy.equals("MajorityPreferred") || policy.equals("MinorityPreferred");
+                int position = 0;
+                while (reader.hasNextToken()) {
+                    if (!preferred && position == 1) {
+                        weightSums[a] += Long.parseLong(reader.nextToken());
+                        position++;
+                        continue;
+                    }
+                    if (columns.get(a).size() <= position) {
+                        columns.get(a).add(new ArrayList<BigInteger>());
+                    }
+                    columns.get(a).get(position).add(reader.nextCiphertext());
+                    position++;
+                }
+            }
+        }
+
+        StringBuilder result = new StringBuilder("merged:");
+        for (int a = 0; a < settingsCount; a++) {
+            result.append(a == 0 ? "" : " ").append(request.policies.get(a));
+        }
+        result.append(',');
+        for (int a = 0; a < settingsCount; a++) {
+            result.append(a == 0 ? "" : " ").append(request.settings.get(a));
+        }
+        for (int a = 0; a < settingsCount; a++) {
+            result.append(',');
+            String policy = request.policies.get(a);
+            BigInteger[] sums = new BigInteger[columns.get(a).size()];
+            for (int b = 0; b < sums.length; b++) {
+                sums[b] = aggregator.sum(columns.get(a).get(b));
+            }
+            if (policy.equals("MajorityPreferred") || policy.equals("MinorityPreferred")) {
+                BigInteger sign = BigInteger.valueOf(policy.equals("MajorityPreferred") ? 1 : -1);
+                boolean first = true;
+                for (int i = 0; i < sums.length; i++) {
+                    for (int j = i + 1; j < sums.length; j++) {
+                        BigInteger difference = aggregator.weightedSum(Arrays.asList(sums[i], sums[j]), Arrays.asList(sign, sign.negate()));
+                        result.append(first ? "" : " ").append(SPAWireFormat.encodeCiphertext(codec, difference));
+                        first = false;
+                    }
+                }
+            } else if (sums.length > 0) {
+                result.append(SPAWireFormat.encodeCiphertext(codec, sums[0])).append(' ').append(Math.max(1, weightSums[a]));
+            }
+        }
+        return result.toString();
+    }
+
+    private static ArrayList<String> toList(JSONArray array) throws Exception {
+        ArrayList<String> result = new ArrayList<>(array.length());
+        for (int a = 0; a < array.length(); a++) {
+            result.add(array.getString(a));
+        }
+        return result;
+    }
+
+    private static HashMap<String, String> parseForm(String body) throws Exception {
+        HashMap<String, String> params = new HashMap<>();
+        int start = 0;
+        while (start < body.length()) {
+            int end = body.indexOf('&', start);
+            if (end < 0) {
+                end = body.length();
+            }
+            int equals = body.indexOf('=', start);
+            if (equals > start && equals < end) {
+                params.put(URLDecoder.decode(body.substring(start, equals), "UTF-8"), URLDecoder.decode(body.substring(equals + 1, end), "UTF-8"));
+            }
+            start = end + 1;
+        }
+        return params;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        if (c == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("UTF-8");
+    }
+}
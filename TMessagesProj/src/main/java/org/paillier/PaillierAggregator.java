@@ -0,0 +1,151 @@
+package org.paillier;
+
+import java.math.BigInteger;
+import java.util.Iterator;
+
+/**
+ * Homomorphic aggregation over ciphertexts of one public key.
+ *
+ * Products are accumulated without reduction for up to batchSize factors
+ * (combined pairwise, so operands stay balanced) and reduced mod n^2 once
+ * per batch. Weighted sums share the squarings of all ciphertexts in a
+ * batch (Straus' simultaneous exponentiation), so folding k responses
+ * with small weights costs about k multiplies plus one ladder of squarings.
+ */
+public class PaillierAggregator {
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    private final BigInteger nSquared;
+    private final int batchSize;
+
+    public PaillierAggregator(PaillierPublicKey publicKey) {
+        this(publicKey, DEFAULT_BATCH_SIZE);
+    }
+
+    public PaillierAggregator(PaillierPublicKey publicKey, int batchSize) {
+        nSquared = publicKey.getNSquared();
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * E(m1 + m2)
+     */
+    public BigInteger add(BigInteger c1, BigInteger c2) {
+        return c1.multiply(c2).mod(nSquared);
+    }
+
+    /**
+     * E(k * m)
+     */
+    public BigInteger multiply(BigInteger c, BigInteger k) {
+        return c.modPow(k, nSquared);
+    }
+
+    /**
+     * E(m1 + m2 + ... ) over every ciphertext of the stream.
+     */
+    public BigInteger sum(Iterable<BigInteger> ciphertexts) {
+        BigInteger result = BigInteger.ONE;
+        BigInteger[] batch = new BigInteger[batchSize];
+        int count = 0;
+        for (BigInteger c : ciphertexts) {
+            batch[count++] = c;
+            if (count == batchSize) {
+                result = result.multiply(product(batch, count)).mod(nSquared);
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            result = result.multiply(product(batch, count)).mod(nSquared);
+        }
+        return result;
+    }
+
+    /**
+     * E(w1 * m1 + w2 * m2 + ... ). Both streams are consumed in step and must
+     * have the same length. Negative weights are applied through the inverse
+     * of the ciphertext.
+     */
+    public BigInteger weightedSum(Iterable<BigInteger> ciphertexts, Iterable<BigInteger> weights) {
+        Iterator<BigInteger> cIterator = ciphertexts.iterator();
+        Iterator<BigInteger> wIterator = weights.iterator();
+        BigInteger result = BigInteger.ONE;
+        BigInteger[] batch = new BigInteger[batchSize];
+        BigInteger[] batchWeights = new BigInteger[batchSize];
+        int count = 0;
+        while (cIterator.hasNext()) {
+            if (!wIterator.hasNext()) {
+                throw new IllegalArgumentException("fewer weights than ciphertexts");
+            }
+            BigInteger c = cIterator.next();
+            BigInteger w = wIterator.next();
+            if (w.signum() == 0) {
+                continue;
+            }
+            if (w.signum() < 0) {
+                c = c.modInverse(nSquared);
+                w = w.negate();
+            }
+            batch[count] = c;
+            batchWeights[count] = w;
+            count++;
+            if (count == batchSize) {
+                result = result.multiply(weightedProduct(batch, batchWeights, count)).mod(nSquared);
+                count = 0;
+            }
+        }
+        if (wIterator.hasNext()) {
+            throw new IllegalArgumentException("more weights than ciphertexts");
+        }
+        if (count > 0) {
+            result = result.multiply(weightedProduct(batch, batchWeights, count)).mod(nSquared);
+        }
+        return result;
+    }
+
+    private BigInteger weightedProduct(BigInteger[] batch, BigInteger[] batchWeights, int count) {
+        int maxBits = 0;
+        for (int a = 0; a < count; a++) {
+            maxBits = Math.max(maxBits, batchWeights[a].bitLength());
+        }
+        BigInteger[] selected = new BigInteger[count];
+        BigInteger result = BigInteger.ONE;
+        boolean started = false;
+        for (int bit = maxBits - 1; bit >= 0; bit--) {
+            if (started) {
+                result = result.multiply(result).mod(nSquared);
+            }
+            int selectedCount = 0;
+            for (int a = 0; a < count; a++) {
+                if (batchWeights[a].testBit(bit)) {
+                    selected[selectedCount++] = batch[a];
+                }
+            }
+            if (selectedCount > 0) {
+                result = result.multiply(product(selected, selectedCount)).mod(nSquared);
+                started = true;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Unreduced product of the first count values, combined pairwise in place
+     * and reduced once at the end.
+     */
+    private BigInteger product(BigInteger[] values, int count) {
+        BigInteger[] work = new BigInteger[count];
+        System.arraycopy(values, 0, work, 0, count);
+        while (count > 1) {
+            int half = 0;
+            for (int a = 0; a + 1 < count; a += 2) {
+                work[half++] = work[a].multiply(work[a + 1]);
+            }
+            if ((count & 1) != 0) {
+                work[half++] = work[count - 1];
+            }
+            count = half;
+        }
+        return work[0].mod(nSquared);
+    }
+}
@@ -0,0 +1,65 @@
+package org.paillier;
+
+import java.math.BigInteger;
+
+/**
+ * Fixed-width big-endian encoding of ciphertexts. Every ciphertext of a key
+ * is written as exactly width bytes, width being the byte length of n^2.
+ */
+public class PaillierCiphertextCodec {
+    private final int width;
+
+    public PaillierCiphertextCodec(PaillierPublicKey publicKey) {
+        this(widthFor(publicKey.getNSquared()));
+    }
+
+    public PaillierCiphertextCodec(int width) {
+        if (width <= 0) {
+            throw new IllegalArgumentException("invalid width " + width);
+        }
+        this.width = width;
+    }
+
+    public static int widthFor(BigInteger nSquared) {
+        return (nSquared.bitLength() + 7) / 8;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public byte[] encode(BigInteger c) {
+        byte[] result = new byte[width];
+        encode(c, result, 0);
+        return result;
+    }
+
+    public void encode(BigInteger c, byte[] out, int offset) {
+        if (c.signum() < 0) {
+            throw new IllegalArgumentException("negative ciphertext");
+        }
+        byte[] bytes = c.toByteArray();
+        // toByteArray may add a leading zero sign byte
+        int start = bytes.length > width ? bytes.length - width : 0;
+        for (int a = 0; a < start; a++) {
+            if (bytes[a] != 0) {
+                throw new IllegalArgumentException("ciphertext wider than " + width + " bytes");
+            }
+        }
+        int length = bytes.length - start;
+        int pad = width - length;
+        for (int a = 0; a < pad; a++) {
+            out[offset + a] = 0;
+        }
+        System.arraycopy(bytes, start, out, offset + pad, length);
+    }
+
+    public BigInteger decode(byte[] in, int offset) {
+        if (offset < 0 || offset + width > in.length) {
+            throw new IllegalArgumentException("truncated ciphertext");
+        }
+        byte[] bytes = new byte[width];
+        System.arraycopy(in, offset, bytes, 0, width);
+        return new BigInteger(1, bytes);
+    }
+}
@@ -1,15 +1,36 @@
 package org.paillier;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Created by gzq on 16-1-13.
  */
 public class PaillierPrivateKey {
+    private static final int MIN_BATCH_PER_THREAD = 2;
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static volatile ExecutorService decryptExecutor;
+
     private BigInteger lambda;
     private BigInteger mu;
     private BigInteger n;
     private BigInteger nSquare;
+
+    // CRT parameters, only set when the factors of n are known
+    private boolean crt;
+    private BigInteger pSquare;
+    private BigInteger qSquare;
+    private BigInteger lambdaModP;
+    private BigInteger lambdaModQ;
+    private BigInteger qSquareInvModPSquare;
+
     public PaillierPrivateKey(BigInteger lambda, BigInteger mu, BigInteger n) {
         this.lambda = lambda;
         this.mu = mu;
@@ -17,9 +38,116 @@ public class PaillierPrivateKey {
         nSquare = n.pow(2);
     }
 
+    public PaillierPrivateKey(BigInteger lambda, BigInteger mu, BigInteger n, BigInteger p, BigInteger q) {
+        this(lambda, mu, n);
+        if (p != null && q != null && p.signum() > 0 && q.signum() > 0 && p.multiply(q).equals(n)) {
+            crt = true;
+            pSquare = p.multiply(p);
+            qSquare = q.multiply(q);
+            // the multiplicative group mod p^2 has order p * (p - 1)
+            lambdaModP = lambda.mod(pSquare.subtract(p));
+            lambdaModQ = lambda.mod(qSquare.subtract(q));
+            qSquareInvModPSquare = qSquare.modInverse(pSquare);
+        }
+    }
+
+    public boolean isCrt() {
+        return crt;
+    }
+
     public BigInteger decrypt(BigInteger c) {
-        BigInteger result0 = c.modPow(lambda, nSquare).subtract(BigInteger.ONE);
+        BigInteger result0 = powLambda(c).subtract(BigInteger.ONE);
         BigInteger result1 = result0.divide(n).multiply(mu);
         return result1.mod(n);
     }
+
+    /**
+     * Decrypts every ciphertext, splitting the list across the available
+     * cores. The result keeps the order of the input.
+     */
+    public List<BigInteger> decryptAll(List<BigInteger> ciphertexts) {
+        int count = ciphertexts.size();
+        ArrayList<BigInteger> result = new ArrayList<>(count);
+        int threads = Math.min(THREADS, count / MIN_BATCH_PER_THREAD);
+        if (threads <= 1) {
+            for (int a = 0; a < count; a++) {
+                result.add(decrypt(ciphertexts.get(a)));
+            }
+            return result;
+        }
+        ArrayList<Future<BigInteger[]>> parts = new ArrayList<>(threads);
+        int chunk = (count + threads - 1) / threads;
+        for (int start = 0; start < count; start += chunk) {
+            parts.add(getDecryptExecutor().submit(new DecryptTask(ciphertexts, start, Math.min(count, start + chunk))));
+        }
+        try {
+            for (int a = 0; a < parts.size(); a++) {
+                BigInteger[] part = parts.get(a).get();
+                for (int b = 0; b < part.length; b++) {
+                    result.add(part[b]);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        return result;
+    }
+
+    /**
+     * c^lambda mod n^2. With p and q known the two halves are computed mod p^2
+     * and q^2 with reduced exponents and recombined by Garner's formula.
+     */
+    private BigInteger powLambda(BigInteger c) {
+        if (!crt) {
+            return c.modPow(lambda, nSquare);
+        }
+        BigInteger xp = c.mod(pSquare).modPow(lambdaModP, pSquare);
+        BigInteger xq = c.mod(qSquare).modPow(lambdaModQ, qSquare);
+        BigInteger h = xp.subtract(xq).multiply(qSquareInvModPSquare).mod(pSquare);
+        return xq.add(h.multiply(qSquare));
+    }
+
+    private static ExecutorService getDecryptExecutor() {
+        ExecutorService executor = decryptExecutor;
+        if (executor == null) {
+            synchronized (PaillierPrivateKey.class) {
+                executor = decryptExecutor;
+                if (executor == null) {
+                    decryptExecutor = executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "paillierDecrypt");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+            }
+        }
+        return executor;
+    }
+
+    private class DecryptTask implements Callable<BigInteger[]> {
+        private final List<BigInteger> ciphertexts;
+        private final int start;
+        private final int end;
+
+        DecryptTask(List<BigInteger> ciphertexts, int start, int end) {
+            this.ciphertexts = ciphertexts;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public BigInteger[] call() {
+            BigInteger[] result = new BigInteger[end - start];
+            for (int a = start; a < end; a++) {
+                result[a - start] = decrypt(ciphertexts.get(a));
+            }
+            return result;
+        }
+    }
 }
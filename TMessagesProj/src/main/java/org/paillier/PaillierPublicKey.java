@@ -1,7 +1,6 @@
 package org.paillier;
 
 import java.math.BigInteger;
-import java.util.Random;
 
 /**
  * Created by gzq on 16-1-11.
@@ -11,22 +10,43 @@ public class PaillierPublicKey {
     private final BigInteger g;
     private final BigInteger nSquared;
     private final int bits;
+    private final boolean gIsNPlusOne;
+    private final PaillierRandomnessPool randomnessPool;
+    // gPowers[i] = g^(2^i) mod n^2, grown on demand for the fixed-base path
+    private BigInteger[] gPowers;
 
     public PaillierPublicKey(BigInteger n, BigInteger g) {
+        this(n, g, PaillierRandomnessPool.DEFAULT_CAPACITY);
+    }
+
+    public PaillierPublicKey(BigInteger n, BigInteger g, int poolCapacity) {
         this.n = n;
         this.g = g;
         nSquared = n.pow(2);
         bits = n.bitLength();
+        gIsNPlusOne = g.equals(n.add(BigInteger.ONE));
+        randomnessPool = new PaillierRandomnessPool(n, nSquared, poolCapacity);
     }
 
-    public BigInteger encrypt(BigInteger m) {
-        BigInteger r;
-        do {
-            r = new BigInteger(bits, new Random());
-        } while (r.compareTo(n) >= 0);
+    public BigInteger getN() {
+        return n;
+    }
+
+    public BigInteger getG() {
+        return g;
+    }
+
+    public BigInteger getNSquared() {
+        return nSquared;
+    }
 
-        BigInteger result = g.modPow(m, nSquared);
-        BigInteger x = r.modPow(n, nSquared);
+    public int getBits() {
+        return bits;
+    }
+
+    public BigInteger encrypt(BigInteger m) {
+        BigInteger result = powG(m);
+        BigInteger x = randomnessPool.take();
 
         result = result.multiply(x);
         result = result.mod(nSquared);
@@ -37,4 +57,46 @@ public class PaillierPublicKey {
     public BigInteger multiple(BigInteger m1, BigInteger m2) {
         return m1.modPow(m2, nSquared);
     }
+
+    /**
+     * g^m mod n^2. For the usual g = n + 1 this is 1 + m * n by the binomial
+     * theorem; otherwise the cached powers g^(2^i) are multiplied together so
+     * no squarings are repeated between calls.
+     */
+    BigInteger powG(BigInteger m) {
+        if (gIsNPlusOne) {
+            return m.mod(n).multiply(n).add(BigInteger.ONE).mod(nSquared);
+        }
+        if (m.signum() < 0) {
+            return g.modPow(m, nSquared);
+        }
+        int length = m.bitLength();
+        BigInteger[] powers = getGPowers(length);
+        BigInteger result = BigInteger.ONE;
+        for (int i = 0; i < length; i++) {
+            if (m.testBit(i)) {
+                result = result.multiply(powers[i]).mod(nSquared);
+            }
+        }
+        return result;
+    }
+
+    private synchronized BigInteger[] getGPowers(int length) {
+        if (gPowers == null || gPowers.length < length) {
+            BigInteger[] powers = new BigInteger[Math.max(length, gPowers == null ? 32 : gPowers.length * 2)];
+            int start;
+            if (gPowers != null) {
+                System.arraycopy(gPowers, 0, powers, 0, gPowers.length);
+                start = gPowers.length;
+            } else {
+                powers[0] = g.mod(nSquared);
+                start = 1;
+            }
+            for (int i = start; i < powers.length; i++) {
+                powers[i] = powers[i - 1].multiply(powers[i - 1]).mod(nSquared);
+            }
+            gPowers = powers;
+        }
+        return gPowers;
+    }
 }
@@ -0,0 +1,96 @@
+package org.paillier;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pool of precomputed blinding factors r^n mod n^2 for one public key.
+ * The pool is refilled on a shared low priority background thread, so
+ * PaillierPublicKey.encrypt normally only pays for one modular multiply.
+ */
+public class PaillierRandomnessPool {
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private static final SecureRandom random = new SecureRandom();
+    private static final ExecutorService fillExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "paillierRandomnessPool");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    private final BigInteger n;
+    private final BigInteger nSquared;
+    private final int bits;
+    private final int lowWaterMark;
+    private final ArrayBlockingQueue<BigInteger> factors;
+    private final AtomicBoolean filling = new AtomicBoolean(false);
+
+    private final Runnable fillRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (factors.remainingCapacity() > 0) {
+                    if (!factors.offer(createFactor())) {
+                        break;
+                    }
+                }
+            } finally {
+                filling.set(false);
+            }
+            if (factors.size() <= lowWaterMark) {
+                scheduleFill();
+            }
+        }
+    };
+
+    public PaillierRandomnessPool(BigInteger n, BigInteger nSquared, int capacity) {
+        this.n = n;
+        this.nSquared = nSquared;
+        bits = n.bitLength();
+        factors = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        lowWaterMark = Math.max(1, capacity) / 2;
+        scheduleFill();
+    }
+
+    /**
+     * Returns a fresh r^n mod n^2. Each factor is handed out only once; if
+     * the pool is drained the factor is computed on the calling thread.
+     */
+    public BigInteger take() {
+        BigInteger factor = factors.poll();
+        if (factors.size() <= lowWaterMark) {
+            scheduleFill();
+        }
+        if (factor == null) {
+            factor = createFactor();
+        }
+        return factor;
+    }
+
+    public int available() {
+        return factors.size();
+    }
+
+    private void scheduleFill() {
+        if (filling.compareAndSet(false, true)) {
+            fillExecutor.execute(fillRunnable);
+        }
+    }
+
+    private BigInteger createFactor() {
+        BigInteger r;
+        do {
+            r = new BigInteger(bits, random);
+        } while (r.signum() == 0 || r.compareTo(n) >= 0);
+        return r.modPow(n, nSquared);
+    }
+}
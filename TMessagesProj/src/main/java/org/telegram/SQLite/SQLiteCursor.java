@@ -23,6 +23,14 @@ public class SQLiteCursor {
 
 	SQLitePreparedStatement preparedStatement;
 	boolean inRow = false;
+	private boolean disposed;
+	private NativeByteBuffer[] views;
+	// set once the loaded library turns out to lack columnByteBufferView
+	private static volatile boolean viewsUnavailable;
+
+	public interface BlobDelegate {
+		void run(SQLiteCursor cursor, NativeByteBuffer data) throws Exception;
+	}
 
 	public SQLiteCursor(SQLitePreparedStatement stmt) {
 		preparedStatement = stmt;
@@ -73,6 +81,60 @@ public class SQLiteCursor {
 		return columnByteBufferValue(preparedStatement.getStatementHandle(), columnIndex, buffer.buffer);
 	}
 
+	/**
+	 * Returns the blob of columnIndex as a read-only buffer that points into
+	 * the row SQLite holds, without allocating a native buffer or copying,
+	 * or null if the blob is empty. It is only valid until the next call of
+	 * next() or dispose(); reuse() on it does nothing. With a native library
+	 * built before columnByteBufferView the blob is copied instead.
+	 */
+	public NativeByteBuffer byteBufferView(int columnIndex) throws SQLiteException {
+		checkRow();
+		ByteBuffer memory = null;
+		if (!viewsUnavailable) {
+			try {
+				memory = columnByteBufferView(preparedStatement.getStatementHandle(), columnIndex);
+			} catch (UnsatisfiedLinkError e) {
+				FileLog.e("tmessages", "columnByteBufferView not in native library, copying blobs");
+				viewsUnavailable = true;
+			}
+		}
+		if (viewsUnavailable) {
+			byte[] bytes = columnByteArrayValue(preparedStatement.getStatementHandle(), columnIndex);
+			if (bytes != null && bytes.length != 0) {
+				memory = ByteBuffer.wrap(bytes);
+			}
+		}
+		if (memory == null) {
+			return null;
+		}
+		if (views == null || views.length <= columnIndex) {
+			NativeByteBuffer[] newViews = new NativeByteBuffer[columnIndex + 1];
+			if (views != null) {
+				System.arraycopy(views, 0, newViews, 0, views.length);
+			}
+			views = newViews;
+		}
+		return views[columnIndex] = NativeByteBuffer.wrap(memory, views[columnIndex]);
+	}
+
+	/**
+	 * Steps through the remaining rows, at most limit of them if limit > 0,
+	 * and hands the blob of columnIndex of every row with a non empty blob to
+	 * delegate as a byteBufferView. Returns the number of rows read.
+	 */
+	public int readBlobs(int columnIndex, int limit, BlobDelegate delegate) throws Exception {
+		int count = 0;
+		while ((limit <= 0 || count < limit) && next()) {
+			count++;
+			NativeByteBuffer data = byteBufferView(columnIndex);
+			if (data != null) {
+				delegate.run(this, data);
+			}
+		}
+		return count;
+	}
+
 	public int getTypeOf(int columnIndex) throws SQLiteException {
 		checkRow();
 		return columnType(preparedStatement.getStatementHandle(), columnIndex);
@@ -107,6 +169,11 @@ public class SQLiteCursor {
 	}
 
 	public void dispose() {
+		if (disposed) {
+			return;
+		}
+		disposed = true;
+		views = null;
 		preparedStatement.dispose();
 	}
 
@@ -125,4 +192,5 @@ public class SQLiteCursor {
 	native byte[] columnByteArrayValue(int statementHandle, int columnIndex);
     native int columnByteArrayLength(int statementHandle, int columnIndex);
     native int columnByteBufferValue(int statementHandle, int columnIndex, ByteBuffer buffer);
+	native ByteBuffer columnByteBufferView(int statementHandle, int columnIndex);
 }
@@ -11,12 +11,29 @@ package org.telegram.SQLite;
 import org.telegram.messenger.FileLog;
 import org.telegram.messenger.ApplicationLoader;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 public class SQLiteDatabase {
 	private final int sqliteHandle;
 
 	private boolean isOpen = false;
     private boolean inTransaction = false;
 
+	private static final int MAX_CACHED_STATEMENTS = 48;
+	private int statementsParseCount;
+	private int statementsReuseCount;
+	private final LinkedHashMap<String, SQLitePreparedStatement> statementsCache = new LinkedHashMap<String, SQLitePreparedStatement>(MAX_CACHED_STATEMENTS, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, SQLitePreparedStatement> eldest) {
+			if (size() > MAX_CACHED_STATEMENTS) {
+				releaseCachedStatement(eldest.getValue());
+				return true;
+			}
+			return false;
+		}
+	};
+
 	public int getSQLiteHandle() {
 		return sqliteHandle;
 	}
@@ -26,6 +43,15 @@ public class SQLiteDatabase {
 		isOpen = true;
 	}
 
+	public SQLiteDatabase(String fileName, boolean readOnly) throws SQLiteException {
+		if (readOnly) {
+			sqliteHandle = opendbReadOnly(fileName);
+		} else {
+			sqliteHandle = opendb(fileName, ApplicationLoader.applicationContext.getFilesDir().getPath());
+		}
+		isOpen = true;
+	}
+
 	public boolean tableExists(String tableName) throws SQLiteException {
 		checkOpened();
 		String s = "SELECT rowid FROM sqlite_master WHERE type='table' AND name=?;";
@@ -54,8 +80,83 @@ public class SQLiteDatabase {
 		return new SQLitePreparedStatement(this, sql, true).query(args);
 	}
 
+	/**
+	 * Returns a compiled statement for sql from the LRU statement cache, ready
+	 * for binding. dispose() resets it and hands it back to the cache. If the
+	 * cached statement is still in use a finalizing one is returned instead.
+	 */
+	public SQLitePreparedStatement executeCached(String sql) throws SQLiteException {
+		checkOpened();
+		synchronized (statementsCache) {
+			SQLitePreparedStatement statement = statementsCache.get(sql);
+			if (statement != null) {
+				if (!statement.inUse) {
+					statement.requery();
+					statement.inUse = true;
+					statementsReuseCount++;
+					return statement;
+				}
+				statementsParseCount++;
+				return new SQLitePreparedStatement(this, sql, true);
+			}
+			statementsParseCount++;
+			// finalizes on dispose once evicted from the cache
+			statement = new SQLitePreparedStatement(this, sql, true);
+			statement.cacheLock = statementsCache;
+			statement.cached = true;
+			statement.inUse = true;
+			statementsCache.put(sql, statement);
+			return statement;
+		}
+	}
+
+	/**
+	 * Like queryFinalized, but binds args (Integer, Long, Double, String or
+	 * null) to the ? parameters of a cached statement.
+	 */
+	public SQLiteCursor queryCached(String sql, Object... args) throws SQLiteException {
+		SQLitePreparedStatement statement = executeCached(sql);
+		boolean bound = false;
+		try {
+			statement.bindArgs(args);
+			bound = true;
+		} finally {
+			if (!bound) {
+				statement.dispose();
+			}
+		}
+		return statement.query();
+	}
+
+	public int getStatementsParseCount() {
+		synchronized (statementsCache) {
+			return statementsParseCount;
+		}
+	}
+
+	public int getStatementsReuseCount() {
+		synchronized (statementsCache) {
+			return statementsReuseCount;
+		}
+	}
+
+	private void releaseCachedStatement(SQLitePreparedStatement statement) {
+		statement.cached = false;
+		if (!statement.inUse) {
+			statement.finalizeQuery();
+		}
+	}
+
 	public void close() {
 		if (isOpen) {
+			synchronized (statementsCache) {
+				for (SQLitePreparedStatement statement : statementsCache.values()) {
+					statement.cached = false;
+					statement.finalizeQuery();
+				}
+				statementsCache.clear();
+				FileLog.d("tmessages", "sqlite statements parsed " + statementsParseCount + ", reused " + statementsReuseCount);
+			}
 			try {
                 commitTransaction();
 				closedb(sqliteHandle);
@@ -95,6 +196,7 @@ public class SQLiteDatabase {
     }
 
 	native int opendb(String fileName, String tempDir) throws SQLiteException;
+	native int opendbReadOnly(String fileName) throws SQLiteException;
 	native void closedb(int sqliteHandle) throws SQLiteException;
     native void beginTransaction(int sqliteHandle);
     native void commitTransaction(int sqliteHandle);
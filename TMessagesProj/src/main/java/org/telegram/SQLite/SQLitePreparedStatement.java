@@ -20,6 +20,10 @@ public class SQLitePreparedStatement {
 
 	private int queryArgsCount;
 	private boolean finalizeAfterQuery = false;
+	// cached and inUse are guarded by cacheLock, set for statements of the statement cache
+	Object cacheLock;
+	boolean cached;
+	boolean inUse;
 
     private static HashMap<SQLitePreparedStatement, String> hashMap;
 
@@ -70,6 +74,31 @@ public class SQLitePreparedStatement {
         return new SQLiteCursor(this);
     }
 
+    public SQLiteCursor query() throws SQLiteException {
+        checkFinalized();
+        return new SQLiteCursor(this);
+    }
+
+    void bindArgs(Object[] args) throws SQLiteException {
+        int i = 1;
+        for (Object obj : args) {
+            if (obj == null) {
+                bindNull(sqliteStatementHandle, i);
+            } else if (obj instanceof Integer) {
+                bindInt(sqliteStatementHandle, i, (Integer) obj);
+            } else if (obj instanceof Long) {
+                bindLong(sqliteStatementHandle, i, (Long) obj);
+            } else if (obj instanceof Double) {
+                bindDouble(sqliteStatementHandle, i, (Double) obj);
+            } else if (obj instanceof String) {
+                bindString(sqliteStatementHandle, i, (String) obj);
+            } else {
+                throw new IllegalArgumentException();
+            }
+            i++;
+        }
+    }
+
     public int step() throws SQLiteException {
         return step(sqliteStatementHandle);
     }
@@ -85,6 +114,19 @@ public class SQLitePreparedStatement {
 	}
 
 	public void dispose() {
+		if (cacheLock != null) {
+			synchronized (cacheLock) {
+				inUse = false;
+				if (cached) {
+					try {
+						reset(sqliteStatementHandle);
+					} catch (SQLiteException e) {
+						FileLog.e("tmessages", e.getMessage(), e);
+					}
+					return;
+				}
+			}
+		}
 		if (finalizeAfterQuery) {
 			finalizeQuery();
 		}
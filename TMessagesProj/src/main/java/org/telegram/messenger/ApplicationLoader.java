@@ -31,6 +31,10 @@ import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GooglePlayServicesUtil;
 import com.google.android.gms.gcm.GoogleCloudMessaging;
 
+import org.telegram.messenger.volley.Request;
+import org.telegram.messenger.volley.RequestQueue;
+import org.telegram.messenger.volley.toolbox.HurlStack;
+import org.telegram.messenger.volley.toolbox.Volley;
 import org.telegram.tgnet.ConnectionsManager;
 import org.telegram.tgnet.SerializedData;
 import org.telegram.tgnet.TLRPC;
@@ -58,9 +62,49 @@ public class ApplicationLoader extends Application {
     public static volatile Handler applicationHandler;
     private static volatile boolean applicationInited = false;
 
+    private static volatile RequestQueue requestQueue;
+
     public static volatile boolean isScreenOn = false;
     public static volatile boolean mainInterfacePaused = true;
 
+    public static RequestQueue getRequestQueue() {
+        RequestQueue localQueue = requestQueue;
+        if (localQueue == null) {
+            synchronized (sync) {
+                localQueue = requestQueue;
+                if (localQueue == null) {
+                    // HttpURLConnection pools keep-alive sockets by default (http.maxConnections
+                    // idle ones, 5 unless set), and the queue's 4 dispatchers bound the open ones
+                    localQueue = Volley.newRequestQueue(applicationContext, new HurlStack());
+                    localQueue.setMetricsListener(new RequestQueue.MetricsListener() {
+                        @Override
+                        public void onRequestAdded(Request<?> request, int queueDepth) {
+                            if (BuildVars.DEBUG_VERSION) {
+                                FileLog.d("tmessages", "http queue add " + request.getUrl() + " depth = " + queueDepth);
+                            }
+                        }
+
+                        @Override
+                        public void onRequestFinished(Request<?> request, long latencyMs, int queueDepth) {
+                            if (BuildVars.DEBUG_VERSION) {
+                                FileLog.d("tmessages", "http queue done " + request.getUrl() + " in " + latencyMs + " ms depth = " + queueDepth);
+                            }
+                        }
+                    });
+                    requestQueue = localQueue;
+                }
+            }
+        }
+        return localQueue;
+    }
+
+    public static void cancelRequests(Object tag) {
+        RequestQueue localQueue = requestQueue;
+        if (localQueue != null && tag != null) {
+            localQueue.cancelAll(tag);
+        }
+    }
+
     public static boolean isCustomTheme() {
         return isCustomTheme;
     }
@@ -0,0 +1,344 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegram.messenger;
+
+import android.graphics.Bitmap;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Second level cache of decoded, scaled and blurred bitmaps, keyed by the
+ * ImageLoader key (url@filter). A bitmap is stored as its raw pixels after a
+ * short header, so a hit is a mapped copy into a bitmap instead of a decode.
+ * Every entry records the length and modification time of the file it was
+ * decoded from and is dropped once that file changes, and entries are named
+ * after their source so removeForSources can delete them with it. The files
+ * are kept below MAX_SIZE, the least recently used ones are deleted first;
+ * the last access time is kept in the header, since setLastModified does
+ * nothing on many external storage mounts.
+ */
+public class BitmapDiskCache {
+
+    private static final int MAGIC = 0x54424d32;
+    private static final int ACCESS_TIME_OFFSET = 32;
+    private static final int HEADER_SIZE = 40;
+    private static final int CONFIG_RGB_565 = 0;
+    private static final int CONFIG_ARGB_8888 = 1;
+    private static final long MAX_SIZE = 1024 * 1024 * 32;
+
+    private File cacheDir;
+    private long totalSize = -1;
+    // last access time by file name, read from the headers as trim needs them
+    private HashMap<String, Long> accessTimes = new HashMap<>();
+
+    private static volatile BitmapDiskCache Instance = null;
+
+    public static BitmapDiskCache getInstance() {
+        BitmapDiskCache localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (BitmapDiskCache.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new BitmapDiskCache();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    /**
+     * Cached bitmap for key decoded from source, null if there is none. The
+     * entry is read and validated under the lock, so an invalid one is only
+     * removed if no put replaced it in between.
+     */
+    public synchronized Bitmap get(String key, File source) {
+        File file = getCacheFile(key, source);
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        RandomAccessFile randomAccessFile = null;
+        Bitmap bitmap = null;
+        boolean valid = false;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            long length = randomAccessFile.length();
+            if (length > HEADER_SIZE) {
+                ByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+                int magic = buffer.getInt();
+                int width = buffer.getInt();
+                int height = buffer.getInt();
+                int config = buffer.getInt();
+                long sourceLength = buffer.getLong();
+                long sourceModified = buffer.getLong();
+                buffer.position(HEADER_SIZE);
+                Bitmap.Config bitmapConfig = config == CONFIG_RGB_565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+                int bytesPerPixel = config == CONFIG_RGB_565 ? 2 : 4;
+                if (magic == MAGIC && (config == CONFIG_RGB_565 || config == CONFIG_ARGB_8888) && width > 0 && height > 0 &&
+                        length == HEADER_SIZE + (long) width * height * bytesPerPixel && sourceLength == source.length() && sourceModified == source.lastModified()) {
+                    bitmap = Bitmap.createBitmap(width, height, bitmapConfig);
+                    bitmap.copyPixelsFromBuffer(buffer);
+                    valid = true;
+                    long time = System.currentTimeMillis();
+                    accessTimes.put(file.getName(), time);
+                    try {
+                        randomAccessFile.seek(ACCESS_TIME_OFFSET);
+                        randomAccessFile.writeLong(time);
+                    } catch (Exception e) {
+                        FileLog.e("tmessages", e);
+                    }
+                }
+            }
+        } catch (Throwable e) {
+            FileLog.e("tmessages", e);
+            if (bitmap != null) {
+                bitmap.recycle();
+                bitmap = null;
+            }
+        } finally {
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                }
+            }
+        }
+        if (!valid) {
+            remove(file);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Stores bitmap for key, source is the file it was decoded from.
+     */
+    public void put(String key, File source, Bitmap bitmap) {
+        File file = getCacheFile(key, source);
+        if (file == null || bitmap.isRecycled()) {
+            return;
+        }
+        int config;
+        if (bitmap.getConfig() == Bitmap.Config.RGB_565) {
+            config = CONFIG_RGB_565;
+        } else if (bitmap.getConfig() == Bitmap.Config.ARGB_8888) {
+            config = CONFIG_ARGB_8888;
+        } else {
+            return;
+        }
+        long sourceLength = source.length();
+        long sourceModified = source.lastModified();
+        if (sourceLength == 0) {
+            return;
+        }
+        long length = HEADER_SIZE + (long) bitmap.getRowBytes() * bitmap.getHeight();
+        File tempFile = new File(file.getParentFile(), file.getName() + "." + Thread.currentThread().getId() + ".temp");
+        RandomAccessFile randomAccessFile = null;
+        boolean written = false;
+        try {
+            randomAccessFile = new RandomAccessFile(tempFile, "rw");
+            randomAccessFile.setLength(length);
+            ByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.putInt(MAGIC);
+            buffer.putInt(bitmap.getWidth());
+            buffer.putInt(bitmap.getHeight());
+            buffer.putInt(config);
+            buffer.putLong(sourceLength);
+            buffer.putLong(sourceModified);
+            buffer.putLong(System.currentTimeMillis());
+            bitmap.copyPixelsToBuffer(buffer);
+            written = true;
+        } catch (Throwable e) {
+            FileLog.e("tmessages", e);
+        } finally {
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                }
+            }
+        }
+        if (!written) {
+            tempFile.delete();
+            return;
+        }
+        synchronized (this) {
+            loadTotalSize();
+            long oldLength = file.length();
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+                return;
+            }
+            totalSize += length - oldLength;
+            accessTimes.put(file.getName(), System.currentTimeMillis());
+            if (totalSize > MAX_SIZE) {
+                trim();
+            }
+        }
+    }
+
+    /**
+     * Deletes the entries decoded from any of sources, e.g. after their
+     * messages were deleted.
+     */
+    public void removeForSources(ArrayList<File> sources) {
+        File dir = getCacheDir();
+        if (dir == null || sources == null || sources.isEmpty()) {
+            return;
+        }
+        HashSet<String> prefixes = new HashSet<>();
+        for (int a = 0; a < sources.size(); a++) {
+            prefixes.add(getSourcePrefix(sources.get(a)));
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            int index = name.indexOf('_');
+            if (index > 0 && !name.endsWith(".temp") && prefixes.contains(name.substring(0, index + 1))) {
+                remove(file);
+            }
+        }
+    }
+
+    private synchronized void remove(File file) {
+        loadTotalSize();
+        long length = file.length();
+        if (file.delete()) {
+            totalSize -= length;
+        }
+        accessTimes.remove(file.getName());
+    }
+
+    private long getAccessTime(File file) {
+        Long time = accessTimes.get(file.getName());
+        if (time != null) {
+            return time;
+        }
+        long result = file.lastModified();
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            if (randomAccessFile.length() >= HEADER_SIZE && randomAccessFile.readInt() == MAGIC) {
+                randomAccessFile.seek(ACCESS_TIME_OFFSET);
+                result = randomAccessFile.readLong();
+            }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        } finally {
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                }
+            }
+        }
+        accessTimes.put(file.getName(), result);
+        return result;
+    }
+
+    private void loadTotalSize() {
+        if (totalSize >= 0) {
+            return;
+        }
+        totalSize = 0;
+        File dir = getCacheDir();
+        if (dir == null) {
+            return;
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".temp")) {
+                    file.delete();
+                } else {
+                    totalSize += file.length();
+                }
+            }
+        }
+    }
+
+    private void trim() {
+        File dir = getCacheDir();
+        if (dir == null) {
+            return;
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long[] times = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int a = 0; a < files.length; a++) {
+            times[a] = files[a].getName().endsWith(".temp") ? Long.MAX_VALUE : getAccessTime(files[a]);
+            order[a] = a;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                if (times[lhs] < times[rhs]) {
+                    return -1;
+                } else if (times[lhs] > times[rhs]) {
+                    return 1;
+                }
+                return 0;
+            }
+        });
+        long targetSize = MAX_SIZE * 3 / 4;
+        for (int a = 0; a < order.length && totalSize > targetSize; a++) {
+            File file = files[order[a]];
+            if (file.getName().endsWith(".temp")) {
+                continue;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                totalSize -= length;
+                accessTimes.remove(file.getName());
+            }
+        }
+    }
+
+    private File getCacheFile(String key, File source) {
+        File dir = getCacheDir();
+        if (dir == null) {
+            return null;
+        }
+        return new File(dir, getSourcePrefix(source) + Utilities.MD5(key) + ".bitmap");
+    }
+
+    private String getSourcePrefix(File source) {
+        return Utilities.MD5(source.getAbsolutePath()) + "_";
+    }
+
+    private synchronized File getCacheDir() {
+        if (cacheDir == null) {
+            File cachePath = FileLoader.getInstance().getDirectory(FileLoader.MEDIA_DIR_CACHE);
+            if (cachePath == null) {
+                return null;
+            }
+            File dir = new File(cachePath, "bitmaps");
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                return null;
+            }
+            cacheDir = dir;
+        }
+        return cacheDir;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegram.messenger;
+
+import org.telegram.tgnet.TLRPC;
+
+/**
+ * Update state of one channel: its pts, whether a getChannelDifference is
+ * running, and the updates that wait for a pts gap to close. The waiting
+ * updates are kept in a binary min-heap keyed by pts, so the next update to
+ * apply is found without sorting the queue. Utilities.stageQueue only.
+ */
+public class ChannelUpdatesSequencer {
+
+    public final int channelId;
+    /**
+     * Last applied pts, 0 if not known yet.
+     */
+    public int pts;
+    public boolean gettingDifference;
+    /**
+     * Time the first waiting update was queued, 0 if nothing waits.
+     */
+    public long startWaitTime;
+
+    private int[] keys = new int[8];
+    private TLRPC.Updates[] values = new TLRPC.Updates[8];
+    private int size;
+
+    public ChannelUpdatesSequencer(int channelId) {
+        this.channelId = channelId;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void add(TLRPC.Updates updates) {
+        if (size == keys.length) {
+            int[] newKeys = new int[size * 2];
+            TLRPC.Updates[] newValues = new TLRPC.Updates[size * 2];
+            System.arraycopy(keys, 0, newKeys, 0, size);
+            System.arraycopy(values, 0, newValues, 0, size);
+            keys = newKeys;
+            values = newValues;
+        }
+        int index = size++;
+        int key = updates.pts;
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (keys[parent] <= key) {
+                break;
+            }
+            keys[index] = keys[parent];
+            values[index] = values[parent];
+            index = parent;
+        }
+        keys[index] = key;
+        values[index] = updates;
+    }
+
+    /**
+     * Waiting update with the smallest pts, null if nothing waits.
+     */
+    public TLRPC.Updates peek() {
+        return size == 0 ? null : values[0];
+    }
+
+    public TLRPC.Updates poll() {
+        if (size == 0) {
+            return null;
+        }
+        TLRPC.Updates result = values[0];
+        size--;
+        int key = keys[size];
+        TLRPC.Updates value = values[size];
+        values[size] = null;
+        int index = 0;
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            if (child + 1 < size && keys[child + 1] < keys[child]) {
+                child++;
+            }
+            if (key <= keys[child]) {
+                break;
+            }
+            keys[index] = keys[child];
+            values[index] = values[child];
+            index = child;
+        }
+        if (size > 0) {
+            keys[index] = key;
+            values[index] = value;
+        }
+        return result;
+    }
+
+    public void clearQueue() {
+        for (int a = 0; a < size; a++) {
+            values[a] = null;
+        }
+        size = 0;
+        startWaitTime = 0;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegram.messenger;
+
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+
+import org.telegram.tgnet.ConnectionsManager;
+import org.telegram.tgnet.RequestDelegate;
+import org.telegram.tgnet.TLObject;
+import org.telegram.tgnet.TLRPC;
+
+import java.util.ArrayList;
+
+/**
+ * Collects viewed messages per peer and sends them with one
+ * messages.getMessagesViews request per peer every FLUSH_INTERVAL ms. The
+ * storage update for a batch is a single write, and the batch is kept in
+ * pending_views until the server accepted or rejected it, so views of a
+ * killed process are sent after the next start. Batches that failed for
+ * other reasons are queued again for the next flush.
+ */
+public class ChannelViewsQueue {
+
+    private static final int FLUSH_INTERVAL = 5000;
+
+    private SparseArray<SparseBooleanArray> viewsToSend = new SparseArray<>();
+    private ArrayList<Long> contentToMark = new ArrayList<>();
+    private long lastFlushTime;
+    private boolean pendingLoaded;
+
+    private static volatile ChannelViewsQueue Instance = null;
+
+    public static ChannelViewsQueue getInstance() {
+        ChannelViewsQueue localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (ChannelViewsQueue.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new ChannelViewsQueue();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    public synchronized void add(TLRPC.Message message) {
+        int peer;
+        if (message.to_id.channel_id != 0) {
+            peer = -message.to_id.channel_id;
+        } else if (message.to_id.chat_id != 0) {
+            peer = -message.to_id.chat_id;
+        } else {
+            peer = message.to_id.user_id;
+        }
+        SparseBooleanArray ids = viewsToSend.get(peer);
+        if (ids == null) {
+            ids = new SparseBooleanArray();
+            viewsToSend.put(peer, ids);
+        } else if (ids.get(message.id)) {
+            return;
+        }
+        ids.put(message.id, true);
+        long messageId = message.id;
+        if (message.to_id.channel_id != 0) {
+            messageId |= ((long) message.to_id.channel_id) << 32;
+        }
+        contentToMark.add(messageId);
+    }
+
+    /**
+     * Adds views loaded from pending_views, their storage update is already done.
+     */
+    public synchronized void addPending(SparseArray<SparseBooleanArray> views) {
+        for (int a = 0; a < views.size(); a++) {
+            int peer = views.keyAt(a);
+            SparseBooleanArray pending = views.valueAt(a);
+            SparseBooleanArray ids = viewsToSend.get(peer);
+            if (ids == null) {
+                viewsToSend.put(peer, pending);
+            } else {
+                for (int b = 0; b < pending.size(); b++) {
+                    ids.put(pending.keyAt(b), true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called from MessagesController.updateTimerProc.
+     */
+    public void checkFlush() {
+        boolean loadPending = false;
+        synchronized (this) {
+            if (!pendingLoaded) {
+                pendingLoaded = true;
+                loadPending = true;
+            }
+        }
+        if (loadPending) {
+            MessagesStorage.getInstance().loadPendingViews();
+        }
+        final SparseArray<SparseBooleanArray> views;
+        final ArrayList<Long> mids;
+        synchronized (this) {
+            if (viewsToSend.size() == 0 || lastFlushTime > System.currentTimeMillis() - FLUSH_INTERVAL) {
+                return;
+            }
+            lastFlushTime = System.currentTimeMillis();
+            views = viewsToSend;
+            mids = contentToMark;
+            viewsToSend = new SparseArray<>();
+            contentToMark = new ArrayList<>();
+        }
+        MessagesStorage.getInstance().putPendingViews(views, mids);
+        for (int a = 0; a < views.size(); a++) {
+            sendViews(views.keyAt(a), views.valueAt(a));
+        }
+    }
+
+    public synchronized void cleanUp() {
+        viewsToSend.clear();
+        contentToMark.clear();
+        lastFlushTime = 0;
+        pendingLoaded = false;
+    }
+
+    private void sendViews(final int peer, final SparseBooleanArray ids) {
+        final TLRPC.TL_messages_getMessagesViews req = new TLRPC.TL_messages_getMessagesViews();
+        req.peer = MessagesController.getInputPeer(peer);
+        req.increment = true;
+        for (int a = 0; a < ids.size(); a++) {
+            req.id.add(ids.keyAt(a));
+        }
+        ConnectionsManager.getInstance().sendRequest(req, new RequestDelegate() {
+            @Override
+            public void run(TLObject response, TLRPC.TL_error error) {
+                if (error != null && error.code != 400 && error.code != 403) {
+                    // keep the rows and send the batch again with the next flush
+                    SparseArray<SparseBooleanArray> retry = new SparseArray<>();
+                    retry.put(peer, ids);
+                    addPending(retry);
+                    return;
+                }
+                MessagesStorage.getInstance().deletePendingViews(peer, ids);
+                if (error == null) {
+                    TLRPC.Vector vector = (TLRPC.Vector) response;
+                    final SparseArray<SparseIntArray> channelViews = new SparseArray<>();
+                    SparseIntArray array = new SparseIntArray();
+                    channelViews.put(peer, array);
+                    for (int a = 0; a < req.id.size(); a++) {
+                        if (a >= vector.objects.size()) {
+                            break;
+                        }
+                        array.put(req.id.get(a), (Integer) vector.objects.get(a));
+                    }
+                    MessagesStorage.getInstance().putChannelViews(channelViews, req.peer instanceof TLRPC.TL_inputPeerChannel);
+                    AndroidUtilities.runOnUIThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.didUpdatedMessagesViews, channelViews);
+                        }
+                    });
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegram.messenger;
+
+import android.support.v4.util.LongSparseArray;
+
+import org.telegram.tgnet.TLRPC;
+
+import java.util.ArrayList;
+
+/**
+ * Keeps MessagesController.dialogs, dialogsServerOnly and dialogsGroupsOnly
+ * sorted by last_message_date (newest first) without re-sorting them. Every
+ * list has a parallel column of the dates it is sorted by, so a dialog is
+ * found and moved with a binary search, and a dialog id maps to the date it
+ * was last placed with. UI thread only.
+ */
+public class DialogsIndex {
+
+    private static class Column {
+        private final ArrayList<TLRPC.Dialog> dialogs;
+        private int[] dates = new int[64];
+
+        private Column(ArrayList<TLRPC.Dialog> list) {
+            dialogs = list;
+        }
+
+        /**
+         * First index in [from, to) whose date is below date.
+         */
+        private int firstBelow(int date, int from, int to) {
+            while (from < to) {
+                int mid = (from + to) >>> 1;
+                if (dates[mid] >= date) {
+                    from = mid + 1;
+                } else {
+                    to = mid;
+                }
+            }
+            return from;
+        }
+
+        private int indexOf(long id, int date) {
+            int from = 0;
+            int to = dialogs.size();
+            while (from < to) {
+                int mid = (from + to) >>> 1;
+                if (dates[mid] > date) {
+                    from = mid + 1;
+                } else {
+                    to = mid;
+                }
+            }
+            for (int a = from, size = dialogs.size(); a < size && dates[a] == date; a++) {
+                if (dialogs.get(a).id == id) {
+                    return a;
+                }
+            }
+            return -1;
+        }
+
+        private void insert(TLRPC.Dialog dialog, int date) {
+            int size = dialogs.size();
+            if (size == dates.length) {
+                int[] newDates = new int[size * 2];
+                System.arraycopy(dates, 0, newDates, 0, size);
+                dates = newDates;
+            }
+            int index = firstBelow(date, 0, size);
+            System.arraycopy(dates, index, dates, index + 1, size - index);
+            dates[index] = date;
+            dialogs.add(index, dialog);
+        }
+
+        private void remove(int index) {
+            System.arraycopy(dates, index + 1, dates, index, dialogs.size() - index - 1);
+            dialogs.remove(index);
+        }
+
+        /**
+         * Moves the dialog at from to its place for date, shifting only the
+         * dialogs in between.
+         */
+        private void move(int from, TLRPC.Dialog dialog, int date) {
+            int to;
+            if (date >= dates[from]) {
+                to = firstBelow(date, 0, from);
+                System.arraycopy(dates, to, dates, to + 1, from - to);
+                for (int a = from; a > to; a--) {
+                    dialogs.set(a, dialogs.get(a - 1));
+                }
+            } else {
+                to = firstBelow(date, from + 1, dialogs.size()) - 1;
+                System.arraycopy(dates, from + 1, dates, from, to - from);
+                for (int a = from; a < to; a++) {
+                    dialogs.set(a, dialogs.get(a + 1));
+                }
+            }
+            dates[to] = date;
+            dialogs.set(to, dialog);
+        }
+
+        private void clear() {
+            dialogs.clear();
+            dates = new int[64];
+        }
+    }
+
+    private final Column all;
+    private final Column serverOnly;
+    private final Column groupsOnly;
+    private final LongSparseArray<Integer> sortDates = new LongSparseArray<>();
+    private int dialogsCount;
+    private int channelDialogsCount;
+
+    public DialogsIndex(ArrayList<TLRPC.Dialog> dialogs, ArrayList<TLRPC.Dialog> dialogsServerOnly, ArrayList<TLRPC.Dialog> dialogsGroupsOnly) {
+        all = new Column(dialogs);
+        serverOnly = new Column(dialogsServerOnly);
+        groupsOnly = new Column(dialogsGroupsOnly);
+    }
+
+    public static boolean isServerDialog(TLRPC.Dialog dialog) {
+        int high_id = (int) (dialog.id >> 32);
+        return (int) dialog.id != 0 && high_id != 1;
+    }
+
+    public static boolean isGroupDialog(TLRPC.Dialog dialog) {
+        return isServerDialog(dialog) && dialog instanceof TLRPC.TL_dialog && dialog.id < 0;
+    }
+
+    /**
+     * Adds a dialog, or replaces the dialog with the same id and moves it to
+     * its place for the current last_message_date.
+     */
+    public void put(TLRPC.Dialog dialog) {
+        Integer oldDate = sortDates.get(dialog.id);
+        int date = dialog.last_message_date;
+        if (oldDate == null) {
+            all.insert(dialog, date);
+            if (isServerDialog(dialog)) {
+                serverOnly.insert(dialog, date);
+                count(dialog, 1);
+            }
+            if (isGroupDialog(dialog)) {
+                groupsOnly.insert(dialog, date);
+            }
+        } else {
+            int index = all.indexOf(dialog.id, oldDate);
+            if (index != -1) {
+                all.move(index, dialog, date);
+            } else {
+                all.insert(dialog, date);
+            }
+            index = serverOnly.indexOf(dialog.id, oldDate);
+            if (index != -1) {
+                count(serverOnly.dialogs.get(index), -1);
+            }
+            update(serverOnly, index, dialog, date, isServerDialog(dialog));
+            if (isServerDialog(dialog)) {
+                count(dialog, 1);
+            }
+            update(groupsOnly, groupsOnly.indexOf(dialog.id, oldDate), dialog, date, isGroupDialog(dialog));
+        }
+        sortDates.put(dialog.id, date);
+    }
+
+    /**
+     * Removes a dialog, returns true if it was in dialogsServerOnly.
+     */
+    public boolean remove(long id) {
+        Integer date = sortDates.get(id);
+        if (date == null) {
+            return false;
+        }
+        sortDates.remove(id);
+        int index = all.indexOf(id, date);
+        if (index != -1) {
+            all.remove(index);
+        }
+        index = groupsOnly.indexOf(id, date);
+        if (index != -1) {
+            groupsOnly.remove(index);
+        }
+        index = serverOnly.indexOf(id, date);
+        if (index != -1) {
+            count(serverOnly.dialogs.get(index), -1);
+            serverOnly.remove(index);
+            return true;
+        }
+        return false;
+    }
+
+    public void clear() {
+        all.clear();
+        serverOnly.clear();
+        groupsOnly.clear();
+        sortDates.clear();
+        dialogsCount = 0;
+        channelDialogsCount = 0;
+    }
+
+    /**
+     * Number of TL_dialog entries in dialogsServerOnly.
+     */
+    public int getDialogsCount() {
+        return dialogsCount;
+    }
+
+    /**
+     * Number of TL_dialogChannel entries in dialogsServerOnly.
+     */
+    public int getChannelDialogsCount() {
+        return channelDialogsCount;
+    }
+
+    private void update(Column column, int index, TLRPC.Dialog dialog, int date, boolean contains) {
+        if (index != -1) {
+            if (contains) {
+                column.move(index, dialog, date);
+            } else {
+                column.remove(index);
+            }
+        } else if (contains) {
+            column.insert(dialog, date);
+        }
+    }
+
+    private void count(TLRPC.Dialog dialog, int delta) {
+        if (dialog instanceof TLRPC.TL_dialog) {
+            dialogsCount += delta;
+        } else if (dialog instanceof TLRPC.TL_dialogChannel) {
+            channelDialogsCount += delta;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegram.messenger;
+
+/**
+ * Bounds how far getDifference and getChannelDifference run ahead of the
+ * slices they apply. The next slice is requested as soon as one arrives, but
+ * at most MAX_SLICES_AHEAD received slices wait to be applied; the request
+ * after that is held back until one of them is.
+ */
+public class DifferenceWindow {
+
+    private static final int MAX_SLICES_AHEAD = 2;
+
+    private int slicesInFlight;
+    private Runnable deferredRequest;
+
+    /**
+     * Called for every received slice; requestNext is null for the last one.
+     */
+    public void onSliceReceived(Runnable requestNext) {
+        synchronized (this) {
+            slicesInFlight++;
+            if (requestNext == null) {
+                return;
+            }
+            if (slicesInFlight >= MAX_SLICES_AHEAD) {
+                deferredRequest = requestNext;
+                return;
+            }
+        }
+        requestNext.run();
+    }
+
+    /**
+     * Called once a received slice has been applied.
+     */
+    public void onSliceApplied() {
+        Runnable request;
+        synchronized (this) {
+            if (slicesInFlight > 0) {
+                slicesInFlight--;
+            }
+            if (deferredRequest == null || slicesInFlight >= MAX_SLICES_AHEAD) {
+                return;
+            }
+            request = deferredRequest;
+            deferredRequest = null;
+        }
+        request.run();
+    }
+
+    public synchronized void clear() {
+        slicesInFlight = 0;
+        deferredRequest = null;
+    }
+}
@@ -15,6 +15,7 @@ import org.telegram.tgnet.TLRPC;
 
 import java.io.RandomAccessFile;
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Scanner;
@@ -24,9 +25,22 @@ public class FileLoadOperation {
     private static class RequestInfo {
         private int requestToken = 0;
         private int offset = 0;
+        private int datacenterId;
+        private long sendTime;
+        private boolean finished;
         private TLRPC.TL_upload_file response = null;
     }
 
+    private static class Range {
+        private int start;
+        private int end;
+
+        private Range(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
     private final static int stateIdle = 0;
     private final static int stateDownloading = 1;
     private final static int stateFailed = 2;
@@ -34,8 +48,10 @@ public class FileLoadOperation {
 
     private final static int downloadChunkSize = 1024 * 32;
     private final static int downloadChunkSizeBig = 1024 * 128;
+    private final static int downloadChunkSizeMax = 1024 * 512;
     private final static int maxDownloadRequests = 4;
     private final static int maxDownloadRequestsBig = 2;
+    private final static int maxDownloadRequestsPositional = 8;
     private final static int bigFileSizeFrom = 1024 * 1024;
 
     private int datacenter_id;
@@ -57,6 +73,12 @@ public class FileLoadOperation {
     private File cacheFileTemp;
     private File cacheFileFinal;
     private File cacheIvTemp;
+    private File cacheRangesTemp;
+
+    private boolean positionalWrites;
+    private int positionalEnd;
+    private ArrayList<Range> downloadedRanges;
+    private RandomAccessFile rangesFile;
 
     private String ext;
     private RandomAccessFile fileOutputStream;
@@ -176,8 +198,19 @@ public class FileLoadOperation {
         if (state != stateIdle) {
             return;
         }
+        positionalWrites = key == null && totalBytesCount > 0;
+        positionalEnd = totalBytesCount;
         currentDownloadChunkSize = totalBytesCount >= bigFileSizeFrom ? downloadChunkSizeBig : downloadChunkSize;
-        currentMaxDownloadRequests = totalBytesCount >= bigFileSizeFrom ? maxDownloadRequestsBig : maxDownloadRequests;
+        if (positionalWrites) {
+            if (totalBytesCount >= bigFileSizeFrom) {
+                currentDownloadChunkSize = FileTransferController.getInstance().getDownloadChunkSize(datacenter_id, downloadChunkSizeBig, downloadChunkSizeBig, downloadChunkSizeMax);
+            } else {
+                currentDownloadChunkSize = FileTransferController.getInstance().getDownloadChunkSize(datacenter_id, downloadChunkSize, downloadChunkSize, downloadChunkSizeBig);
+            }
+            currentMaxDownloadRequests = maxDownloadRequestsPositional;
+        } else {
+            currentMaxDownloadRequests = totalBytesCount >= bigFileSizeFrom ? maxDownloadRequestsBig : maxDownloadRequests;
+        }
         requestInfos = new ArrayList<>(currentMaxDownloadRequests);
         delayedRequestInfos = new ArrayList<>(currentMaxDownloadRequests - 1);
         state = stateDownloading;
@@ -193,11 +226,14 @@ public class FileLoadOperation {
         String fileNameFinal;
         String fileNameTemp;
         String fileNameIv = null;
+        String fileNameRanges = null;
         if (location.volume_id != 0 && location.local_id != 0) {
             fileNameTemp = location.volume_id + "_" + location.local_id + "_temp." + ext;
             fileNameFinal = location.volume_id + "_" + location.local_id + "." + ext;
             if (key != null) {
                 fileNameIv = location.volume_id + "_" + location.local_id + ".iv";
+            } else if (positionalWrites) {
+                fileNameRanges = location.volume_id + "_" + location.local_id + ".ranges";
             }
             if (datacenter_id == Integer.MIN_VALUE || location.volume_id == Integer.MIN_VALUE || datacenter_id == 0) {
                 cleanup();
@@ -214,6 +250,8 @@ public class FileLoadOperation {
             fileNameFinal = datacenter_id + "_" + location.id + ext;
             if (key != null) {
                 fileNameIv = datacenter_id + "_" + location.id + ".iv";
+            } else if (positionalWrites) {
+                fileNameRanges = datacenter_id + "_" + location.id + ".ranges";
             }
             if (datacenter_id == 0 || location.id == 0) {
                 cleanup();
@@ -235,7 +273,10 @@ public class FileLoadOperation {
 
         if (!cacheFileFinal.exists()) {
             cacheFileTemp = new File(tempPath, fileNameTemp);
-            if (cacheFileTemp.exists()) {
+            if (fileNameRanges != null) {
+                cacheRangesTemp = new File(tempPath, fileNameRanges);
+                openDownloadedRanges();
+            } else if (cacheFileTemp.exists()) {
                 downloadedBytes = (int)cacheFileTemp.length();
                 nextDownloadOffset = downloadedBytes = downloadedBytes / currentDownloadChunkSize * currentDownloadChunkSize;
             }
@@ -267,7 +308,7 @@ public class FileLoadOperation {
             } catch (Exception e) {
                 FileLog.e("tmessages", e);
             }
-            if (fileOutputStream == null) {
+            if (fileOutputStream == null || positionalWrites && rangesFile == null) {
                 cleanup();
                 Utilities.stageQueue.postRunnable(new Runnable() {
                     @Override
@@ -314,6 +355,10 @@ public class FileLoadOperation {
                         if (requestInfo.requestToken != 0) {
                             ConnectionsManager.getInstance().cancelRequest(requestInfo.requestToken, true);
                         }
+                        if (!requestInfo.finished) {
+                            requestInfo.finished = true;
+                            FileTransferController.getInstance().onRequestCancelled(requestInfo.datacenterId);
+                        }
                     }
                 }
                 delegate.didFailedLoadingFile(FileLoadOperation.this, 1);
@@ -339,6 +384,15 @@ public class FileLoadOperation {
         } catch (Exception e) {
             FileLog.e("tmessages", e);
         }
+
+        try {
+            if (rangesFile != null) {
+                rangesFile.close();
+                rangesFile = null;
+            }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
         if (delayedRequestInfos != null) {
             for (RequestInfo requestInfo : delayedRequestInfos) {
                 if (requestInfo.response != null) {
@@ -359,6 +413,9 @@ public class FileLoadOperation {
         if (cacheIvTemp != null) {
             cacheIvTemp.delete();
         }
+        if (cacheRangesTemp != null) {
+            cacheRangesTemp.delete();
+        }
         if (cacheFileTemp != null) {
             if (!cacheFileTemp.renameTo(cacheFileFinal)) {
                 if (BuildVars.DEBUG_VERSION) {
@@ -377,6 +434,10 @@ public class FileLoadOperation {
         requestInfos.remove(requestInfo);
         if (error == null) {
             try {
+                if (positionalWrites) {
+                    processPositionalResult(requestInfo);
+                    return;
+                }
                 if (downloadedBytes != requestInfo.offset) {
                     if (state == stateDownloading) {
                         delayedRequestInfos.add(requestInfo);
@@ -451,7 +512,18 @@ public class FileLoadOperation {
                     startDownloadRequest();
                 }
             } else if (error.text.contains("OFFSET_INVALID")) {
-                if (downloadedBytes % currentDownloadChunkSize == 0) {
+                if (positionalWrites) {
+                    positionalEnd = Math.min(positionalEnd, requestInfo.offset);
+                    try {
+                        if (getDownloadedPrefix() >= positionalEnd) {
+                            onFinishLoadingFile();
+                        }
+                    } catch (Exception e) {
+                        FileLog.e("tmessages", e);
+                        cleanup();
+                        delegate.didFailedLoadingFile(FileLoadOperation.this, 0);
+                    }
+                } else if (downloadedBytes % currentDownloadChunkSize == 0) {
                     try {
                         onFinishLoadingFile();
                     } catch (Exception e) {
@@ -477,16 +549,27 @@ public class FileLoadOperation {
     }
 
     private void startDownloadRequest() {
-        if (state != stateDownloading || totalBytesCount > 0 && nextDownloadOffset >= totalBytesCount || requestInfos.size() + delayedRequestInfos.size() >= currentMaxDownloadRequests) {
+        if (positionalWrites) {
+            nextDownloadOffset = getNextMissingOffset(nextDownloadOffset);
+        }
+        int window = FileTransferController.getInstance().getOperationWindow(datacenter_id, currentDownloadChunkSize, currentMaxDownloadRequests);
+        if (state != stateDownloading || totalBytesCount > 0 && nextDownloadOffset >= positionalEnd || requestInfos.size() + delayedRequestInfos.size() >= window) {
             return;
         }
         int count = 1;
         if (totalBytesCount > 0) {
-            count = Math.max(0, currentMaxDownloadRequests - requestInfos.size() - delayedRequestInfos.size());
+            count = Math.max(0, window - requestInfos.size() - delayedRequestInfos.size());
+            count = Math.min(count, FileTransferController.getInstance().getAvailableRequests(datacenter_id));
+            if (count == 0 && requestInfos.isEmpty()) {
+                count = 1;
+            }
         }
 
         for (int a = 0; a < count; a++) {
-            if (totalBytesCount > 0 && nextDownloadOffset >= totalBytesCount) {
+            if (positionalWrites) {
+                nextDownloadOffset = getNextMissingOffset(nextDownloadOffset);
+            }
+            if (totalBytesCount > 0 && nextDownloadOffset >= positionalEnd) {
                 break;
             }
             boolean isLast = totalBytesCount <= 0 || a == count - 1 || totalBytesCount > 0 && nextDownloadOffset + currentDownloadChunkSize >= totalBytesCount;
@@ -499,10 +582,19 @@ public class FileLoadOperation {
             final RequestInfo requestInfo = new RequestInfo();
             requestInfos.add(requestInfo);
             requestInfo.offset = req.offset;
+            requestInfo.datacenterId = datacenter_id;
+            requestInfo.sendTime = System.currentTimeMillis();
+            FileTransferController.getInstance().onRequestSent(datacenter_id);
             requestInfo.requestToken = ConnectionsManager.getInstance().sendRequest(req, new RequestDelegate() {
                 @Override
                 public void run(TLObject response, TLRPC.TL_error error) {
                     requestInfo.response = (TLRPC.TL_upload_file) response;
+                    if (!requestInfo.finished) {
+                        requestInfo.finished = true;
+                        int bytes = requestInfo.response != null && requestInfo.response.bytes != null ? requestInfo.response.bytes.limit() : 0;
+                        boolean failed = error != null && !error.text.contains("FILE_MIGRATE_") && !error.text.contains("OFFSET_INVALID");
+                        FileTransferController.getInstance().onRequestCompleted(requestInfo.datacenterId, requestInfo.sendTime, bytes, !failed);
+                    }
                     processRequestResult(requestInfo, error);
                 }
             }, null, (isForceRequest ? ConnectionsManager.RequestFlagForceDownload : 0) | ConnectionsManager.RequestFlagFailOnServerErrors, datacenter_id, requestsCount % 2 == 0 ? ConnectionsManager.ConnectionTypeDownload : ConnectionsManager.ConnectionTypeDownload2, isLast);
@@ -510,6 +602,151 @@ public class FileLoadOperation {
         }
     }
 
+    /**
+     * Writes a chunk at its own offset, so chunks are stored in the order
+     * they arrive and their buffers are released right after the callback.
+     */
+    private void processPositionalResult(RequestInfo requestInfo) throws Exception {
+        if (state != stateDownloading) {
+            return;
+        }
+        int length = requestInfo.response.bytes != null ? requestInfo.response.bytes.limit() : 0;
+        if (length > 0) {
+            FileChannel channel = fileOutputStream.getChannel();
+            ByteBuffer buffer = requestInfo.response.bytes.buffer;
+            buffer.position(0);
+            long position = requestInfo.offset;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            addDownloadedRange(requestInfo.offset, requestInfo.offset + length);
+            saveDownloadedRanges();
+        }
+        if (length < currentDownloadChunkSize) {
+            positionalEnd = Math.min(positionalEnd, requestInfo.offset + length);
+        }
+        if (state == stateDownloading) {
+            delegate.didChangedLoadProgress(FileLoadOperation.this, Math.min(1.0f, (float) downloadedBytes / (float) totalBytesCount));
+        }
+        if (getDownloadedPrefix() >= positionalEnd) {
+            onFinishLoadingFile();
+        } else {
+            startDownloadRequest();
+        }
+    }
+
+    /**
+     * Loads the ranges of cacheFileTemp that were already written. The
+     * sidecar holds the chunk size, the range count and the start and end
+     * of every range; the stored chunk size is kept so that the missing
+     * offsets stay aligned. A temp file without sidecar was written
+     * sequentially, so its chunk aligned prefix is complete.
+     */
+    private void openDownloadedRanges() {
+        downloadedRanges = new ArrayList<>();
+        boolean tempExists = cacheFileTemp.exists();
+        boolean rangesExist = cacheRangesTemp.exists();
+        boolean loaded = false;
+        try {
+            rangesFile = new RandomAccessFile(cacheRangesTemp, "rws");
+            long len = rangesFile.length();
+            if (tempExists && rangesExist && len >= 8) {
+                int chunkSize = rangesFile.readInt();
+                int count = rangesFile.readInt();
+                if (chunkSize >= downloadChunkSize && chunkSize <= downloadChunkSizeMax && (chunkSize & (chunkSize - 1)) == 0 && count >= 0 && len == 8 + count * 8L) {
+                    currentDownloadChunkSize = chunkSize;
+                    loaded = true;
+                    int lastEnd = -1;
+                    for (int a = 0; a < count; a++) {
+                        int start = rangesFile.readInt();
+                        int end = rangesFile.readInt();
+                        if (start <= lastEnd || end <= start) {
+                            loaded = false;
+                            break;
+                        }
+                        downloadedRanges.add(new Range(start, end));
+                        lastEnd = end;
+                    }
+                }
+            } else if (tempExists && !rangesExist) {
+                int prefix = (int) cacheFileTemp.length() / currentDownloadChunkSize * currentDownloadChunkSize;
+                if (prefix > 0) {
+                    downloadedRanges.add(new Range(0, prefix));
+                }
+                loaded = true;
+            }
+            if (!loaded) {
+                downloadedRanges.clear();
+                if (tempExists) {
+                    cacheFileTemp.delete();
+                }
+            }
+            saveDownloadedRanges();
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+            downloadedRanges.clear();
+        }
+        downloadedBytes = 0;
+        for (int a = 0; a < downloadedRanges.size(); a++) {
+            Range range = downloadedRanges.get(a);
+            downloadedBytes += range.end - range.start;
+        }
+        nextDownloadOffset = 0;
+    }
+
+    private void saveDownloadedRanges() throws Exception {
+        if (rangesFile == null) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(8 + downloadedRanges.size() * 8);
+        buffer.putInt(currentDownloadChunkSize);
+        buffer.putInt(downloadedRanges.size());
+        for (int a = 0; a < downloadedRanges.size(); a++) {
+            Range range = downloadedRanges.get(a);
+            buffer.putInt(range.start);
+            buffer.putInt(range.end);
+        }
+        rangesFile.seek(0);
+        rangesFile.write(buffer.array());
+        rangesFile.setLength(buffer.capacity());
+    }
+
+    private void addDownloadedRange(int start, int end) {
+        int index = 0;
+        while (index < downloadedRanges.size() && downloadedRanges.get(index).end < start) {
+            index++;
+        }
+        Range range = new Range(start, end);
+        while (index < downloadedRanges.size() && downloadedRanges.get(index).start <= range.end) {
+            Range next = downloadedRanges.remove(index);
+            downloadedBytes -= next.end - next.start;
+            range.start = Math.min(range.start, next.start);
+            range.end = Math.max(range.end, next.end);
+        }
+        downloadedRanges.add(index, range);
+        downloadedBytes += range.end - range.start;
+    }
+
+    private int getNextMissingOffset(int offset) {
+        for (int a = 0; a < downloadedRanges.size(); a++) {
+            Range range = downloadedRanges.get(a);
+            if (range.start > offset) {
+                break;
+            }
+            if (range.end > offset) {
+                offset = range.end;
+            }
+        }
+        return offset;
+    }
+
+    private int getDownloadedPrefix() {
+        if (downloadedRanges.isEmpty() || downloadedRanges.get(0).start != 0) {
+            return 0;
+        }
+        return downloadedRanges.get(0).end;
+    }
+
     public void setDelegate(FileLoadOperationDelegate delegate) {
         this.delegate = delegate;
     }
@@ -0,0 +1,160 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegram.messenger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Decides which pending FileLoader operation starts next. Every operation has
+ * a priority from how it was requested, a weight of its type and the time it
+ * has been waiting; the pending operation with the highest score whose type
+ * still has a free slot is started. Waiting adds to the score, so a queued
+ * operation is eventually started ahead of newer ones with a higher priority.
+ * FileLoader's fileLoaderQueue only.
+ */
+public class FileLoadScheduler {
+
+    public static final int TYPE_PHOTO = 0;
+    public static final int TYPE_AUDIO = 1;
+    public static final int TYPE_FILE = 2;
+    public static final int TYPE_UPLOAD = 3;
+    public static final int TYPE_UPLOAD_SMALL = 4;
+
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_VISIBLE = 1;
+    public static final int PRIORITY_USER = 2;
+
+    private static final int[] typeWeights = new int[] {1000, 1500, 0, 0, 0};
+    private static final int priorityStep = 4000;
+    private static final int maxWaitBonus = priorityStep * 2;
+    private static final int maxDownloads = 5;
+
+    private static class Entry {
+        private String key;
+        private Object operation;
+        private int type;
+        private int priority;
+        private long queueTime;
+        private Runnable start;
+    }
+
+    private ArrayList<Entry> pending = new ArrayList<>();
+    private HashMap<String, Entry> pendingByKey = new HashMap<>();
+    private ArrayList<Entry> running = new ArrayList<>();
+    private int[] runningCount = new int[5];
+    private int runningDownloads;
+
+    public void schedule(String key, Object operation, int type, int priority, Runnable start) {
+        Entry entry = new Entry();
+        entry.key = key;
+        entry.operation = operation;
+        entry.type = type;
+        entry.priority = priority;
+        entry.queueTime = System.currentTimeMillis();
+        entry.start = start;
+        pending.add(entry);
+        pendingByKey.put(key, entry);
+        startNext();
+    }
+
+    /**
+     * Raises the priority of a pending operation, returns false if it is not
+     * pending.
+     */
+    public boolean raisePriority(String key, int priority) {
+        Entry entry = pendingByKey.get(key);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.priority < priority) {
+            entry.priority = priority;
+            startNext();
+        }
+        return true;
+    }
+
+    /**
+     * Drops a pending operation, returns false if it is not pending.
+     */
+    public boolean remove(String key) {
+        Entry entry = pendingByKey.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        pending.remove(entry);
+        return true;
+    }
+
+    /**
+     * Called when a started operation finished, failed or was cancelled.
+     */
+    public void finish(Object operation) {
+        for (int a = 0; a < running.size(); a++) {
+            Entry entry = running.get(a);
+            if (entry.operation == operation) {
+                running.remove(a);
+                runningCount[entry.type]--;
+                if (isDownload(entry.type)) {
+                    runningDownloads--;
+                }
+                startNext();
+                return;
+            }
+        }
+    }
+
+    private void startNext() {
+        while (!pending.isEmpty()) {
+            long currentTime = System.currentTimeMillis();
+            Entry best = null;
+            long bestScore = 0;
+            for (int a = 0; a < pending.size(); a++) {
+                Entry entry = pending.get(a);
+                if (!canStart(entry)) {
+                    continue;
+                }
+                long score = getScore(entry, currentTime);
+                if (best == null || score > bestScore) {
+                    best = entry;
+                    bestScore = score;
+                }
+            }
+            if (best == null) {
+                return;
+            }
+            pending.remove(best);
+            pendingByKey.remove(best.key);
+            running.add(best);
+            runningCount[best.type]++;
+            if (isDownload(best.type)) {
+                runningDownloads++;
+            }
+            best.start.run();
+        }
+    }
+
+    private boolean canStart(Entry entry) {
+        if (isDownload(entry.type)) {
+            if (runningDownloads >= maxDownloads) {
+                return false;
+            }
+            return runningCount[entry.type] < (entry.priority >= PRIORITY_VISIBLE ? 3 : 1);
+        }
+        return runningCount[entry.type] < 1;
+    }
+
+    private long getScore(Entry entry, long currentTime) {
+        return entry.priority * priorityStep + typeWeights[entry.type] + Math.min(maxWaitBonus, currentTime - entry.queueTime);
+    }
+
+    private static boolean isDownload(int type) {
+        return type == TYPE_PHOTO || type == TYPE_AUDIO || type == TYPE_FILE;
+    }
+}
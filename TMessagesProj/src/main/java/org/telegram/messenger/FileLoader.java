@@ -14,7 +14,6 @@ import org.telegram.tgnet.TLRPC;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
 
@@ -43,11 +42,7 @@ public class FileLoader {
     private HashMap<Integer, File> mediaDirs = null;
     private volatile DispatchQueue fileLoaderQueue = new DispatchQueue("fileUploadQueue");
 
-    private LinkedList<FileUploadOperation> uploadOperationQueue = new LinkedList<>();
-    private LinkedList<FileUploadOperation> uploadSmallOperationQueue = new LinkedList<>();
-    private LinkedList<FileLoadOperation> loadOperationQueue = new LinkedList<>();
-    private LinkedList<FileLoadOperation> audioLoadOperationQueue = new LinkedList<>();
-    private LinkedList<FileLoadOperation> photoLoadOperationQueue = new LinkedList<>();
+    private FileLoadScheduler scheduler = new FileLoadScheduler();
     private ConcurrentHashMap<String, FileUploadOperation> uploadOperationPaths = new ConcurrentHashMap<>();
     private ConcurrentHashMap<String, FileUploadOperation> uploadOperationPathsEnc = new ConcurrentHashMap<>();
     private ConcurrentHashMap<String, FileLoadOperation> loadOperationPaths = new ConcurrentHashMap<>();
@@ -55,12 +50,6 @@ public class FileLoader {
 
     private FileLoaderDelegate delegate = null;
 
-    private int currentLoadOperationsCount = 0;
-    private int currentAudioLoadOperationsCount = 0;
-    private int currentPhotoLoadOperationsCount = 0;
-    private int currentUploadOperationsCount = 0;
-    private int currentUploadSmallOperationsCount = 0;
-
     private static volatile FileLoader Instance = null;
 
     public static FileLoader getInstance() {
@@ -107,8 +96,13 @@ public class FileLoader {
                 }
                 uploadSizes.remove(location);
                 if (operation != null) {
-                    uploadOperationQueue.remove(operation);
-                    uploadSmallOperationQueue.remove(operation);
+                    if (scheduler.remove(getUploadKey(location, enc))) {
+                        if (!enc) {
+                            uploadOperationPaths.remove(location);
+                        } else {
+                            uploadOperationPathsEnc.remove(location);
+                        }
+                    }
                     operation.cancel();
                 }
             }
@@ -170,7 +164,7 @@ public class FileLoader {
                 }
                 operation.delegate = new FileUploadOperation.FileUploadOperationDelegate() {
                     @Override
-                    public void didFinishUploadingFile(FileUploadOperation operation, final TLRPC.InputFile inputFile, final TLRPC.InputEncryptedFile inputEncryptedFile, final byte[] key, final byte[] iv) {
+                    public void didFinishUploadingFile(final FileUploadOperation operation, final TLRPC.InputFile inputFile, final TLRPC.InputEncryptedFile inputEncryptedFile, final byte[] key, final byte[] iv) {
                         fileLoaderQueue.postRunnable(new Runnable() {
                             @Override
                             public void run() {
@@ -179,25 +173,7 @@ public class FileLoader {
                                 } else {
                                     uploadOperationPaths.remove(location);
                                 }
-                                if (small) {
-                                    currentUploadSmallOperationsCount--;
-                                    if (currentUploadSmallOperationsCount < 1) {
-                                        FileUploadOperation operation = uploadSmallOperationQueue.poll();
-                                        if (operation != null) {
-                                            currentUploadSmallOperationsCount++;
-                                            operation.start();
-                                        }
-                                    }
-                                } else {
-                                    currentUploadOperationsCount--;
-                                    if (currentUploadOperationsCount < 1) {
-                                        FileUploadOperation operation = uploadOperationQueue.poll();
-                                        if (operation != null) {
-                                            currentUploadOperationsCount++;
-                                            operation.start();
-                                        }
-                                    }
-                                }
+                                scheduler.finish(operation);
                                 if (delegate != null) {
                                     delegate.fileDidUploaded(location, inputFile, inputEncryptedFile, key, iv);
                                 }
@@ -218,25 +194,7 @@ public class FileLoader {
                                 if (delegate != null) {
                                     delegate.fileDidFailedUpload(location, encrypted);
                                 }
-                                if (small) {
-                                    currentUploadSmallOperationsCount--;
-                                    if (currentUploadSmallOperationsCount < 1) {
-                                        FileUploadOperation operation = uploadSmallOperationQueue.poll();
-                                        if (operation != null) {
-                                            currentUploadSmallOperationsCount++;
-                                            operation.start();
-                                        }
-                                    }
-                                } else {
-                                    currentUploadOperationsCount--;
-                                    if (currentUploadOperationsCount < 1) {
-                                        FileUploadOperation operation = uploadOperationQueue.poll();
-                                        if (operation != null) {
-                                            currentUploadOperationsCount++;
-                                            operation.start();
-                                        }
-                                    }
-                                }
+                                scheduler.finish(operation);
                             }
                         });
                     }
@@ -248,21 +206,13 @@ public class FileLoader {
                         }
                     }
                 };
-                if (small) {
-                    if (currentUploadSmallOperationsCount < 1) {
-                        currentUploadSmallOperationsCount++;
-                        operation.start();
-                    } else {
-                        uploadSmallOperationQueue.add(operation);
-                    }
-                } else {
-                    if (currentUploadOperationsCount < 1) {
-                        currentUploadOperationsCount++;
-                        operation.start();
-                    } else {
-                        uploadOperationQueue.add(operation);
+                final FileUploadOperation operationToStart = operation;
+                scheduler.schedule(getUploadKey(location, encrypted), operation, small ? FileLoadScheduler.TYPE_UPLOAD_SMALL : FileLoadScheduler.TYPE_UPLOAD, FileLoadScheduler.PRIORITY_NORMAL, new Runnable() {
+                    @Override
+                    public void run() {
+                        operationToStart.start();
                     }
-                }
+                });
             }
         });
     }
@@ -310,13 +260,7 @@ public class FileLoader {
                 FileLoadOperation operation = loadOperationPaths.get(fileName);
                 if (operation != null) {
                     loadOperationPaths.remove(fileName);
-                    if (audio != null) {
-                        audioLoadOperationQueue.remove(operation);
-                    } else if (location != null) {
-                        photoLoadOperationQueue.remove(operation);
-                    } else {
-                        loadOperationQueue.remove(operation);
-                    }
+                    scheduler.remove(fileName);
                     operation.cancel();
                 }
             }
@@ -342,26 +286,38 @@ public class FileLoader {
     }
 
     public void loadFile(TLRPC.Video video, boolean force) {
-        loadFile(video, null, null, null, null, 0, force, video != null && video.key != null);
+        loadFile(video, null, null, null, null, 0, getPriority(force), video != null && video.key != null);
     }
 
     public void loadFile(TLRPC.PhotoSize photo, String ext, boolean cacheOnly) {
-        loadFile(null, null, null, photo.location, ext, photo.size, false, cacheOnly || (photo != null && photo.size == 0 || photo.location.key != null));
+        loadFile(null, null, null, photo.location, ext, photo.size, FileLoadScheduler.PRIORITY_NORMAL, cacheOnly || (photo != null && photo.size == 0 || photo.location.key != null));
     }
 
     public void loadFile(TLRPC.Document document, boolean force, boolean cacheOnly) {
-        loadFile(null, document, null, null, null, 0, force, cacheOnly || document != null && document.key != null);
+        loadFile(null, document, null, null, null, 0, getPriority(force), cacheOnly || document != null && document.key != null);
     }
 
     public void loadFile(TLRPC.Audio audio, boolean force) {
-        loadFile(null, null, audio, null, null, 0, false, audio != null && audio.key != null);
+        loadFile(null, null, audio, null, null, 0, FileLoadScheduler.PRIORITY_NORMAL, audio != null && audio.key != null);
     }
 
+    /**
+     * Used by ImageLoader for images shown by an ImageReceiver, so the load
+     * is scheduled as visible.
+     */
     public void loadFile(TLRPC.FileLocation location, String ext, int size, boolean cacheOnly) {
-        loadFile(null, null, null, location, ext, size, true, cacheOnly || size == 0 || (location != null && location.key != null));
+        loadFile(null, null, null, location, ext, size, FileLoadScheduler.PRIORITY_VISIBLE, cacheOnly || size == 0 || (location != null && location.key != null));
+    }
+
+    private static int getPriority(boolean force) {
+        return force ? FileLoadScheduler.PRIORITY_USER : FileLoadScheduler.PRIORITY_NORMAL;
+    }
+
+    private static String getUploadKey(String location, boolean encrypted) {
+        return (encrypted ? "ue_" : "u_") + location;
     }
 
-    private void loadFile(final TLRPC.Video video, final TLRPC.Document document, final TLRPC.Audio audio, final TLRPC.FileLocation location, final String locationExt, final int locationSize, final boolean force, final boolean cacheOnly) {
+    private void loadFile(final TLRPC.Video video, final TLRPC.Document document, final TLRPC.Audio audio, final TLRPC.FileLocation location, final String locationExt, final int locationSize, final int priority, final boolean cacheOnly) {
         fileLoaderQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
@@ -382,23 +338,8 @@ public class FileLoader {
                 FileLoadOperation operation;
                 operation = loadOperationPaths.get(fileName);
                 if (operation != null) {
-                    if (force) {
-                        LinkedList<FileLoadOperation> downloadQueue;
-                        if (audio != null) {
-                            downloadQueue = audioLoadOperationQueue;
-                        } else if (location != null) {
-                            downloadQueue = photoLoadOperationQueue;
-                        } else {
-                            downloadQueue = loadOperationQueue;
-                        }
-                        if (downloadQueue != null) {
-                            int index = downloadQueue.indexOf(operation);
-                            if (index != -1) {
-                                downloadQueue.remove(index);
-                                downloadQueue.add(0, operation);
-                                operation.setForceRequest(true);
-                            }
-                        }
+                    if (scheduler.raisePriority(fileName, priority) && priority != FileLoadScheduler.PRIORITY_NORMAL) {
+                        operation.setForceRequest(true);
                     }
                     return;
                 }
@@ -434,12 +375,12 @@ public class FileLoader {
                         if (delegate != null) {
                             delegate.fileDidLoaded(finalFileName, finalFile, finalType);
                         }
-                        checkDownloadQueue(audio, location, finalFileName);
+                        checkDownloadQueue(operation, finalFileName);
                     }
 
                     @Override
                     public void didFailedLoadingFile(FileLoadOperation operation, int canceled) {
-                        checkDownloadQueue(audio, location, finalFileName);
+                        checkDownloadQueue(operation, finalFileName);
                         if (delegate != null) {
                             delegate.fileDidFailedLoad(finalFileName, canceled);
                         }
@@ -452,91 +393,31 @@ public class FileLoader {
                         }
                     }
                 });
-                int maxCount = force ? 3 : 1;
+                int schedulerType;
                 if (audio != null) {
-                    if (currentAudioLoadOperationsCount < maxCount) {
-                        currentAudioLoadOperationsCount++;
-                        operation.start();
-                    } else {
-                        if (force) {
-                            audioLoadOperationQueue.add(0, operation);
-                        } else {
-                            audioLoadOperationQueue.add(operation);
-                        }
-                    }
+                    schedulerType = FileLoadScheduler.TYPE_AUDIO;
                 } else if (location != null) {
-                    if (currentPhotoLoadOperationsCount < maxCount) {
-                        currentPhotoLoadOperationsCount++;
-                        operation.start();
-                    } else {
-                        if (force) {
-                            photoLoadOperationQueue.add(0, operation);
-                        } else {
-                            photoLoadOperationQueue.add(operation);
-                        }
-                    }
+                    schedulerType = FileLoadScheduler.TYPE_PHOTO;
                 } else {
-                    if (currentLoadOperationsCount < maxCount) {
-                        currentLoadOperationsCount++;
-                        operation.start();
-                    } else {
-                        if (force) {
-                            loadOperationQueue.add(0, operation);
-                        } else {
-                            loadOperationQueue.add(operation);
-                        }
-                    }
+                    schedulerType = FileLoadScheduler.TYPE_FILE;
                 }
+                final FileLoadOperation operationToStart = operation;
+                scheduler.schedule(fileName, operation, schedulerType, priority, new Runnable() {
+                    @Override
+                    public void run() {
+                        operationToStart.start();
+                    }
+                });
             }
         });
     }
 
-    private void checkDownloadQueue(final TLRPC.Audio audio, final TLRPC.FileLocation location, final String arg1) {
+    private void checkDownloadQueue(final FileLoadOperation operation, final String arg1) {
         fileLoaderQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                loadOperationPaths.remove(arg1);
-                FileLoadOperation operation;
-                if (audio != null) {
-                    currentAudioLoadOperationsCount--;
-                    if (!audioLoadOperationQueue.isEmpty()) {
-                        operation = audioLoadOperationQueue.get(0);
-                        int maxCount = operation.isForceRequest() ? 3 : 1;
-                        if (currentAudioLoadOperationsCount < maxCount) {
-                            operation = audioLoadOperationQueue.poll();
-                            if (operation != null) {
-                                currentAudioLoadOperationsCount++;
-                                operation.start();
-                            }
-                        }
-                    }
-                } else if (location != null) {
-                    currentPhotoLoadOperationsCount--;
-                    if (!photoLoadOperationQueue.isEmpty()) {
-                        operation = photoLoadOperationQueue.get(0);
-                        int maxCount = operation.isForceRequest() ? 3 : 1;
-                        if (currentPhotoLoadOperationsCount < maxCount) {
-                            operation = photoLoadOperationQueue.poll();
-                            if (operation != null) {
-                                currentPhotoLoadOperationsCount++;
-                                operation.start();
-                            }
-                        }
-                    }
-                } else {
-                    currentLoadOperationsCount--;
-                    if (!loadOperationQueue.isEmpty()) {
-                        operation = loadOperationQueue.get(0);
-                        int maxCount = operation.isForceRequest() ? 3 : 1;
-                        if (currentLoadOperationsCount < maxCount) {
-                            operation = loadOperationQueue.poll();
-                            if (operation != null) {
-                                currentLoadOperationsCount++;
-                                operation.start();
-                            }
-                        }
-                    }
-                }
+                loadOperationPaths.remove(arg1, operation);
+                scheduler.finish(operation);
             }
         });
     }
@@ -763,6 +644,7 @@ public class FileLoader {
                         }
                     }
                 }
+                BitmapDiskCache.getInstance().removeForSources(files);
             }
         });
     }
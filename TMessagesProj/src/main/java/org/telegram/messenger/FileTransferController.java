@@ -0,0 +1,224 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegram.messenger;
+
+import android.util.SparseArray;
+
+import java.util.Locale;
+
+/**
+ * Measures round trip time and throughput of file requests per datacenter
+ * and derives chunk sizes and request windows from them. Every datacenter
+ * has a shared window of requests in flight that grows by one request per
+ * window of answers while the round trip time stays close to the smallest
+ * one seen, and is halved when answers queue up or requests fail.
+ */
+public class FileTransferController {
+
+    private final static int minWindow = 2;
+    private final static int maxWindow = 32;
+    private final static int initialWindow = 8;
+    private final static int minChunkSize = 1024 * 32;
+    private final static int maxChunkSize = 1024 * 512;
+    private final static int throughputInterval = 1000;
+
+    private static class DatacenterStats {
+        private int inFlight;
+        private float window = initialWindow;
+        private float rtt;
+        private long minRtt = Long.MAX_VALUE;
+        private long lastDecreaseTime;
+        private float throughput;
+        private long intervalStart;
+        private long intervalBytes;
+        private long totalBytes;
+        private int requestsCount;
+        private int failedCount;
+    }
+
+    private SparseArray<DatacenterStats> stats = new SparseArray<>();
+
+    private static volatile FileTransferController Instance = null;
+
+    public static FileTransferController getInstance() {
+        FileTransferController localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (FileTransferController.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new FileTransferController();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    /**
+     * Chunk size for a download of totalBytes from datacenterId, between
+     * minSize and maxSize, chosen so that a few chunks cover the
+     * bandwidth-delay product. Returns defaultSize until there are samples.
+     */
+    public synchronized int getDownloadChunkSize(int datacenterId, int defaultSize, int minSize, int maxSize) {
+        long bdp = getBandwidthDelayProduct(datacenterId);
+        if (bdp == 0) {
+            return defaultSize;
+        }
+        return clampChunkSize(bdp / 4, minSize, maxSize);
+    }
+
+    /**
+     * Part size for an upload, at least minSize. Several parts are in flight
+     * at a time, so a few parts cover the bandwidth-delay product.
+     */
+    public synchronized int getUploadChunkSize(int datacenterId, int minSize) {
+        long bdp = getBandwidthDelayProduct(datacenterId);
+        if (bdp == 0) {
+            return minSize;
+        }
+        return clampChunkSize(bdp / 4, minSize, maxChunkSize);
+    }
+
+    /**
+     * Number of requests one operation should keep in flight, at most
+     * maxRequests.
+     */
+    public synchronized int getOperationWindow(int datacenterId, int chunkSize, int maxRequests) {
+        long bdp = getBandwidthDelayProduct(datacenterId);
+        if (bdp == 0) {
+            return maxRequests;
+        }
+        return Math.max(1, Math.min(maxRequests, (int) ((bdp + chunkSize - 1) / chunkSize) + 1));
+    }
+
+    /**
+     * Number of requests that can be sent to datacenterId now without
+     * exceeding its window.
+     */
+    public synchronized int getAvailableRequests(int datacenterId) {
+        DatacenterStats dcStats = getStats(datacenterId);
+        return Math.max(0, (int) dcStats.window - dcStats.inFlight);
+    }
+
+    public synchronized void onRequestSent(int datacenterId) {
+        getStats(datacenterId).inFlight++;
+    }
+
+    public synchronized void onRequestCancelled(int datacenterId) {
+        DatacenterStats dcStats = getStats(datacenterId);
+        if (dcStats.inFlight > 0) {
+            dcStats.inFlight--;
+        }
+    }
+
+    /**
+     * Called for every answered request, sendTime is the time the request
+     * was sent, bytes the size of the transferred chunk.
+     */
+    public synchronized void onRequestCompleted(int datacenterId, long sendTime, int bytes, boolean success) {
+        DatacenterStats dcStats = getStats(datacenterId);
+        if (dcStats.inFlight > 0) {
+            dcStats.inFlight--;
+        }
+        long currentTime = System.currentTimeMillis();
+        dcStats.requestsCount++;
+        if (!success) {
+            dcStats.failedCount++;
+            decreaseWindow(dcStats, currentTime);
+            return;
+        }
+        long rtt = Math.max(1, currentTime - sendTime);
+        dcStats.minRtt = Math.min(dcStats.minRtt, rtt);
+        dcStats.rtt = dcStats.rtt == 0 ? rtt : dcStats.rtt * 0.875f + rtt * 0.125f;
+        if (rtt > dcStats.minRtt * 2 + 50) {
+            decreaseWindow(dcStats, currentTime);
+        } else if (dcStats.window < maxWindow) {
+            dcStats.window = Math.min(maxWindow, dcStats.window + 1.0f / dcStats.window);
+        }
+
+        dcStats.totalBytes += bytes;
+        if (dcStats.intervalStart == 0) {
+            dcStats.intervalStart = sendTime;
+        }
+        dcStats.intervalBytes += bytes;
+        long elapsed = currentTime - dcStats.intervalStart;
+        if (elapsed >= throughputInterval) {
+            float throughput = dcStats.intervalBytes * 1000.0f / elapsed;
+            dcStats.throughput = dcStats.throughput == 0 ? throughput : dcStats.throughput * 0.75f + throughput * 0.25f;
+            dcStats.intervalStart = dcStats.inFlight > 0 ? currentTime : 0;
+            dcStats.intervalBytes = 0;
+        }
+    }
+
+    /**
+     * Smoothed throughput in bytes per second, 0 if not measured yet.
+     */
+    public synchronized float getThroughput(int datacenterId) {
+        DatacenterStats dcStats = stats.get(datacenterId);
+        return dcStats != null ? dcStats.throughput : 0;
+    }
+
+    /**
+     * Smoothed round trip time in milliseconds, 0 if not measured yet.
+     */
+    public synchronized float getRtt(int datacenterId) {
+        DatacenterStats dcStats = stats.get(datacenterId);
+        return dcStats != null ? dcStats.rtt : 0;
+    }
+
+    public synchronized String getStatsString() {
+        StringBuilder builder = new StringBuilder();
+        for (int a = 0; a < stats.size(); a++) {
+            DatacenterStats dcStats = stats.valueAt(a);
+            if (builder.length() != 0) {
+                builder.append("\n");
+            }
+            builder.append(String.format(Locale.US, "dc %d: %.1f KB/s rtt %.0f ms (min %d) window %.1f in flight %d requests %d failed %d total %d KB",
+                    stats.keyAt(a), dcStats.throughput / 1024, dcStats.rtt, dcStats.minRtt == Long.MAX_VALUE ? 0 : dcStats.minRtt,
+                    dcStats.window, dcStats.inFlight, dcStats.requestsCount, dcStats.failedCount, dcStats.totalBytes / 1024));
+        }
+        return builder.toString();
+    }
+
+    private DatacenterStats getStats(int datacenterId) {
+        DatacenterStats dcStats = stats.get(datacenterId);
+        if (dcStats == null) {
+            dcStats = new DatacenterStats();
+            stats.put(datacenterId, dcStats);
+        }
+        return dcStats;
+    }
+
+    private long getBandwidthDelayProduct(int datacenterId) {
+        DatacenterStats dcStats = stats.get(datacenterId);
+        if (dcStats == null || dcStats.throughput == 0 || dcStats.rtt == 0) {
+            return 0;
+        }
+        return (long) (dcStats.throughput * dcStats.rtt / 1000);
+    }
+
+    private void decreaseWindow(DatacenterStats dcStats, long currentTime) {
+        if (currentTime - dcStats.lastDecreaseTime < dcStats.rtt) {
+            return;
+        }
+        dcStats.lastDecreaseTime = currentTime;
+        dcStats.window = Math.max(minWindow, dcStats.window / 2);
+    }
+
+    /**
+     * Largest power of two not above size, limited to [minSize, maxSize].
+     * Both limits are powers of two, so the result divides 1 MB.
+     */
+    private static int clampChunkSize(long size, int minSize, int maxSize) {
+        int result = Math.max(minSize, minChunkSize);
+        while (result * 2 <= size && result * 2 <= maxSize) {
+            result *= 2;
+        }
+        return Math.min(result, maxChunkSize);
+    }
+}
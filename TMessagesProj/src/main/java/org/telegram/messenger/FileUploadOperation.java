@@ -19,21 +19,50 @@ import org.telegram.tgnet.TLRPC;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Locale;
 
+/**
+ * Uploads a file in parts. Parts are read, encrypted and hashed in order on
+ * uploadPrepareQueue, and the window of parts the FileTransferController
+ * allows is in flight at once. All operations together never prepare or
+ * send more parts than the native layer runs at once, so a part's time in
+ * flight is its time on the wire. The stored resume info only advances over
+ * parts confirmed without gaps.
+ */
 public class FileUploadOperation {
+
+    private static class PartInfo {
+        private int partNum;
+        private long offset;
+        private int size;
+        private byte[] ivAfter;
+        private long sendTime;
+        private int requestToken;
+        private boolean confirmed;
+    }
+
+    // ConnectionsManager runs at most this many upload requests at once
+    private final static int maxNativeUploadRequests = 5;
+    private final static int maxUploadRequests = 4;
+    private final static int maxUploadRequestsBig = maxNativeUploadRequests;
+    private static DispatchQueue uploadPrepareQueue = new DispatchQueue("uploadPrepareQueue");
+    // parts prepared or sent by all operations and the ones waiting for a slot, stageQueue only
+    private static int uploadSlotsInUse;
+    private static ArrayList<FileUploadOperation> operationsWaitingForSlot = new ArrayList<>();
+
     private int uploadChunkSize = 1024 * 32;
     private String uploadingFilePath;
-    public int state = 0;
+    public volatile int state = 0;
     private byte[] readBuffer;
     public FileUploadOperationDelegate delegate;
-    private int requestToken = 0;
     private int currentPartNum = 0;
     private long currentFileId;
-    private boolean isLastPart = false;
     private long totalFileSize = 0;
     private int totalPartsCount = 0;
     private long currentUploaded = 0;
@@ -51,6 +80,13 @@ public class FileUploadOperation {
     private MessageDigest mdEnc = null;
     private boolean started = false;
 
+    private long readOffset;
+    private boolean lastPartRead;
+    private int preparingCount;
+    private boolean waitingForData;
+    private boolean allPartsPrepared;
+    private ArrayList<PartInfo> sentParts = new ArrayList<>();
+
     public interface FileUploadOperationDelegate {
         void didFinishUploadingFile(FileUploadOperation operation, TLRPC.InputFile inputFile, TLRPC.InputEncryptedFile inputEncryptedFile, byte[] key, byte[] iv);
         void didFailedUploadingFile(FileUploadOperation operation);
@@ -81,13 +117,40 @@ public class FileUploadOperation {
             return;
         }
         state = 2;
-        if (requestToken != 0) {
-            ConnectionsManager.getInstance().cancelRequest(requestToken, true);
-        }
+        Utilities.stageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                cancelRequests();
+            }
+        });
         delegate.didFailedUploadingFile(this);
         cleanup();
     }
 
+    private void cancelRequests() {
+        for (int a = 0; a < sentParts.size(); a++) {
+            PartInfo partInfo = sentParts.get(a);
+            if (partInfo.requestToken != 0) {
+                ConnectionsManager.getInstance().cancelRequest(partInfo.requestToken, true);
+                partInfo.requestToken = 0;
+                FileTransferController.getInstance().onRequestCancelled(ConnectionsManager.DEFAULT_DATACENTER_ID);
+                releaseUploadSlot();
+            }
+        }
+        sentParts.clear();
+    }
+
+    private static void releaseUploadSlot() {
+        uploadSlotsInUse--;
+        if (!operationsWaitingForSlot.isEmpty()) {
+            ArrayList<FileUploadOperation> operations = new ArrayList<>(operationsWaitingForSlot);
+            operationsWaitingForSlot.clear();
+            for (int a = 0; a < operations.size(); a++) {
+                operations.get(a).scheduleParts();
+            }
+        }
+    }
+
     private void cleanup() {
         SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("uploadinfo", Activity.MODE_PRIVATE);
         preferences.edit().remove(fileKey + "_time").
@@ -96,7 +159,8 @@ public class FileUploadOperation {
                 remove(fileKey + "_id").
                 remove(fileKey + "_iv").
                 remove(fileKey + "_key").
-                remove(fileKey + "_ivc").commit();
+                remove(fileKey + "_ivc").
+                remove(fileKey + "_chunk").commit();
         try {
             if (stream != null) {
                 stream.close();
@@ -120,9 +184,8 @@ public class FileUploadOperation {
                         storeFileUploadInfo(preferences);
                     }
                 }
-                if (requestToken == 0) {
-                    startUploadRequest();
-                }
+                waitingForData = false;
+                startUploadRequest();
             }
         });
     }
@@ -132,6 +195,7 @@ public class FileUploadOperation {
         editor.putInt(fileKey + "_time", uploadStartTime);
         editor.putLong(fileKey + "_size", totalFileSize);
         editor.putLong(fileKey + "_id", currentFileId);
+        editor.putInt(fileKey + "_chunk", uploadChunkSize);
         editor.remove(fileKey + "_uploaded");
         if (isEncrypted) {
             editor.putString(fileKey + "_iv", Utilities.bytesToHex(iv));
@@ -146,8 +210,6 @@ public class FileUploadOperation {
             return;
         }
 
-        TLObject finalRequest;
-
         try {
             started = true;
             if (stream == null) {
@@ -178,12 +240,20 @@ public class FileUploadOperation {
                 }
 
                 uploadChunkSize *= 1024;
-                totalPartsCount = (int) (totalFileSize + uploadChunkSize - 1) / uploadChunkSize;
-                readBuffer = new byte[uploadChunkSize];
 
                 fileKey = Utilities.MD5(uploadingFilePath + (isEncrypted ? "enc" : ""));
                 SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("uploadinfo", Activity.MODE_PRIVATE);
                 long fileSize = preferences.getLong(fileKey + "_size", 0);
+                if (estimatedSize == 0 && fileSize == totalFileSize) {
+                    int savedChunkSize = preferences.getInt(fileKey + "_chunk", 0);
+                    if (savedChunkSize >= uploadChunkSize && 1024 * 512 % savedChunkSize == 0) {
+                        uploadChunkSize = savedChunkSize;
+                    }
+                } else {
+                    uploadChunkSize = FileTransferController.getInstance().getUploadChunkSize(ConnectionsManager.DEFAULT_DATACENTER_ID, uploadChunkSize);
+                }
+                totalPartsCount = (int) (totalFileSize + uploadChunkSize - 1) / uploadChunkSize;
+                readBuffer = new byte[uploadChunkSize];
                 uploadStartTime = (int)(System.currentTimeMillis() / 1000);
                 boolean rewrite = false;
                 if (estimatedSize == 0 && fileSize == totalFileSize) {
@@ -224,9 +294,6 @@ public class FileUploadOperation {
                                             toAdd += 16 - read % 16;
                                         }
                                         NativeByteBuffer sendBuffer = new NativeByteBuffer(read + toAdd);
-                                        if (read != uploadChunkSize || totalPartsCount == currentPartNum + 1) {
-                                            isLastPart = true;
-                                        }
                                         sendBuffer.writeBytes(readBuffer, 0, read);
                                         if (isEncrypted) {
                                             for (int a = 0; a < toAdd; a++) {
@@ -295,39 +362,109 @@ public class FileUploadOperation {
                         FileLog.e("tmessages", e);
                     }
                 }
-            } else if (estimatedSize == 0) {
-                if (saveInfoTimes >= 4) {
-                    saveInfoTimes = 0;
-                }
-                if (isBigFile && currentUploaded % (1024 * 1024) == 0 || !isBigFile && saveInfoTimes == 0) {
-                    SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("uploadinfo", Activity.MODE_PRIVATE);
-                    SharedPreferences.Editor editor = preferences.edit();
-                    editor.putLong(fileKey + "_uploaded", currentUploaded);
-                    if (isEncrypted) {
-                        editor.putString(fileKey + "_ivc", Utilities.bytesToHex(ivChange));
-                    }
-                    editor.commit();
+                readOffset = currentUploaded;
+            }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+            delegate.didFailedUploadingFile(this);
+            cleanup();
+            return;
+        }
+        scheduleParts();
+    }
+
+    private void scheduleParts() {
+        int window = FileTransferController.getInstance().getOperationWindow(ConnectionsManager.DEFAULT_DATACENTER_ID, uploadChunkSize, isBigFile ? maxUploadRequestsBig : maxUploadRequests);
+        while (state == 1 && !allPartsPrepared && !waitingForData && preparingCount + sentParts.size() < window) {
+            if (uploadSlotsInUse >= maxNativeUploadRequests) {
+                if (!operationsWaitingForSlot.contains(this)) {
+                    operationsWaitingForSlot.add(this);
                 }
-                saveInfoTimes++;
+                break;
             }
+            uploadSlotsInUse++;
+            preparingCount++;
+            uploadPrepareQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    prepareNextPart();
+                }
+            });
+        }
+    }
 
+    /**
+     * Reads the next part of the file into a send buffer, encrypts it and
+     * adds it to the checksum. uploadPrepareQueue only.
+     */
+    private void prepareNextPart() {
+        if (state != 1) {
+            Utilities.stageQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    preparingCount--;
+                    releaseUploadSlot();
+                }
+            });
+            return;
+        }
+        if (lastPartRead) {
+            Utilities.stageQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    preparingCount--;
+                    releaseUploadSlot();
+                    if (state == 1 && sentParts.isEmpty()) {
+                        onPartConfirmed();
+                    }
+                }
+            });
+            return;
+        }
+        final PartInfo partInfo;
+        final NativeByteBuffer sendBuffer;
+        final boolean lastPart;
+        try {
+            FileChannel channel = stream.getChannel();
+            int read;
             if (estimatedSize != 0) {
-                long size = stream.getChannel().size();
-                if (currentUploaded + uploadChunkSize > size) {
+                if (readOffset + uploadChunkSize > channel.size()) {
+                    Utilities.stageQueue.postRunnable(new Runnable() {
+                        @Override
+                        public void run() {
+                            preparingCount--;
+                            releaseUploadSlot();
+                            if (estimatedSize != 0) {
+                                waitingForData = true;
+                            } else {
+                                scheduleParts();
+                            }
+                        }
+                    });
                     return;
                 }
+                read = uploadChunkSize;
+            } else {
+                read = (int) Math.max(0, Math.min(uploadChunkSize, totalFileSize - readOffset));
             }
-
-            int read = stream.read(readBuffer);
             int toAdd = 0;
             if (isEncrypted && read % 16 != 0) {
                 toAdd += 16 - read % 16;
             }
-            NativeByteBuffer sendBuffer = new NativeByteBuffer(read + toAdd);
-            if (read != uploadChunkSize || estimatedSize == 0 && totalPartsCount == currentPartNum + 1) {
-                isLastPart = true;
+            sendBuffer = new NativeByteBuffer(read + toAdd);
+            if (read > 0) {
+                sendBuffer.limit(read);
+                int done = 0;
+                while (done < read) {
+                    int count = channel.read(sendBuffer.buffer, readOffset + done);
+                    if (count < 0) {
+                        sendBuffer.reuse();
+                        throw new IOException("unexpected end of " + uploadingFilePath);
+                    }
+                    done += count;
+                }
+                sendBuffer.limit(read + toAdd);
             }
-            sendBuffer.writeBytes(readBuffer, 0, read);
             if (isEncrypted) {
                 for (int a = 0; a < toAdd; a++) {
                     sendBuffer.writeByte(0);
@@ -337,81 +474,158 @@ public class FileUploadOperation {
             sendBuffer.rewind();
             if (!isBigFile) {
                 mdEnc.update(sendBuffer.buffer);
+                sendBuffer.rewind();
             }
-            if (isBigFile) {
-                TLRPC.TL_upload_saveBigFilePart req = new TLRPC.TL_upload_saveBigFilePart();
-                req.file_part = currentPartNum;
-                req.file_id = currentFileId;
-                if (estimatedSize != 0) {
-                    req.file_total_parts = -1;
-                } else {
-                    req.file_total_parts = totalPartsCount;
-                }
-                req.bytes = sendBuffer;
-                finalRequest = req;
-            } else {
-                TLRPC.TL_upload_saveFilePart req = new TLRPC.TL_upload_saveFilePart();
-                req.file_part = currentPartNum;
-                req.file_id = currentFileId;
-                req.bytes = sendBuffer;
-                finalRequest = req;
+            partInfo = new PartInfo();
+            partInfo.partNum = currentPartNum++;
+            partInfo.offset = readOffset;
+            partInfo.size = read;
+            if (isEncrypted) {
+                partInfo.ivAfter = new byte[32];
+                System.arraycopy(ivChange, 0, partInfo.ivAfter, 0, 32);
             }
-            currentUploaded += read;
+            readOffset += read;
+            lastPart = read != uploadChunkSize || estimatedSize == 0 && totalPartsCount == currentPartNum;
+            lastPartRead = lastPart;
         } catch (Exception e) {
             FileLog.e("tmessages", e);
-            delegate.didFailedUploadingFile(this);
-            cleanup();
+            Utilities.stageQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    preparingCount--;
+                    releaseUploadSlot();
+                    if (state == 1) {
+                        state = 2;
+                        cancelRequests();
+                        delegate.didFailedUploadingFile(FileUploadOperation.this);
+                        cleanup();
+                    }
+                }
+            });
             return;
         }
-        requestToken = ConnectionsManager.getInstance().sendRequest(finalRequest, new RequestDelegate() {
+        Utilities.stageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                preparingCount--;
+                if (state != 1) {
+                    sendBuffer.reuse();
+                    releaseUploadSlot();
+                    return;
+                }
+                if (lastPart) {
+                    allPartsPrepared = true;
+                }
+                sendPart(partInfo, sendBuffer);
+                scheduleParts();
+            }
+        });
+    }
+
+    private void sendPart(final PartInfo partInfo, NativeByteBuffer sendBuffer) {
+        TLObject finalRequest;
+        if (isBigFile) {
+            TLRPC.TL_upload_saveBigFilePart req = new TLRPC.TL_upload_saveBigFilePart();
+            req.file_part = partInfo.partNum;
+            req.file_id = currentFileId;
+            if (estimatedSize != 0) {
+                req.file_total_parts = -1;
+            } else {
+                req.file_total_parts = totalPartsCount;
+            }
+            req.bytes = sendBuffer;
+            finalRequest = req;
+        } else {
+            TLRPC.TL_upload_saveFilePart req = new TLRPC.TL_upload_saveFilePart();
+            req.file_part = partInfo.partNum;
+            req.file_id = currentFileId;
+            req.bytes = sendBuffer;
+            finalRequest = req;
+        }
+        sentParts.add(partInfo);
+        partInfo.sendTime = System.currentTimeMillis();
+        FileTransferController.getInstance().onRequestSent(ConnectionsManager.DEFAULT_DATACENTER_ID);
+        partInfo.requestToken = ConnectionsManager.getInstance().sendRequest(finalRequest, new RequestDelegate() {
             @Override
             public void run(TLObject response, TLRPC.TL_error error) {
-                requestToken = 0;
-                if (error == null) {
-                    if (response instanceof TLRPC.TL_boolTrue) {
-                        currentPartNum++;
-                        delegate.didChangedUploadProgress(FileUploadOperation.this, currentUploaded / (float) totalFileSize);
-                        if (isLastPart) {
-                            state = 3;
-                            if (key == null) {
-                                TLRPC.InputFile result;
-                                if (isBigFile) {
-                                    result = new TLRPC.TL_inputFileBig();
-                                } else {
-                                    result = new TLRPC.TL_inputFile();
-                                    result.md5_checksum = String.format(Locale.US, "%32s", new BigInteger(1, mdEnc.digest()).toString(16)).replace(' ', '0');
-                                }
-                                result.parts = currentPartNum;
-                                result.id = currentFileId;
-                                result.name = uploadingFilePath.substring(uploadingFilePath.lastIndexOf("/") + 1);
-                                delegate.didFinishUploadingFile(FileUploadOperation.this, result, null, null, null);
-                                cleanup();
-                            } else {
-                                TLRPC.InputEncryptedFile result;
-                                if (isBigFile) {
-                                    result = new TLRPC.TL_inputEncryptedFileBigUploaded();
-                                } else {
-                                    result = new TLRPC.TL_inputEncryptedFileUploaded();
-                                    result.md5_checksum = String.format(Locale.US, "%32s", new BigInteger(1, mdEnc.digest()).toString(16)).replace(' ', '0');
-                                }
-                                result.parts = currentPartNum;
-                                result.id = currentFileId;
-                                result.key_fingerprint = fingerprint;
-                                delegate.didFinishUploadingFile(FileUploadOperation.this, null, result, key, iv);
-                                cleanup();
-                            }
-                        } else {
-                            startUploadRequest();
-                        }
-                    } else {
-                        delegate.didFailedUploadingFile(FileUploadOperation.this);
-                        cleanup();
-                    }
-                } else {
+                if (partInfo.requestToken == 0 || state != 1) {
+                    return;
+                }
+                partInfo.requestToken = 0;
+                releaseUploadSlot();
+                boolean success = error == null && response instanceof TLRPC.TL_boolTrue;
+                FileTransferController.getInstance().onRequestCompleted(ConnectionsManager.DEFAULT_DATACENTER_ID, partInfo.sendTime, partInfo.size, success);
+                if (!success) {
+                    state = 2;
+                    cancelRequests();
                     delegate.didFailedUploadingFile(FileUploadOperation.this);
                     cleanup();
+                    return;
+                }
+                if (BuildVars.DEBUG_VERSION) {
+                    long time = Math.max(1, System.currentTimeMillis() - partInfo.sendTime);
+                    FileLog.d("tmessages", "uploaded part " + partInfo.partNum + " of " + uploadingFilePath + " " + partInfo.size / 1024 + " KB in " + time + " ms, " + partInfo.size * 1000L / 1024 / time + " KB/s");
                 }
+                partInfo.confirmed = true;
+                onPartConfirmed();
             }
         }, 0, ConnectionsManager.ConnectionTypeUpload);
     }
+
+    private void onPartConfirmed() {
+        PartInfo lastConfirmed = null;
+        while (!sentParts.isEmpty() && sentParts.get(0).confirmed) {
+            lastConfirmed = sentParts.remove(0);
+        }
+        if (lastConfirmed != null) {
+            long previousUploaded = currentUploaded;
+            currentUploaded = lastConfirmed.offset + lastConfirmed.size;
+            delegate.didChangedUploadProgress(FileUploadOperation.this, currentUploaded / (float) totalFileSize);
+            if (estimatedSize == 0) {
+                saveInfoTimes++;
+                if (isBigFile && currentUploaded / (1024 * 1024) != previousUploaded / (1024 * 1024) || !isBigFile && saveInfoTimes >= 4) {
+                    saveInfoTimes = 0;
+                    SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("uploadinfo", Activity.MODE_PRIVATE);
+                    SharedPreferences.Editor editor = preferences.edit();
+                    editor.putLong(fileKey + "_uploaded", currentUploaded);
+                    if (isEncrypted) {
+                        editor.putString(fileKey + "_ivc", Utilities.bytesToHex(lastConfirmed.ivAfter));
+                    }
+                    editor.commit();
+                }
+            }
+        }
+        if (!allPartsPrepared || preparingCount != 0 || !sentParts.isEmpty()) {
+            scheduleParts();
+            return;
+        }
+        state = 3;
+        if (key == null) {
+            TLRPC.InputFile result;
+            if (isBigFile) {
+                result = new TLRPC.TL_inputFileBig();
+            } else {
+                result = new TLRPC.TL_inputFile();
+                result.md5_checksum = String.format(Locale.US, "%32s", new BigInteger(1, mdEnc.digest()).toString(16)).replace(' ', '0');
+            }
+            result.parts = currentPartNum;
+            result.id = currentFileId;
+            result.name = uploadingFilePath.substring(uploadingFilePath.lastIndexOf("/") + 1);
+            delegate.didFinishUploadingFile(FileUploadOperation.this, result, null, null, null);
+            cleanup();
+        } else {
+            TLRPC.InputEncryptedFile result;
+            if (isBigFile) {
+                result = new TLRPC.TL_inputEncryptedFileBigUploaded();
+            } else {
+                result = new TLRPC.TL_inputEncryptedFileUploaded();
+                result.md5_checksum = String.format(Locale.US, "%32s", new BigInteger(1, mdEnc.digest()).toString(16)).replace(' ', '0');
+            }
+            result.parts = currentPartNum;
+            result.id = currentFileId;
+            result.key_fingerprint = fingerprint;
+            delegate.didFinishUploadingFile(FileUploadOperation.this, null, result, key, iv);
+            cleanup();
+        }
+    }
 }
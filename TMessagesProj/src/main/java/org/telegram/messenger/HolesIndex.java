@@ -0,0 +1,263 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegram.messenger;
+
+import org.telegram.SQLite.SQLiteCursor;
+import org.telegram.SQLite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In-memory copy of messages_holes, messages_imp_holes and media_holes_v2,
+ * one interval set per table, dialog and media type (0 for the message
+ * tables). Sets are loaded lazily on the storage queue, where MessagesStorage
+ * writes every change through to them. A set changed since the last commit
+ * is dirty and read connections keep using SQL for it until markCommitted().
+ */
+public class HolesIndex {
+
+    private static final int MAX_CACHED_SETS = 512;
+
+    public static class Hole {
+        public int start;
+        public int end;
+
+        public Hole(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    public static class Holes {
+        private String table;
+        private long did;
+        private final TreeMap<Integer, Integer> starts = new TreeMap<>();
+        private final TreeMap<Integer, Integer> ends = new TreeMap<>();
+        private long maxSpan;
+        private boolean dirty;
+        private boolean shared;
+
+        /**
+         * Same as the first row of "SELECT start ... WHERE start IN (0, 1)":
+         * 0 or 1, or -1 if there is no such hole.
+         */
+        public int getBoundary() {
+            if (starts.containsKey(0)) {
+                return 0;
+            } else if (starts.containsKey(1)) {
+                return 1;
+            }
+            return -1;
+        }
+
+        /**
+         * Smallest start that is >= id, -1 if there is none.
+         */
+        public int getFirstStartFrom(int id) {
+            Integer start = starts.ceilingKey(id);
+            return start != null ? start : -1;
+        }
+
+        /**
+         * Largest end that is <= id, -1 if there is none.
+         */
+        public int getLastEndUpTo(int id) {
+            Integer end = ends.floorKey(id);
+            return end != null ? end : -1;
+        }
+
+        /**
+         * Largest end, -1 if there are no holes.
+         */
+        public int getMaxEnd() {
+            return ends.isEmpty() ? -1 : ends.lastKey();
+        }
+
+        /**
+         * Adds every hole that intersects [minId, maxId] to result, except
+         * the 1 - 1 end marker.
+         */
+        public void getOverlapping(int minId, int maxId, ArrayList<Hole> result) {
+            for (Map.Entry<Integer, Integer> entry : starts.headMap(maxId, true).descendingMap().entrySet()) {
+                int start = entry.getKey();
+                if (start + maxSpan < minId) {
+                    break;
+                }
+                int end = entry.getValue();
+                if (end >= minId && !(start == 1 && end == 1)) {
+                    result.add(new Hole(start, end));
+                }
+            }
+        }
+
+        private void put(int start, int end) {
+            remove(start);
+            starts.put(start, end);
+            Integer count = ends.get(end);
+            ends.put(end, count == null ? 1 : count + 1);
+            maxSpan = Math.max(maxSpan, (long) end - start);
+        }
+
+        private void remove(int start) {
+            Integer end = starts.remove(start);
+            if (end != null) {
+                Integer count = ends.get(end);
+                if (count == null || count <= 1) {
+                    ends.remove(end);
+                } else {
+                    ends.put(end, count - 1);
+                }
+            }
+        }
+
+        private Holes copy() {
+            Holes holes = new Holes();
+            holes.table = table;
+            holes.did = did;
+            holes.starts.putAll(starts);
+            holes.ends.putAll(ends);
+            holes.maxSpan = maxSpan;
+            return holes;
+        }
+    }
+
+    private final LinkedHashMap<String, Holes> sets = new LinkedHashMap<String, Holes>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Holes> eldest) {
+            return size() > MAX_CACHED_SETS;
+        }
+    };
+    private final ArrayList<Holes> dirtySets = new ArrayList<>();
+
+    private static String getKey(String table, long did, int type) {
+        return table + "_" + did + "_" + type;
+    }
+
+    /**
+     * Reads the holes of a set from database without caching them.
+     */
+    public static Holes query(SQLiteDatabase database, String table, long did, int type) throws Exception {
+        Holes holes = new Holes();
+        holes.table = table;
+        holes.did = did;
+        SQLiteCursor cursor;
+        if ("media_holes_v2".equals(table)) {
+            cursor = database.queryCached("SELECT start, end FROM media_holes_v2 WHERE uid = ? AND type = ?", did, type);
+        } else {
+            cursor = database.queryCached("SELECT start, end FROM " + table + " WHERE uid = ?", did);
+        }
+        while (cursor.next()) {
+            holes.put(cursor.intValue(0), cursor.intValue(1));
+        }
+        cursor.dispose();
+        return holes;
+    }
+
+    /**
+     * Returns the cached set if it has no uncommitted changes, null
+     * otherwise. The returned set is not changed afterwards, later writes go
+     * to a copy.
+     */
+    public synchronized Holes getCommitted(String table, long did, int type) {
+        Holes holes = sets.get(getKey(table, did, type));
+        if (holes == null || holes.dirty) {
+            return null;
+        }
+        holes.shared = true;
+        return holes;
+    }
+
+    public synchronized boolean isCached(String table, long did, int type) {
+        return sets.containsKey(getKey(table, did, type));
+    }
+
+    /**
+     * Returns the current set, loading it from database if needed. Storage
+     * queue only.
+     */
+    public synchronized Holes load(SQLiteDatabase database, String table, long did, int type) throws Exception {
+        String key = getKey(table, did, type);
+        Holes holes = sets.get(key);
+        if (holes == null) {
+            holes = query(database, table, did, type);
+            sets.put(key, holes);
+            // may include changes of a transaction that is still open
+            holes.dirty = true;
+            dirtySets.add(holes);
+        }
+        return holes;
+    }
+
+    public synchronized void put(String table, long did, int type, int start, int end) {
+        Holes holes = getForWrite(table, did, type);
+        if (holes != null) {
+            holes.put(start, end);
+        }
+    }
+
+    public synchronized void remove(String table, long did, int type, int start) {
+        Holes holes = getForWrite(table, did, type);
+        if (holes != null) {
+            holes.remove(start);
+        }
+    }
+
+    /**
+     * Forgets the cached sets of a dialog, or only those of table if it is
+     * not null; they are loaded again on the next use.
+     */
+    public synchronized void remove(String table, long did) {
+        Iterator<Holes> iterator = sets.values().iterator();
+        while (iterator.hasNext()) {
+            Holes holes = iterator.next();
+            if (holes.did == did && (table == null || table.equals(holes.table))) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Called on the storage queue once the changes made so far are committed.
+     */
+    public synchronized void markCommitted() {
+        if (dirtySets.isEmpty()) {
+            return;
+        }
+        for (int a = 0; a < dirtySets.size(); a++) {
+            dirtySets.get(a).dirty = false;
+        }
+        dirtySets.clear();
+    }
+
+    public synchronized void clear() {
+        sets.clear();
+        dirtySets.clear();
+    }
+
+    private Holes getForWrite(String table, long did, int type) {
+        String key = getKey(table, did, type);
+        Holes holes = sets.get(key);
+        if (holes == null) {
+            return null;
+        }
+        if (holes.shared) {
+            holes = holes.copy();
+            sets.put(key, holes);
+        }
+        if (!holes.dirty) {
+            holes.dirty = true;
+            dirtySets.add(holes);
+        }
+        return holes;
+    }
+}
@@ -62,6 +62,7 @@ public class ImageLoader {
     private DispatchQueue cacheThumbOutQueue = new DispatchQueue("cacheThumbOutQueue");
     private DispatchQueue thumbGeneratingQueue = new DispatchQueue("thumbGeneratingQueue");
     private DispatchQueue imageLoadQueue = new DispatchQueue("imageLoadQueue");
+    private DispatchQueue bitmapDiskCacheQueue = new DispatchQueue("bitmapDiskCacheQueue");
     private ConcurrentHashMap<String, Float> fileProgresses = new ConcurrentHashMap<>();
     private HashMap<String, ThumbGenerateTask> thumbGenerateTasks = new HashMap<>();
     private static byte[] bytes;
@@ -537,6 +538,20 @@ public class ImageLoader {
             boolean canDeleteFile = true;
             boolean useNativeWebpLoaded = false;
 
+            boolean useDiskCache = cacheImage.filter != null && !cacheImage.secret && (cacheImage.httpUrl == null || cacheImage.httpUrl.startsWith("http"));
+            if (useDiskCache) {
+                image = BitmapDiskCache.getInstance().get(cacheImage.key, cacheFileFinal);
+                if (image != null) {
+                    lastCacheOutTime = System.currentTimeMillis();
+                    if (runtimeHack != null) {
+                        runtimeHack.trackFree(image.getRowBytes() * image.getHeight());
+                    }
+                    Thread.interrupted();
+                    onPostExecute(new BitmapDrawable(image), false);
+                    return;
+                }
+            }
+
             if (Build.VERSION.SDK_INT < 19) {
                 RandomAccessFile randomAccessFile = null;
                 try {
@@ -799,10 +814,10 @@ public class ImageLoader {
                 }
             }
             Thread.interrupted();
-            onPostExecute(image != null ? new BitmapDrawable(image) : null);
+            onPostExecute(image != null ? new BitmapDrawable(image) : null, useDiskCache);
         }
 
-        private void onPostExecute(final BitmapDrawable bitmapDrawable) {
+        private void onPostExecute(final BitmapDrawable bitmapDrawable, final boolean storeInDiskCache) {
             AndroidUtilities.runOnUIThread(new Runnable() {
                 @Override
                 public void run() {
@@ -812,6 +827,9 @@ public class ImageLoader {
                         if (toSet == null) {
                             memCache.put(cacheImage.key, bitmapDrawable);
                             toSet = bitmapDrawable;
+                            if (storeInDiskCache) {
+                                putToDiskCache(cacheImage.key, cacheImage.finalFilePath, bitmapDrawable);
+                            }
                         } else {
                             Bitmap image = bitmapDrawable.getBitmap();
                             if (runtimeHack != null) {
@@ -902,6 +920,7 @@ public class ImageLoader {
         protected File finalFilePath;
         protected File tempFilePath;
         protected boolean thumb;
+        protected boolean secret;
 
         protected String httpUrl;
         protected HttpImageTask httpTask;
@@ -1331,6 +1350,45 @@ public class ImageLoader {
         return false;
     }
 
+    /**
+     * Writes a freshly decoded bitmap to the disk cache after it was
+     * delivered. The use count keeps it from being recycled meanwhile.
+     * UI thread only.
+     */
+    private void putToDiskCache(final String key, final File source, final BitmapDrawable bitmapDrawable) {
+        incrementUseCount(key);
+        bitmapDiskCacheQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                BitmapDiskCache.getInstance().put(key, source, bitmapDrawable.getBitmap());
+                AndroidUtilities.runOnUIThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (decrementUseCount(key) && memCache.get(key) != bitmapDrawable) {
+                            Bitmap bitmap = bitmapDrawable.getBitmap();
+                            if (runtimeHack != null) {
+                                runtimeHack.trackAlloc(bitmap.getRowBytes() * bitmap.getHeight());
+                            }
+                            if (!bitmap.isRecycled()) {
+                                bitmap.recycle();
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private static boolean isSecretLocation(TLObject location) {
+        if (location instanceof TLRPC.FileLocation) {
+            TLRPC.FileLocation fileLocation = (TLRPC.FileLocation) location;
+            return fileLocation.key != null || fileLocation.volume_id == Integer.MIN_VALUE && fileLocation.local_id < 0;
+        } else if (location instanceof TLRPC.Document) {
+            return ((TLRPC.Document) location).key != null;
+        }
+        return false;
+    }
+
     public void removeImage(String key) {
         bitmapUseCounts.remove(key);
         memCache.remove(key);
@@ -1563,6 +1621,7 @@ public class ImageLoader {
 
                         CacheImage img = new CacheImage();
                         img.thumb = thumb != 0;
+                        img.secret = isSecretLocation(imageLocation);
                         img.key = key;
                         img.filter = filter;
                         img.httpUrl = httpLocation;
@@ -1746,6 +1805,7 @@ public class ImageLoader {
                         cacheImage.key = img.key;
                         cacheImage.httpUrl = img.httpUrl;
                         cacheImage.thumb = img.thumb;
+                        cacheImage.secret = img.secret;
                         cacheImage.ext = img.ext;
                         cacheImage.cacheTask = task = new CacheOutTask(cacheImage);
                         cacheImage.filter = img.filter;
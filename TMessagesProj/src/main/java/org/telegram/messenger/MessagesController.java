@@ -52,6 +52,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
     public ArrayList<TLRPC.Dialog> dialogs = new ArrayList<>();
     public ArrayList<TLRPC.Dialog> dialogsServerOnly = new ArrayList<>();
     public ArrayList<TLRPC.Dialog> dialogsGroupsOnly = new ArrayList<>();
+    private DialogsIndex dialogsIndex = new DialogsIndex(dialogs, dialogsServerOnly, dialogsGroupsOnly);
     public int currentChannelDialogsCount;
     public int currentDialogsCount;
     public int nextDialogsCacheOffset;
@@ -71,14 +72,10 @@ public class MessagesController implements NotificationCenter.NotificationCenter
     public boolean loadingBlockedUsers = false;
     public ArrayList<Integer> blockedUsers = new ArrayList<>();
 
-    private SparseArray<ArrayList<Integer>> channelViewsToSend = new SparseArray<>();
-    private SparseArray<ArrayList<Integer>> channelViewsToReload = new SparseArray<>();
-    private long lastViewsCheckTime;
-
-    private HashMap<Integer, ArrayList<TLRPC.Updates>> updatesQueueChannels = new HashMap<>();
-    private HashMap<Integer, Long> updatesStartWaitTimeChannels = new HashMap<>();
-    private HashMap<Integer, Integer> channelsPts = new HashMap<>();
-    private HashMap<Integer, Boolean> gettingDifferenceChannels = new HashMap<>();
+    private SparseArray<ChannelUpdatesSequencer> channelSequencers = new SparseArray<>();
+    private final SparseArray<DifferenceWindow> channelDifferenceWindows = new SparseArray<>();
+    private DifferenceWindow differenceWindow = new DifferenceWindow();
+    private DispatchQueue differenceQueue = new DispatchQueue("differenceQueue");
     public boolean loadingChannels = false;
     public int totalChannelsCount = 0;
     public boolean channelsEndReached = false;
@@ -442,11 +439,8 @@ public class MessagesController implements NotificationCenter.NotificationCenter
 
         dialogs_dict.clear();
         exportedChats.clear();
-        dialogs.clear();
-        channelViewsToSend.clear();
-        channelViewsToReload.clear();
-        dialogsServerOnly.clear();
-        dialogsGroupsOnly.clear();
+        dialogsIndex.clear();
+        ChannelViewsQueue.getInstance().cleanUp();
         users.clear();
         usersByUsernames.clear();
         chats.clear();
@@ -493,10 +487,11 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         Utilities.stageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                updatesQueueChannels.clear();
-                updatesStartWaitTimeChannels.clear();
-                gettingDifferenceChannels.clear();
-                channelsPts.clear();
+                channelSequencers.clear();
+                synchronized (channelDifferenceWindows) {
+                    channelDifferenceWindows.clear();
+                }
+                differenceWindow.clear();
                 shortPollChannels.clear();
                 needShortPollChannels.clear();
             }
@@ -849,48 +844,55 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         });
     }
 
-    protected void processNewChannelDifferenceParams(int pts, int pts_count, int channelId) {
+    protected void processNewChannelDifferenceParams(final int pts, final int pts_count, final int channelId) {
         FileLog.e("tmessages", "processNewChannelDifferenceParams pts = " + pts + " pts_count = " + pts_count + " channeldId = " + channelId);
-        TLRPC.Dialog dialog = dialogs_dict.get((long) -channelId);
-        if (dialog instanceof TLRPC.TL_dialogChannel) {
-            Integer channelPts = channelsPts.get(channelId);
-            if (channelPts == null) {
-                channelPts = MessagesStorage.getInstance().getChannelPtsSync(channelId);
-                if (channelPts == 0) {
-                    channelPts = 1;
-                }
-                channelsPts.put(channelId, channelPts);
-            }
-            if (channelPts + pts_count == pts) {
-                FileLog.e("tmessages", "APPLY CHANNEL PTS");
-                channelsPts.put(channelId, pts);
-                MessagesStorage.getInstance().saveChannelPts(channelId, pts);
-            } else if (channelPts != pts) {
-                Long updatesStartWaitTime = updatesStartWaitTimeChannels.get(channelId);
-                Boolean gettingDifferenceChannel = gettingDifferenceChannels.get(channelId);
-                if (gettingDifferenceChannel == null) {
-                    gettingDifferenceChannel = false;
-                }
-                if (gettingDifferenceChannel || updatesStartWaitTime == null || updatesStartWaitTime + 1500 > System.currentTimeMillis()) {
-                    FileLog.e("tmessages", "ADD CHANNEL UPDATE TO QUEUE pts = " + pts + " pts_count = " + pts_count);
-                    if (updatesStartWaitTime == null) {
-                        updatesStartWaitTimeChannels.put(channelId, System.currentTimeMillis());
-                    }
-                    UserActionUpdatesPts updates = new UserActionUpdatesPts();
-                    updates.pts = pts;
-                    updates.pts_count = pts_count;
-                    updates.chat_id = channelId;
-                    ArrayList<TLRPC.Updates> arrayList = updatesQueueChannels.get(channelId);
-                    if (arrayList == null) {
-                        arrayList = new ArrayList<>();
-                        updatesQueueChannels.put(channelId, arrayList);
+        Utilities.stageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                TLRPC.Dialog dialog = dialogs_dict.get((long) -channelId);
+                if (!(dialog instanceof TLRPC.TL_dialogChannel)) {
+                    return;
+                }
+                ChannelUpdatesSequencer sequencer = getChannelSequencer(channelId);
+                if (sequencer.pts == 0) {
+                    sequencer.pts = MessagesStorage.getInstance().getChannelPtsSync(channelId);
+                    if (sequencer.pts == 0) {
+                        sequencer.pts = 1;
+                    }
+                }
+                if (sequencer.pts + pts_count == pts) {
+                    FileLog.e("tmessages", "APPLY CHANNEL PTS");
+                    sequencer.pts = pts;
+                    MessagesStorage.getInstance().saveChannelPts(channelId, pts);
+                    if (!sequencer.isEmpty()) {
+                        processChannelsUpdatesQueue(sequencer, 0);
+                    }
+                } else if (sequencer.pts != pts) {
+                    if (sequencer.gettingDifference || sequencer.startWaitTime == 0 || sequencer.startWaitTime + 1500 > System.currentTimeMillis()) {
+                        FileLog.e("tmessages", "ADD CHANNEL UPDATE TO QUEUE pts = " + pts + " pts_count = " + pts_count);
+                        if (sequencer.startWaitTime == 0) {
+                            sequencer.startWaitTime = System.currentTimeMillis();
+                        }
+                        UserActionUpdatesPts updates = new UserActionUpdatesPts();
+                        updates.pts = pts;
+                        updates.pts_count = pts_count;
+                        updates.chat_id = channelId;
+                        sequencer.add(updates);
+                    } else {
+                        getChannelDifference(channelId);
                     }
-                    arrayList.add(updates);
-                } else {
-                    getChannelDifference(channelId);
                 }
             }
+        });
+    }
+
+    private ChannelUpdatesSequencer getChannelSequencer(int channelId) {
+        ChannelUpdatesSequencer sequencer = channelSequencers.get(channelId);
+        if (sequencer == null) {
+            sequencer = new ChannelUpdatesSequencer(channelId);
+            channelSequencers.put(channelId, sequencer);
         }
+        return sequencer;
     }
 
     protected void processNewDifferenceParams(int seq, int pts, int date, int pts_count) {
@@ -1287,6 +1289,15 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         }
     }
 
+    /**
+     * Places a new or changed dialog in the dialog lists by its last_message_date.
+     */
+    public void putDialog(TLRPC.Dialog dialog) {
+        dialogsIndex.put(dialog);
+        currentDialogsCount = dialogsIndex.getDialogsCount();
+        currentChannelDialogsCount = dialogsIndex.getChannelDialogsCount();
+    }
+
     public void deleteDialog(final long did, int offset, final boolean onlyHistory) {
         int lower_part = (int) did;
         int high_id = (int) (did >> 32);
@@ -1295,21 +1306,21 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             TLRPC.Dialog dialog = dialogs_dict.get(did);
             if (dialog != null) {
                 if (!onlyHistory) {
-                    dialogs.remove(dialog);
-                    if (dialogsServerOnly.remove(dialog)) {
-                        if (dialog instanceof TLRPC.TL_dialog) {
-                            currentDialogsCount--;
-                        } else if (dialog instanceof TLRPC.TL_dialogChannel) {
-                            currentChannelDialogsCount--;
+                    if (dialogsIndex.remove(did)) {
+                        currentDialogsCount = dialogsIndex.getDialogsCount();
+                        currentChannelDialogsCount = dialogsIndex.getChannelDialogsCount();
+                        if (dialog instanceof TLRPC.TL_dialogChannel) {
                             Utilities.stageQueue.postRunnable(new Runnable() {
                                 @Override
                                 public void run() {
-                                    channelsPts.remove(-(int) did);
+                                    ChannelUpdatesSequencer sequencer = channelSequencers.get(-(int) did);
+                                    if (sequencer != null) {
+                                        sequencer.pts = 0;
+                                    }
                                 }
                             });
                         }
                     }
-                    dialogsGroupsOnly.remove(dialog);
                     dialogs_dict.remove(did);
                     nextDialogsCacheOffset--;
                 } else {
@@ -1445,15 +1456,21 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 });
             }
 
-            if (!updatesQueueChannels.isEmpty()) {
-                ArrayList<Integer> keys = new ArrayList<>(updatesQueueChannels.keySet());
-                for (int a = 0; a < keys.size(); a++) {
-                    int key = keys.get(a);
-                    Long updatesStartWaitTime = updatesStartWaitTimeChannels.get(key);
-                    if (updatesStartWaitTime != null && updatesStartWaitTime + 1500 < currentTime) {
-                        FileLog.e("tmessages", "QUEUE CHANNEL " + key + " UPDATES WAIT TIMEOUT - CHECK QUEUE");
-                        processChannelsUpdatesQueue(key, 0);
+            ArrayList<ChannelUpdatesSequencer> timedOut = null;
+            for (int a = 0; a < channelSequencers.size(); a++) {
+                ChannelUpdatesSequencer sequencer = channelSequencers.valueAt(a);
+                if (sequencer.startWaitTime != 0 && sequencer.startWaitTime + 1500 < currentTime) {
+                    if (timedOut == null) {
+                        timedOut = new ArrayList<>();
                     }
+                    timedOut.add(sequencer);
+                }
+            }
+            if (timedOut != null) {
+                for (int a = 0; a < timedOut.size(); a++) {
+                    ChannelUpdatesSequencer sequencer = timedOut.get(a);
+                    FileLog.e("tmessages", "QUEUE CHANNEL " + sequencer.channelId + " UPDATES WAIT TIMEOUT - CHECK QUEUE");
+                    processChannelsUpdatesQueue(sequencer, 0);
                 }
             }
 
@@ -1464,50 +1481,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 }
             }
         }
-        if ((channelViewsToSend.size() != 0 || channelViewsToReload.size() != 0) && lastViewsCheckTime <= System.currentTimeMillis() - 5000) {
-            lastViewsCheckTime = System.currentTimeMillis();
-            for (int b = 0; b < 2; b++) {
-                SparseArray<ArrayList<Integer>> array = b == 0 ? channelViewsToSend : channelViewsToReload;
-                if (array.size() == 0) {
-                    continue;
-                }
-                for (int a = 0; a < array.size(); a++) {
-                    final int key = array.keyAt(a);
-                    final TLRPC.TL_messages_getMessagesViews req = new TLRPC.TL_messages_getMessagesViews();
-                    req.peer = getInputPeer(key);
-                    req.id = array.get(key);
-                    req.increment = a == 0;
-                    ConnectionsManager.getInstance().sendRequest(req, new RequestDelegate() {
-                        @Override
-                        public void run(TLObject response, TLRPC.TL_error error) {
-                            if (error == null) {
-                                TLRPC.Vector vector = (TLRPC.Vector) response;
-                                final SparseArray<SparseIntArray> channelViews = new SparseArray<>();
-                                SparseIntArray array = channelViews.get(key);
-                                if (array == null) {
-                                    array = new SparseIntArray();
-                                    channelViews.put(key, array);
-                                }
-                                for (int a = 0; a < req.id.size(); a++) {
-                                    if (a >= vector.objects.size()) {
-                                        break;
-                                    }
-                                    array.put(req.id.get(a), (Integer) vector.objects.get(a));
-                                }
-                                MessagesStorage.getInstance().putChannelViews(channelViews, req.peer instanceof TLRPC.TL_inputPeerChannel);
-                                AndroidUtilities.runOnUIThread(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.didUpdatedMessagesViews, channelViews);
-                                    }
-                                });
-                            }
-                        }
-                    });
-                }
-                array.clear();
-            }
-        }
+        ChannelViewsQueue.getInstance().checkFlush();
         if (!onlinePrivacy.isEmpty()) {
             ArrayList<Integer> toRemove = null;
             int currentServerTime = ConnectionsManager.getInstance().getCurrentTime();
@@ -1835,11 +1809,11 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 boolean createDialog = false;
                 if (messagesRes instanceof TLRPC.TL_messages_channelMessages) {
                     int channelId = -(int) dialog_id;
-                    Integer channelPts = channelsPts.get(channelId);
-                    if (channelPts == null) {
-                        channelPts = MessagesStorage.getInstance().getChannelPtsSync(channelId);
-                        if (channelPts == 0) {
-                            channelsPts.put(channelId, messagesRes.pts);
+                    ChannelUpdatesSequencer sequencer = getChannelSequencer(channelId);
+                    if (sequencer.pts == 0) {
+                        sequencer.pts = MessagesStorage.getInstance().getChannelPtsSync(channelId);
+                        if (sequencer.pts == 0) {
+                            sequencer.pts = messagesRes.pts;
                             createDialog = true;
                             getChannelDifference(channelId);
                         }
@@ -2029,7 +2003,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                         if (chat != null && (chat.flags & TLRPC.CHAT_FLAG_USER_LEFT) != 0) {
                             continue;
                         }
-                        channelsPts.put(-(int) d.id, d.pts);
+                        getChannelSequencer(-(int) d.id).pts = d.pts;
                     }
                     if (d.last_message_date == 0) {
                         MessageObject mess = new_dialogMessage.get(d.id);
@@ -2079,6 +2053,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                             TLRPC.Dialog currentDialog = dialogs_dict.get(key);
                             if (currentDialog == null) {
                                 dialogs_dict.put(key, value);
+                                dialogsIndex.put(value);
                                 MessageObject messageObject = new_dialogMessage.get(value.id);
                                 dialogMessage.put(key, messageObject);
                                 if (messageObject != null && messageObject.messageOwner.to_id.channel_id == 0) {
@@ -2089,6 +2064,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                                 if (oldMsg != null && oldMsg.deleted || oldMsg == null || currentDialog.top_message > 0) {
                                     if (value.top_message >= currentDialog.top_message) {
                                         dialogs_dict.put(key, value);
+                                        dialogsIndex.put(value);
                                         MessageObject messageObject = new_dialogMessage.get(value.id);
                                         dialogMessage.put(key, messageObject);
                                         if (messageObject != null && messageObject.messageOwner.to_id.channel_id == 0) {
@@ -2099,6 +2075,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                                     MessageObject newMsg = new_dialogMessage.get(value.id);
                                     if (oldMsg.deleted || newMsg == null || newMsg.messageOwner.date > oldMsg.messageOwner.date) {
                                         dialogs_dict.put(key, value);
+                                        dialogsIndex.put(value);
                                         dialogMessage.put(key, newMsg);
                                         if (newMsg != null && newMsg.messageOwner.to_id.channel_id == 0) {
                                             dialogMessagesByIds.put(newMsg.getId(), newMsg);
@@ -2108,40 +2085,8 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                             }
                         }
 
-                        dialogs.clear();
-                        dialogsServerOnly.clear();
-                        dialogsGroupsOnly.clear();
-                        currentDialogsCount = 0;
-                        currentChannelDialogsCount = 0;
-                        dialogs.addAll(dialogs_dict.values());
-                        Collections.sort(dialogs, new Comparator<TLRPC.Dialog>() {
-                            @Override
-                            public int compare(TLRPC.Dialog tl_dialog, TLRPC.Dialog tl_dialog2) {
-                                if (tl_dialog.last_message_date == tl_dialog2.last_message_date) {
-                                    return 0;
-                                } else if (tl_dialog.last_message_date < tl_dialog2.last_message_date) {
-                                    return 1;
-                                } else {
-                                    return -1;
-                                }
-                            }
-                        });
-                        for (int a = 0; a < dialogs.size(); a++) {
-                            TLRPC.Dialog d = dialogs.get(a);
-
-                            int high_id = (int) (d.id >> 32);
-                            if ((int) d.id != 0 && high_id != 1) {
-                                dialogsServerOnly.add(d);
-                                if (d instanceof TLRPC.TL_dialog) {
-                                    if (d.id < 0) {
-                                        dialogsGroupsOnly.add(d);
-                                    }
-                                    currentDialogsCount++;
-                                } else if (d instanceof TLRPC.TL_dialogChannel) {
-                                    currentChannelDialogsCount++;
-                                }
-                            }
-                        }
+                        currentDialogsCount = dialogsIndex.getDialogsCount();
+                        currentChannelDialogsCount = dialogsIndex.getChannelDialogsCount();
 
                         dialogsEndReached = (dialogsRes.dialogs.size() == 0 || dialogsRes.dialogs.size() != count) && !isCache;
                         NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload);
@@ -2270,6 +2215,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                             if (currentDialog == null) {
                                 nextDialogsCacheOffset++;
                                 dialogs_dict.put(key, value);
+                                dialogsIndex.put(value);
                                 MessageObject messageObject = new_dialogMessage.get(value.id);
                                 dialogMessage.put(key, messageObject);
                                 if (messageObject != null && messageObject.messageOwner.to_id.channel_id == 0) {
@@ -2281,6 +2227,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                                 if (oldMsg == null || currentDialog.top_message > 0) {
                                     if (oldMsg != null && oldMsg.deleted || value.top_message > currentDialog.top_message) {
                                         dialogs_dict.put(key, value);
+                                        dialogsIndex.put(value);
                                         MessageObject messageObject = new_dialogMessage.get(value.id);
                                         dialogMessage.put(key, messageObject);
                                         if (messageObject != null && messageObject.messageOwner.to_id.channel_id == 0) {
@@ -2291,6 +2238,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                                     MessageObject newMsg = new_dialogMessage.get(value.id);
                                     if (oldMsg.deleted || newMsg == null || newMsg.messageOwner.date > oldMsg.messageOwner.date) {
                                         dialogs_dict.put(key, value);
+                                        dialogsIndex.put(value);
                                         dialogMessage.put(key, newMsg);
                                         if (newMsg != null && newMsg.messageOwner.to_id.channel_id == 0) {
                                             dialogMessagesByIds.put(newMsg.getId(), newMsg);
@@ -2300,39 +2248,8 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                             }
                         }
 
-                        dialogs.clear();
-                        dialogsServerOnly.clear();
-                        dialogsGroupsOnly.clear();
-                        currentDialogsCount = 0;
-                        currentChannelDialogsCount = 0;
-                        dialogs.addAll(dialogs_dict.values());
-                        Collections.sort(dialogs, new Comparator<TLRPC.Dialog>() {
-                            @Override
-                            public int compare(TLRPC.Dialog dialog, TLRPC.Dialog dialog2) {
-                                if (dialog.last_message_date == dialog2.last_message_date) {
-                                    return 0;
-                                } else if (dialog.last_message_date < dialog2.last_message_date) {
-                                    return 1;
-                                } else {
-                                    return -1;
-                                }
-                            }
-                        });
-                        for (int a = 0; a < dialogs.size(); a++) {
-                            TLRPC.Dialog d = dialogs.get(a);
-                            int high_id = (int) (d.id >> 32);
-                            if ((int) d.id != 0 && high_id != 1) {
-                                dialogsServerOnly.add(d);
-                                if (d instanceof TLRPC.TL_dialog) {
-                                    if (d.id < 0) {
-                                        dialogsGroupsOnly.add(d);
-                                    }
-                                    currentDialogsCount++;
-                                } else if (d instanceof TLRPC.TL_dialogChannel) {
-                                    currentChannelDialogsCount++;
-                                }
-                            }
-                        }
+                        currentDialogsCount = dialogsIndex.getDialogsCount();
+                        currentChannelDialogsCount = dialogsIndex.getChannelDialogsCount();
                         NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload);
                         NotificationsController.getInstance().processDialogsUpdateRead(dialogsToUpdate);
                     }
@@ -2342,35 +2259,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
     }
 
     public void addToViewsQueue(final TLRPC.Message message, final boolean reload) {
-        ArrayList<Long> arrayList = new ArrayList<>();
-        long messageId = message.id;
-        if (message.to_id.channel_id != 0) {
-            messageId |= ((long) message.to_id.channel_id) << 32;
-        }
-        arrayList.add(messageId);
-        MessagesStorage.getInstance().markMessagesContentAsRead(arrayList);
-        Utilities.stageQueue.postRunnable(new Runnable() {
-            @Override
-            public void run() {
-                SparseArray<ArrayList<Integer>> array = channelViewsToSend;//reload ? channelViewsToReload : channelViewsToSend;
-                int peer;
-                if (message.to_id.channel_id != 0) {
-                    peer = -message.to_id.channel_id;
-                } else if (message.to_id.chat_id != 0) {
-                    peer = -message.to_id.chat_id;
-                } else {
-                    peer = message.to_id.user_id;
-                }
-                ArrayList<Integer> ids = array.get(peer);
-                if (ids == null) {
-                    ids = new ArrayList<>();
-                    array.put(peer, ids);
-                }
-                if (!ids.contains(message.id)) {
-                    ids.add(message.id);
-                }
-            }
-        });
+        ChannelViewsQueue.getInstance().add(message);
     }
 
     public void markMessageContentAsRead(final TLRPC.Message message) {
@@ -3264,63 +3153,39 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         return 0;
     }
 
-    private void processChannelsUpdatesQueue(int channelId, int state) {
-        ArrayList<TLRPC.Updates> updatesQueue = updatesQueueChannels.get(channelId);
-        if (updatesQueue == null) {
+    private void processChannelsUpdatesQueue(ChannelUpdatesSequencer sequencer, int state) {
+        if (sequencer.isEmpty() || sequencer.pts == 0) {
+            sequencer.clearQueue();
             return;
         }
-        Integer channelPts = channelsPts.get(channelId);
-        if (updatesQueue.isEmpty() || channelPts == null) {
-            updatesQueueChannels.remove(channelId);
-        }
-        Collections.sort(updatesQueue, new Comparator<TLRPC.Updates>() {
-            @Override
-            public int compare(TLRPC.Updates updates, TLRPC.Updates updates2) {
-                return AndroidUtilities.compare(updates.pts, updates2.pts);
-            }
-        });
         boolean anyProceed = false;
         if (state == 2) {
-            channelsPts.put(channelId, updatesQueue.get(0).pts);
-        }
-        for (int a = 0; a < updatesQueue.size(); a++) {
-            TLRPC.Updates updates = updatesQueue.get(a);
-            int updateState;
-            if (updates.pts <= channelPts) {
-                updateState = 2;
-            } else if (channelPts + updates.pts_count == updates.pts) {
-                updateState = 0;
-            } else {
-                updateState = 1;
-            }
-            if (updateState == 0) {
+            sequencer.pts = sequencer.peek().pts;
+        }
+        while (!sequencer.isEmpty()) {
+            TLRPC.Updates updates = sequencer.peek();
+            if (updates.pts <= sequencer.pts) {
+                sequencer.poll();
+            } else if (sequencer.pts + updates.pts_count == updates.pts) {
+                sequencer.poll();
                 processUpdates(updates, true);
                 anyProceed = true;
-                updatesQueue.remove(a);
-                a--;
-            } else if (updateState == 1) {
-                Long updatesStartWaitTime = updatesStartWaitTimeChannels.get(channelId);
-                if (updatesStartWaitTime != null && (anyProceed || updatesStartWaitTime + 1500 > System.currentTimeMillis())) {
-                    FileLog.e("tmessages", "HOLE IN CHANNEL " + channelId + " UPDATES QUEUE - will wait more time");
+            } else {
+                if (sequencer.startWaitTime != 0 && (anyProceed || sequencer.startWaitTime + 1500 > System.currentTimeMillis())) {
+                    FileLog.e("tmessages", "HOLE IN CHANNEL " + sequencer.channelId + " UPDATES QUEUE - will wait more time");
                     if (anyProceed) {
-                        updatesStartWaitTimeChannels.put(channelId, System.currentTimeMillis());
+                        sequencer.startWaitTime = System.currentTimeMillis();
                     }
-                    return;
                 } else {
-                    FileLog.e("tmessages", "HOLE IN CHANNEL " + channelId + " UPDATES QUEUE - getChannelDifference ");
-                    updatesStartWaitTimeChannels.remove(channelId);
-                    updatesQueueChannels.remove(channelId);
-                    getChannelDifference(channelId);
-                    return;
+                    FileLog.e("tmessages", "HOLE IN CHANNEL " + sequencer.channelId + " UPDATES QUEUE - getChannelDifference ");
+                    sequencer.clearQueue();
+                    getChannelDifference(sequencer.channelId);
                 }
-            } else {
-                updatesQueue.remove(a);
-                a--;
+                return;
             }
         }
-        updatesQueueChannels.remove(channelId);
-        updatesStartWaitTimeChannels.remove(channelId);
-        FileLog.e("tmessages", "UPDATES CHANNEL " + channelId + " QUEUE PROCEED - OK");
+        sequencer.startWaitTime = 0;
+        FileLog.e("tmessages", "UPDATES CHANNEL " + sequencer.channelId + " QUEUE PROCEED - OK");
     }
 
     private void processUpdatesQueue(int type, int state) {
@@ -3416,38 +3281,61 @@ public class MessagesController implements NotificationCenter.NotificationCenter
     }
 
     public void getChannelDifference(final int channelId, boolean newDialog) {
-        Boolean gettingDifferenceChannel = gettingDifferenceChannels.get(channelId);
-        if (gettingDifferenceChannel == null) {
-            gettingDifferenceChannel = false;
-        }
-        Integer channelPts;
+        ChannelUpdatesSequencer sequencer = getChannelSequencer(channelId);
+        int channelPts;
         if (newDialog) {
             channelPts = 1;
         } else {
-            channelPts = channelsPts.get(channelId);
-            if (channelPts == null) {
-                channelPts = MessagesStorage.getInstance().getChannelPtsSync(channelId);
-                if (channelPts != 0) {
-                    channelsPts.put(channelId, channelPts);
-                }
+            if (sequencer.pts == 0) {
+                sequencer.pts = MessagesStorage.getInstance().getChannelPtsSync(channelId);
             }
-            if (channelPts == 0 || gettingDifferenceChannel) {
+            channelPts = sequencer.pts;
+            if (channelPts == 0 || sequencer.gettingDifference) {
                 return;
             }
         }
-        gettingDifferenceChannels.put(channelId, true);
+        sequencer.gettingDifference = true;
+        sendChannelDifferenceRequest(channelId, channelPts, newDialog ? 1 : 100);
+    }
+
+    private DifferenceWindow getChannelDifferenceWindow(int channelId) {
+        synchronized (channelDifferenceWindows) {
+            DifferenceWindow window = channelDifferenceWindows.get(channelId);
+            if (window == null) {
+                window = new DifferenceWindow();
+                channelDifferenceWindows.put(channelId, window);
+            }
+            return window;
+        }
+    }
+
+    private void removeChannelDifferenceWindow(int channelId) {
+        synchronized (channelDifferenceWindows) {
+            channelDifferenceWindows.remove(channelId);
+        }
+    }
+
+    private void sendChannelDifferenceRequest(final int channelId, int pts, int limit) {
         TLRPC.TL_updates_getChannelDifference req = new TLRPC.TL_updates_getChannelDifference();
         req.channel = getInputChannel(channelId);
         req.filter = new TLRPC.TL_channelMessagesFilterEmpty();
-        req.pts = channelPts;
-        req.limit = newDialog ? 1 : 100;
-        FileLog.e("tmessages", "start getChannelDifference with pts = " + channelPts + " channelId = " + channelId);
+        req.pts = pts;
+        req.limit = limit;
+        FileLog.e("tmessages", "start getChannelDifference with pts = " + pts + " channelId = " + channelId);
         ConnectionsManager.getInstance().sendRequest(req, new RequestDelegate() {
             @Override
             public void run(TLObject response, TLRPC.TL_error error) {
 
                 if (error == null) {
                     final TLRPC.updates_ChannelDifference res = (TLRPC.updates_ChannelDifference) response;
+                    final DifferenceWindow window = getChannelDifferenceWindow(channelId);
+                    final boolean requestedNext = (res.flags & 1) == 0 && !(res instanceof TLRPC.TL_updates_channelDifferenceTooLong);
+                    window.onSliceReceived(requestedNext ? new Runnable() {
+                        @Override
+                        public void run() {
+                            sendChannelDifferenceRequest(channelId, res.pts, 100);
+                        }
+                    } : null);
 
                     final HashMap<Integer, TLRPC.User> usersDict = new HashMap<>();
                     for (TLRPC.User user : res.users) {
@@ -3474,31 +3362,44 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                         }
                     });
 
-                    MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
+                    differenceQueue.postRunnable(new Runnable() {
                         @Override
                         public void run() {
-                            if (!msgUpdates.isEmpty()) {
-                                final HashMap<Integer, long[]> corrected = new HashMap<>();
-                                for (TLRPC.TL_updateMessageID update : msgUpdates) {
-                                    long[] ids = MessagesStorage.getInstance().updateMessageStateAndId(update.random_id, null, update.id, 0, false, channelId);
-                                    if (ids != null) {
-                                        corrected.put(update.id, ids);
-                                    }
-                                }
+                            processDifferenceMessageIds(msgUpdates, channelId);
 
-                                if (!corrected.isEmpty()) {
-                                    AndroidUtilities.runOnUIThread(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            for (HashMap.Entry<Integer, long[]> entry : corrected.entrySet()) {
-                                                Integer newId = entry.getKey();
-                                                long[] ids = entry.getValue();
-                                                Integer oldId = (int) ids[1];
-                                                SendMessagesHelper.getInstance().processSentMessage(oldId);
-                                                NotificationCenter.getInstance().postNotificationName(NotificationCenter.messageReceivedByServer, oldId, newId, null, ids[0]);
-                                            }
+                            final HashMap<Long, ArrayList<MessageObject>> messages = new HashMap<>();
+                            final ArrayList<MessageObject> pushMessages = new ArrayList<>();
+                            if ((res instanceof TLRPC.TL_updates_channelDifference || res instanceof TLRPC.TL_updates_channelDifferenceEmpty) && !res.new_messages.isEmpty()) {
+                                ImageLoader.saveMessagesThumbs(res.new_messages);
+
+                                for (int a = 0; a < res.new_messages.size(); a++) {
+                                    TLRPC.Message message = res.new_messages.get(a);
+                                    if (message.to_id.channel_id != 0 && (message.flags & TLRPC.MESSAGE_FLAG_OUT) == 0) {
+                                        message.flags |= TLRPC.MESSAGE_FLAG_UNREAD;
+                                        if (message.from_id <= 0) {
+                                            message.flags |= TLRPC.MESSAGE_FLAG_CONTENT_UNREAD;
                                         }
-                                    });
+                                    }
+                                    if (message.action instanceof TLRPC.TL_messageActionChatDeleteUser) {
+                                        TLRPC.User user = usersDict.get(message.action.user_id);
+                                        if (user != null && (user.flags & TLRPC.USER_FLAG_BOT) != 0) {
+                                            message.reply_markup = new TLRPC.TL_replyKeyboardHide();
+                                        }
+                                    }
+
+                                    MessageObject obj = new MessageObject(message, usersDict, true);
+
+                                    if (!obj.isOut() && obj.isUnread()) {
+                                        pushMessages.add(obj);
+                                    }
+
+                                    long uid = -channelId;
+                                    ArrayList<MessageObject> arr = messages.get(uid);
+                                    if (arr == null) {
+                                        arr = new ArrayList<>();
+                                        messages.put(uid, arr);
+                                    }
+                                    arr.add(obj);
                                 }
                             }
 
@@ -3507,40 +3408,6 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                                 public void run() {
                                     if (res instanceof TLRPC.TL_updates_channelDifference || res instanceof TLRPC.TL_updates_channelDifferenceEmpty) {
                                         if (!res.new_messages.isEmpty()) {
-                                            final HashMap<Long, ArrayList<MessageObject>> messages = new HashMap<>();
-                                            ImageLoader.saveMessagesThumbs(res.new_messages);
-
-                                            final ArrayList<MessageObject> pushMessages = new ArrayList<>();
-                                            for (int a = 0; a < res.new_messages.size(); a++) {
-                                                TLRPC.Message message = res.new_messages.get(a);
-                                                if (message.to_id.channel_id != 0 && (message.flags & TLRPC.MESSAGE_FLAG_OUT) == 0) {
-                                                    message.flags |= TLRPC.MESSAGE_FLAG_UNREAD;
-                                                    if (message.from_id <= 0) {
-                                                        message.flags |= TLRPC.MESSAGE_FLAG_CONTENT_UNREAD;
-                                                    }
-                                                }
-                                                if (message.action instanceof TLRPC.TL_messageActionChatDeleteUser) {
-                                                    TLRPC.User user = usersDict.get(message.action.user_id);
-                                                    if (user != null && (user.flags & TLRPC.USER_FLAG_BOT) != 0) {
-                                                        message.reply_markup = new TLRPC.TL_replyKeyboardHide();
-                                                    }
-                                                }
-
-                                                MessageObject obj = new MessageObject(message, usersDict, true);
-
-                                                if (!obj.isOut() && obj.isUnread()) {
-                                                    pushMessages.add(obj);
-                                                }
-
-                                                long uid = -channelId;
-                                                ArrayList<MessageObject> arr = messages.get(uid);
-                                                if (arr == null) {
-                                                    arr = new ArrayList<>();
-                                                    messages.put(uid, arr);
-                                                }
-                                                arr.add(obj);
-                                            }
-
                                             AndroidUtilities.runOnUIThread(new Runnable() {
                                                 @Override
                                                 public void run() {
@@ -3563,10 +3430,8 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                                                             }
                                                         });
                                                     }
-                                                    MessagesStorage.getInstance().startTransaction(false);
-                                                    MessagesStorage.getInstance().putMessages(res.new_messages, false, false, false, MediaController.getInstance().getAutodownloadMask());
-                                                    MessagesStorage.getInstance().putUsersAndChats(res.users, res.chats, false, false);
-                                                    MessagesStorage.getInstance().commitTransaction(false);
+                                                    MessagesStorage.getInstance().putMessages(res.new_messages, true, true, false, MediaController.getInstance().getAutodownloadMask());
+                                                    MessagesStorage.getInstance().putUsersAndChats(res.users, res.chats, true, true);
                                                 }
                                             });
                                         }
@@ -3574,7 +3439,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                                         if (!res.other_updates.isEmpty()) {
                                             processUpdateArray(res.other_updates, res.users, res.chats);
                                         }
-                                        processChannelsUpdatesQueue(channelId, 1);
+                                        processChannelsUpdatesQueue(getChannelSequencer(channelId), 1);
                                         MessagesStorage.getInstance().saveChannelPts(channelId, res.pts);
                                     } else if (res instanceof TLRPC.TL_updates_channelDifferenceTooLong) {
                                         for (int a = 0; a < res.messages.size(); a++) {
@@ -3582,17 +3447,23 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                                         }
                                         MessagesStorage.getInstance().overwriteChannel(channelId, (TLRPC.TL_updates_channelDifferenceTooLong) res);
                                     }
-                                    gettingDifferenceChannels.remove(channelId);
-                                    channelsPts.put(channelId, res.pts);
+                                    ChannelUpdatesSequencer sequencer = getChannelSequencer(channelId);
+                                    sequencer.pts = res.pts;
+                                    if (!requestedNext) {
+                                        sequencer.gettingDifference = false;
+                                        // slices are applied in order, so this was the last one of the difference
+                                        removeChannelDifferenceWindow(channelId);
+                                    }
 
                                     if ((res.flags & 2) != 0) {
                                         shortPollChannels.put(channelId, (int) (System.currentTimeMillis() / 1000) + res.timeout);
                                     }
-                                    if ((res.flags & 1) == 0) {
+                                    if (!requestedNext && (res.flags & 1) == 0) {
                                         getChannelDifference(channelId);
                                     }
                                     FileLog.e("tmessages", "received channel difference with pts = " + res.pts + " channelId = " + channelId);
                                     FileLog.e("tmessages", "messages = " + res.new_messages.size() + " users = " + res.users.size() + " chats = " + res.chats.size() + " other updates = " + res.other_updates.size());
+                                    window.onSliceApplied();
                                 }
                             });
                         }
@@ -3606,12 +3477,101 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                             }
                         });
                     }
-                    gettingDifferenceChannels.remove(channelId);
+                    Utilities.stageQueue.postRunnable(new Runnable() {
+                        @Override
+                        public void run() {
+                            getChannelSequencer(channelId).gettingDifference = false;
+                            removeChannelDifferenceWindow(channelId);
+                        }
+                    });
                 }
             }
         });
     }
 
+    /**
+     * Applies the TL_updateMessageID updates of a difference and waits for
+     * them, so that the messages of the difference are stored after the sent
+     * messages they replace got their ids. Runs on differenceQueue.
+     */
+    private void processDifferenceMessageIds(final ArrayList<TLRPC.TL_updateMessageID> msgUpdates, final int channelId) {
+        if (msgUpdates.isEmpty()) {
+            return;
+        }
+        final Semaphore semaphore = new Semaphore(0);
+        MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final HashMap<Integer, long[]> corrected = new HashMap<>();
+                    for (TLRPC.TL_updateMessageID update : msgUpdates) {
+                        long[] ids = MessagesStorage.getInstance().updateMessageStateAndId(update.random_id, null, update.id, 0, false, channelId);
+                        if (ids != null) {
+                            corrected.put(update.id, ids);
+                        }
+                    }
+
+                    if (!corrected.isEmpty()) {
+                        AndroidUtilities.runOnUIThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                for (HashMap.Entry<Integer, long[]> entry : corrected.entrySet()) {
+                                    Integer newId = entry.getKey();
+                                    long[] ids = entry.getValue();
+                                    Integer oldId = (int) ids[1];
+                                    SendMessagesHelper.getInstance().processSentMessage(oldId);
+                                    NotificationCenter.getInstance().postNotificationName(NotificationCenter.messageReceivedByServer, oldId, newId, null, ids[0]);
+                                }
+                            }
+                        });
+                    }
+                } finally {
+                    semaphore.release();
+                }
+            }
+        });
+        try {
+            semaphore.acquire();
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+
+    private void putDifferenceMessage(TLRPC.Message message, HashMap<Integer, TLRPC.User> usersDict, HashMap<Long, ArrayList<MessageObject>> messages, ArrayList<MessageObject> pushMessages) {
+        if (message.action instanceof TLRPC.TL_messageActionChatDeleteUser) {
+            TLRPC.User user = usersDict.get(message.action.user_id);
+            if (user != null && (user.flags & TLRPC.USER_FLAG_BOT) != 0) {
+                message.reply_markup = new TLRPC.TL_replyKeyboardHide();
+            }
+        }
+
+        MessageObject obj = new MessageObject(message, usersDict, true);
+
+        if (!obj.isOut() && obj.isUnread()) {
+            pushMessages.add(obj);
+        }
+
+        long uid;
+        if (message.dialog_id != 0) {
+            uid = message.dialog_id;
+        } else {
+            if (message.to_id.chat_id != 0) {
+                uid = -message.to_id.chat_id;
+            } else {
+                if (message.to_id.user_id == UserConfig.getClientUserId()) {
+                    message.to_id.user_id = message.from_id;
+                }
+                uid = message.to_id.user_id;
+            }
+        }
+        ArrayList<MessageObject> arr = messages.get(uid);
+        if (arr == null) {
+            arr = new ArrayList<>();
+            messages.put(uid, arr);
+        }
+        arr.add(obj);
+    }
+
     public void getDifference() {
         getDifference(MessagesStorage.lastPtsValue, MessagesStorage.lastDateValue, MessagesStorage.lastQtsValue, false);
     }
@@ -3646,10 +3606,17 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 if (error == null) {
                     final TLRPC.updates_Difference res = (TLRPC.updates_Difference) response;
 
+                    Runnable requestNext = null;
                     if (res instanceof TLRPC.TL_updates_differenceSlice) {
                         gettingDifferenceAgain = true;
-                        getDifference(res.intermediate_state.pts, res.intermediate_state.date, res.intermediate_state.qts, true);
+                        requestNext = new Runnable() {
+                            @Override
+                            public void run() {
+                                getDifference(res.intermediate_state.pts, res.intermediate_state.date, res.intermediate_state.qts, true);
+                            }
+                        };
                     }
+                    differenceWindow.onSliceReceived(requestNext);
 
                     final HashMap<Integer, TLRPC.User> usersDict = new HashMap<>();
                     for (TLRPC.User user : res.users) {
@@ -3676,31 +3643,17 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                         }
                     });
 
-                    MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
+                    differenceQueue.postRunnable(new Runnable() {
                         @Override
                         public void run() {
-                            if (!msgUpdates.isEmpty()) {
-                                final HashMap<Integer, long[]> corrected = new HashMap<>();
-                                for (TLRPC.TL_updateMessageID update : msgUpdates) {
-                                    long[] ids = MessagesStorage.getInstance().updateMessageStateAndId(update.random_id, null, update.id, 0, false, 0);
-                                    if (ids != null) {
-                                        corrected.put(update.id, ids);
-                                    }
-                                }
+                            processDifferenceMessageIds(msgUpdates, 0);
 
-                                if (!corrected.isEmpty()) {
-                                    AndroidUtilities.runOnUIThread(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            for (HashMap.Entry<Integer, long[]> entry : corrected.entrySet()) {
-                                                Integer newId = entry.getKey();
-                                                long[] ids = entry.getValue();
-                                                Integer oldId = (int) ids[1];
-                                                SendMessagesHelper.getInstance().processSentMessage(oldId);
-                                                NotificationCenter.getInstance().postNotificationName(NotificationCenter.messageReceivedByServer, oldId, newId, null, ids[0]);
-                                            }
-                                        }
-                                    });
+                            final HashMap<Long, ArrayList<MessageObject>> messages = new HashMap<>();
+                            final ArrayList<MessageObject> pushMessages = new ArrayList<>();
+                            if (!res.new_messages.isEmpty()) {
+                                ImageLoader.saveMessagesThumbs(res.new_messages);
+                                for (int a = 0; a < res.new_messages.size(); a++) {
+                                    putDifferenceMessage(res.new_messages.get(a), usersDict, messages, pushMessages);
                                 }
                             }
 
@@ -3708,54 +3661,19 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                                 @Override
                                 public void run() {
                                     if (!res.new_messages.isEmpty() || !res.new_encrypted_messages.isEmpty()) {
-                                        final HashMap<Long, ArrayList<MessageObject>> messages = new HashMap<>();
-                                        for (TLRPC.EncryptedMessage encryptedMessage : res.new_encrypted_messages) {
-                                            ArrayList<TLRPC.Message> decryptedMessages = SecretChatHelper.getInstance().decryptMessage(encryptedMessage);
-                                            if (decryptedMessages != null && !decryptedMessages.isEmpty()) {
-                                                for (TLRPC.Message message : decryptedMessages) {
-                                                    res.new_messages.add(message);
+                                        if (!res.new_encrypted_messages.isEmpty()) {
+                                            ArrayList<TLRPC.Message> decryptedMessages = new ArrayList<>();
+                                            for (TLRPC.EncryptedMessage encryptedMessage : res.new_encrypted_messages) {
+                                                ArrayList<TLRPC.Message> messagesArr = SecretChatHelper.getInstance().decryptMessage(encryptedMessage);
+                                                if (messagesArr != null && !messagesArr.isEmpty()) {
+                                                    decryptedMessages.addAll(messagesArr);
                                                 }
                                             }
-                                        }
-
-                                        ImageLoader.saveMessagesThumbs(res.new_messages);
-
-                                        final ArrayList<MessageObject> pushMessages = new ArrayList<>();
-                                        for (int a = 0; a < res.new_messages.size(); a++) {
-                                            TLRPC.Message message = res.new_messages.get(a);
-
-                                            if (message.action instanceof TLRPC.TL_messageActionChatDeleteUser) {
-                                                TLRPC.User user = usersDict.get(message.action.user_id);
-                                                if (user != null && (user.flags & TLRPC.USER_FLAG_BOT) != 0) {
-                                                    message.reply_markup = new TLRPC.TL_replyKeyboardHide();
-                                                }
-                                            }
-
-                                            MessageObject obj = new MessageObject(message, usersDict, true);
-
-                                            if (!obj.isOut() && obj.isUnread()) {
-                                                pushMessages.add(obj);
-                                            }
-
-                                            long uid;
-                                            if (message.dialog_id != 0) {
-                                                uid = message.dialog_id;
-                                            } else {
-                                                if (message.to_id.chat_id != 0) {
-                                                    uid = -message.to_id.chat_id;
-                                                } else {
-                                                    if (message.to_id.user_id == UserConfig.getClientUserId()) {
-                                                        message.to_id.user_id = message.from_id;
-                                                    }
-                                                    uid = message.to_id.user_id;
-                                                }
+                                            ImageLoader.saveMessagesThumbs(decryptedMessages);
+                                            for (int a = 0; a < decryptedMessages.size(); a++) {
+                                                putDifferenceMessage(decryptedMessages.get(a), usersDict, messages, pushMessages);
                                             }
-                                            ArrayList<MessageObject> arr = messages.get(uid);
-                                            if (arr == null) {
-                                                arr = new ArrayList<>();
-                                                messages.put(uid, arr);
-                                            }
-                                            arr.add(obj);
+                                            res.new_messages.addAll(decryptedMessages);
                                         }
 
                                         AndroidUtilities.runOnUIThread(new Runnable() {
@@ -3780,10 +3698,8 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                                                         }
                                                     });
                                                 }
-                                                MessagesStorage.getInstance().startTransaction(false);
-                                                MessagesStorage.getInstance().putMessages(res.new_messages, false, false, false, MediaController.getInstance().getAutodownloadMask());
-                                                MessagesStorage.getInstance().putUsersAndChats(res.users, res.chats, false, false);
-                                                MessagesStorage.getInstance().commitTransaction(false);
+                                                MessagesStorage.getInstance().putMessages(res.new_messages, true, true, false, MediaController.getInstance().getAutodownloadMask());
+                                                MessagesStorage.getInstance().putUsersAndChats(res.users, res.chats, true, true);
                                             }
                                         });
 
@@ -3820,6 +3736,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                                     MessagesStorage.getInstance().saveDiffParams(MessagesStorage.lastSeqValue, MessagesStorage.lastPtsValue, MessagesStorage.lastDateValue, MessagesStorage.lastQtsValue);
                                     FileLog.e("tmessages", "received difference with date = " + MessagesStorage.lastDateValue + " pts = " + MessagesStorage.lastPtsValue + " seq = " + MessagesStorage.lastSeqValue);
                                     FileLog.e("tmessages", "messages = " + res.new_messages.size() + " users = " + res.users.size() + " chats = " + res.chats.size() + " other updates = " + res.other_updates.size());
+                                    differenceWindow.onSliceApplied();
                                 }
                             });
                         }
@@ -3970,6 +3887,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
 
     public void processUpdates(final TLRPC.Updates updates, boolean fromQueue) {
         ArrayList<Integer> needGetChannelsDiff = null;
+        ArrayList<ChannelUpdatesSequencer> touchedChannels = null;
         boolean needGetDiff = false;
         boolean needReceivedQueue = false;
         boolean updateStatus = false;
@@ -4209,13 +4127,18 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                     } else {
                         channelId = update.channel_id;
                     }
-                    Integer channelPts = channelsPts.get(channelId);
-                    if (channelPts == null) {
-                        channelPts = MessagesStorage.getInstance().getChannelPtsSync(channelId);
-                        if (channelPts == 0) {
-                            channelPts = update.pts - update.pts_count;
+                    ChannelUpdatesSequencer sequencer = getChannelSequencer(channelId);
+                    if (sequencer.pts == 0) {
+                        sequencer.pts = MessagesStorage.getInstance().getChannelPtsSync(channelId);
+                        if (sequencer.pts == 0) {
+                            sequencer.pts = update.pts - update.pts_count;
                         }
-                        channelsPts.put(channelId, channelPts);
+                    }
+                    if (touchedChannels == null) {
+                        touchedChannels = new ArrayList<>();
+                    }
+                    if (!touchedChannels.contains(sequencer)) {
+                        touchedChannels.add(sequencer);
                     }
                     TLRPC.TL_updates updatesNew = new TLRPC.TL_updates();
                     updatesNew.updates.add(update);
@@ -4233,40 +4156,32 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                             break;
                         }
                     }
-                    if (channelPts + updatesNew.pts_count == updatesNew.pts) {
+                    if (sequencer.pts + updatesNew.pts_count == updatesNew.pts) {
                         if (!processUpdateArray(updatesNew.updates, updates.users, updates.chats)) {
                             FileLog.e("tmessages", "need get channel diff inner TL_updates, channel_id = " + channelId);
                             if (needGetChannelsDiff == null) {
                                 needGetChannelsDiff = new ArrayList<>();
-                            } else if (!needGetChannelsDiff.contains(channelId)) {
+                            }
+                            if (!needGetChannelsDiff.contains(channelId)) {
                                 needGetChannelsDiff.add(channelId);
                             }
                         } else {
-                            channelsPts.put(channelId, updatesNew.pts);
+                            sequencer.pts = updatesNew.pts;
                             MessagesStorage.getInstance().saveChannelPts(channelId, updatesNew.pts);
                         }
-                    } else if (channelPts != updatesNew.pts) {
-                        FileLog.e("tmessages", update + " need get channel diff, pts: " + channelPts + " " + updatesNew.pts + " count = " + updatesNew.pts_count + " channelId = " + channelId);
-                        Long updatesStartWaitTime = updatesStartWaitTimeChannels.get(channelId);
-                        Boolean gettingDifferenceChannel = gettingDifferenceChannels.get(channelId);
-                        if (gettingDifferenceChannel == null) {
-                            gettingDifferenceChannel = false;
-                        }
-                        if (gettingDifferenceChannel || updatesStartWaitTime == null || updatesStartWaitTime + 1500 > System.currentTimeMillis()) {
-                            if (updatesStartWaitTime == null) {
-                                updatesStartWaitTimeChannels.put(channelId, System.currentTimeMillis());
+                    } else if (sequencer.pts != updatesNew.pts) {
+                        FileLog.e("tmessages", update + " need get channel diff, pts: " + sequencer.pts + " " + updatesNew.pts + " count = " + updatesNew.pts_count + " channelId = " + channelId);
+                        if (sequencer.gettingDifference || sequencer.startWaitTime == 0 || sequencer.startWaitTime + 1500 > System.currentTimeMillis()) {
+                            if (sequencer.startWaitTime == 0) {
+                                sequencer.startWaitTime = System.currentTimeMillis();
                             }
                             FileLog.e("tmessages", "add to queue");
-                            ArrayList<TLRPC.Updates> arrayList = updatesQueueChannels.get(channelId);
-                            if (arrayList == null) {
-                                arrayList = new ArrayList<>();
-                                updatesQueueChannels.put(channelId, arrayList);
-                            }
-                            arrayList.add(updatesNew);
+                            sequencer.add(updatesNew);
                         } else {
                             if (needGetChannelsDiff == null) {
                                 needGetChannelsDiff = new ArrayList<>();
-                            } else if (!needGetChannelsDiff.contains(channelId)) {
+                            }
+                            if (!needGetChannelsDiff.contains(channelId)) {
                                 needGetChannelsDiff.add(channelId);
                             }
                         }
@@ -4316,7 +4231,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             MessagesStorage.lastSeqValue = updates.seq;
         } else if (updates instanceof UserActionUpdatesPts) {
             if (updates.chat_id != 0) {
-                channelsPts.put(updates.chat_id, updates.pts);
+                getChannelSequencer(updates.chat_id).pts = updates.pts;
                 MessagesStorage.getInstance().saveChannelPts(updates.chat_id, updates.pts);
             } else {
                 MessagesStorage.lastPtsValue = updates.pts;
@@ -4324,13 +4239,15 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         }
         SecretChatHelper.getInstance().processPendingEncMessages();
         if (!fromQueue) {
-            ArrayList<Integer> keys = new ArrayList<>(updatesQueueChannels.keySet());
-            for (int a = 0; a < keys.size(); a++) {
-                Integer key = keys.get(a);
-                if (needGetChannelsDiff != null && needGetChannelsDiff.contains(key)) {
-                    getChannelDifference(key);
-                } else {
-                    processChannelsUpdatesQueue(key, 0);
+            if (touchedChannels != null) {
+                for (int a = 0; a < touchedChannels.size(); a++) {
+                    ChannelUpdatesSequencer sequencer = touchedChannels.get(a);
+                    if (needGetChannelsDiff != null && needGetChannelsDiff.contains(sequencer.channelId)) {
+                        sequencer.clearQueue();
+                        getChannelDifference(sequencer.channelId);
+                    } else if (!sequencer.isEmpty()) {
+                        processChannelsUpdatesQueue(sequencer, 0);
+                    }
                 }
             }
             if (needGetDiff) {
@@ -5234,7 +5151,6 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 dialog.top_message = lastMessage.getId();
                 dialog.last_message_date = lastMessage.messageOwner.date;
                 dialogs_dict.put(uid, dialog);
-                dialogs.add(dialog);
                 dialogMessage.put(uid, lastMessage);
                 if (lastMessage.messageOwner.to_id.channel_id == 0) {
                     dialogMessagesByIds.put(lastMessage.getId(), lastMessage);
@@ -5273,36 +5189,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         }
 
         if (changed) {
-            dialogsServerOnly.clear();
-            dialogsGroupsOnly.clear();
-            currentDialogsCount = 0;
-            currentChannelDialogsCount = 0;
-            Collections.sort(dialogs, new Comparator<TLRPC.Dialog>() {
-                @Override
-                public int compare(TLRPC.Dialog tl_dialog, TLRPC.Dialog tl_dialog2) {
-                    if (tl_dialog.last_message_date == tl_dialog2.last_message_date) {
-                        return 0;
-                    } else if (tl_dialog.last_message_date < tl_dialog2.last_message_date) {
-                        return 1;
-                    } else {
-                        return -1;
-                    }
-                }
-            });
-            for (TLRPC.Dialog d : dialogs) {
-                int high_id = (int) (d.id >> 32);
-                if ((int) d.id != 0 && high_id != 1) {
-                    dialogsServerOnly.add(d);
-                    if (d instanceof TLRPC.TL_dialog) {
-                        if (d.id < 0) {
-                            dialogsGroupsOnly.add(d);
-                        }
-                        currentDialogsCount++;
-                    } else if (d instanceof TLRPC.TL_dialogChannel) {
-                        currentChannelDialogsCount++;
-                    }
-                }
-            }
+            putDialog(dialog);
         }
     }
 
@@ -12,6 +12,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.text.TextUtils;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.util.SparseIntArray;
 
 import org.telegram.PhoneFormat.PhoneFormat;
@@ -31,14 +32,46 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.Semaphore;
 
 public class MessagesStorage {
-    private DispatchQueue storageQueue = new DispatchQueue("storageQueue");
+    private DispatchQueue storageQueue = new DispatchQueue("storageQueue") {
+        @Override
+        public void postRunnable(final Runnable runnable, long delay) {
+            if (runnable == flushWritesRunnable || runnable instanceof PendingWrite) {
+                super.postRunnable(runnable, delay);
+                return;
+            }
+            // every other task sees the writes queued before it
+            super.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    flushPendingWritesInternal();
+                    runnable.run();
+                    holesIndex.markCommitted();
+                }
+            }, delay);
+        }
+    };
     private SQLiteDatabase database;
-    private File cacheFile;
+    private volatile File cacheFile;
+    private final HolesIndex holesIndex = new HolesIndex();
+
+    private static final int READ_CONNECTIONS_COUNT = 2;
+    private static final int MAX_IN_LIST_SIZE = 64;
+    private static final SparseArray<String> inListPlaceholders = new SparseArray<>();
+    private DispatchQueue[] readQueues = new DispatchQueue[READ_CONNECTIONS_COUNT];
+    private SQLiteDatabase[] readDatabases = new SQLiteDatabase[READ_CONNECTIONS_COUNT];
+    private int[] readDatabasesGeneration = new int[READ_CONNECTIONS_COUNT];
+    private final ThreadLocal<SQLiteDatabase> currentReadDatabase = new ThreadLocal<>();
+    private volatile int databaseGeneration;
+    private volatile boolean walEnabled;
+    // set for good once the native library can't open read-only connections
+    private volatile boolean readConnectionsUnavailable;
+    private int lastReadQueue;
     public static int lastDateValue = 0;
     public static int lastPtsValue = 0;
     public static int lastQtsValue = 0;
@@ -52,6 +85,75 @@ public class MessagesStorage {
     private int lastSavedDate = 0;
     private int lastSavedQts = 0;
 
+    private static final int WRITE_BATCH_DELAY = 15;
+    private static final int WRITE_BATCH_MAX_ROWS = 500;
+    private final ArrayList<Runnable> pendingWrites = new ArrayList<>();
+    private int pendingWriteRows;
+    private boolean writeFlushScheduled;
+    private boolean flushingWrites;
+    private volatile int writeBatchesCount;
+    private volatile long writeBatchesRows;
+    private volatile long writeCommitTime;
+    private volatile long maxWriteCommitTime;
+
+    private final Runnable flushWritesRunnable = new Runnable() {
+        @Override
+        public void run() {
+            writeFlushScheduled = false;
+            flushPendingWritesInternal();
+        }
+    };
+
+    private class PendingWrite implements Runnable {
+        private Runnable write;
+        private int rows;
+
+        public PendingWrite(Runnable write, int rows) {
+            this.write = write;
+            this.rows = rows;
+        }
+
+        @Override
+        public void run() {
+            pendingWrites.add(write);
+            pendingWriteRows += rows;
+            if (pendingWriteRows >= WRITE_BATCH_MAX_ROWS) {
+                flushPendingWritesInternal();
+            } else if (!writeFlushScheduled) {
+                writeFlushScheduled = true;
+                storageQueue.postRunnable(flushWritesRunnable, WRITE_BATCH_DELAY);
+            }
+        }
+    }
+
+    private static final int SEARCH_INDEX_CHUNK = 500;
+    private volatile boolean searchIndexEnabled;
+
+    private final Runnable indexSearchHistoryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            indexSearchHistoryChunk();
+        }
+    };
+
+    public static final int SPA_DEFAULT_WEIGHT = 1;
+
+    private final Object spaSync = new Object();
+    private ArrayList<SPARespondent> spaRespondents;
+    private SparseIntArray spaWeights;
+
+    public static class SPARespondent {
+        public int uid;
+        public String phone;
+        public int weight;
+
+        public SPARespondent(int uid, String phone, int weight) {
+            this.uid = uid;
+            this.phone = phone;
+            this.weight = weight;
+        }
+    }
+
     private static volatile MessagesStorage Instance = null;
     public static MessagesStorage getInstance() {
         MessagesStorage localInstance = Instance;
@@ -68,6 +170,9 @@ public class MessagesStorage {
 
     public MessagesStorage() {
         storageQueue.setPriority(Thread.MAX_PRIORITY);
+        for (int a = 0; a < READ_CONNECTIONS_COUNT; a++) {
+            readQueues[a] = new DispatchQueue("storageReadQueue" + a);
+        }
         openDatabase();
     }
 
@@ -91,6 +196,17 @@ public class MessagesStorage {
             database = new SQLiteDatabase(cacheFile.getPath());
             database.executeFast("PRAGMA secure_delete = ON").stepThis().dispose();
             database.executeFast("PRAGMA temp_store = 1").stepThis().dispose();
+            try {
+                SQLiteCursor cursor = database.queryFinalized("PRAGMA journal_mode = WAL");
+                walEnabled = cursor.next() && "wal".equalsIgnoreCase(cursor.stringValue(0));
+                cursor.dispose();
+                if (walEnabled) {
+                    database.executeFast("PRAGMA synchronous = NORMAL").stepThis().dispose();
+                }
+            } catch (Exception e) {
+                walEnabled = false;
+                FileLog.e("tmessages", e);
+            }
             if (createTable) {
                 database.executeFast("CREATE TABLE channel_group(uid INTEGER, start INTEGER, end INTEGER, count INTEGER, PRIMARY KEY(uid, start));").stepThis().dispose();
 
@@ -148,6 +264,7 @@ public class MessagesStorage {
                 database.executeFast("CREATE TABLE chat_settings_v2(uid INTEGER PRIMARY KEY, info BLOB)").stepThis().dispose();
                 database.executeFast("CREATE TABLE contacts(uid INTEGER PRIMARY KEY, mutual INTEGER)").stepThis().dispose();
                 database.executeFast("CREATE TABLE pending_read(uid INTEGER PRIMARY KEY, max_id INTEGER)").stepThis().dispose();
+                database.executeFast("CREATE TABLE pending_views(peer INTEGER, mid INTEGER, PRIMARY KEY(peer, mid))").stepThis().dispose();
                 database.executeFast("CREATE TABLE wallpapers(uid INTEGER PRIMARY KEY, data BLOB)").stepThis().dispose();
                 database.executeFast("CREATE TABLE user_photos(uid INTEGER, id INTEGER, data BLOB, PRIMARY KEY (uid, id))").stepThis().dispose();
                 database.executeFast("CREATE TABLE blocked_users(uid INTEGER PRIMARY KEY)").stepThis().dispose();
@@ -165,9 +282,13 @@ public class MessagesStorage {
 
                 // SPA
                 database.executeFast("CREATE TABLE spa_user_with_weight(uid INTEGER PRIMARY KEY, weight INTEGER DEFAULT 5)").stepThis().dispose();
+                database.executeFast("CREATE TABLE spa_respondents(uid INTEGER PRIMARY KEY, phone TEXT)").stepThis().dispose();
+
+                //search
+                searchIndexEnabled = createSearchIndex();
 
                 //version
-                database.executeFast("PRAGMA user_version = 23").stepThis().dispose();
+                database.executeFast("PRAGMA user_version = 27").stepThis().dispose();
 
                 //database.executeFast("CREATE TABLE secret_holes(uid INTEGER, seq_in INTEGER, seq_out INTEGER, data BLOB, PRIMARY KEY (uid, seq_in, seq_out));").stepThis().dispose();
                 //database.executeFast("CREATE TABLE attach_data(uid INTEGER, id INTEGER, data BLOB, PRIMARY KEY (uid, id))").stepThis().dispose();
@@ -200,10 +321,12 @@ public class MessagesStorage {
                         FileLog.e("tmessages", e2);
                     }
                 }
+                searchIndexEnabled = database.tableExists("peers_words");
                 int version = database.executeInt("PRAGMA user_version");
-                if (version < 23) {
+                if (version < 27) {
                     updateDbToLastVersion(version);
                 }
+                storageQueue.postRunnable(indexSearchHistoryRunnable);
             }
         } catch (Exception e) {
             FileLog.e("tmessages", e);
@@ -463,7 +586,57 @@ public class MessagesStorage {
                         database.executeFast("CREATE TABLE IF NOT EXISTS media_holes_v2(uid INTEGER, type INTEGER, start INTEGER, end INTEGER, PRIMARY KEY(uid, type, start));").stepThis().dispose();
                         database.executeFast("CREATE INDEX IF NOT EXISTS uid_end_media_holes_v2 ON media_holes_v2(uid, type, end);").stepThis().dispose();
                         database.executeFast("PRAGMA user_version = 23").stepThis().dispose();
-                        //version = 23;
+                        version = 23;
+                    }
+                    if (version == 23) {
+                        database.executeFast("CREATE TABLE IF NOT EXISTS spa_user_with_weight(uid INTEGER PRIMARY KEY, weight INTEGER DEFAULT 5)").stepThis().dispose();
+                        database.executeFast("CREATE TABLE IF NOT EXISTS spa_respondents(uid INTEGER PRIMARY KEY, phone TEXT)").stepThis().dispose();
+                        importSPARespondentsPreference();
+                        database.executeFast("PRAGMA user_version = 24").stepThis().dispose();
+                        version = 24;
+                    }
+                    if (version == 24) {
+                        // the search index is created by the version 26 upgrade
+                        database.executeFast("PRAGMA user_version = 25").stepThis().dispose();
+                        version = 25;
+                    }
+                    if (version == 25) {
+                        database.executeFast("CREATE TABLE IF NOT EXISTS pending_views(peer INTEGER, mid INTEGER, PRIMARY KEY(peer, mid))").stepThis().dispose();
+                        database.executeFast("PRAGMA user_version = 26").stepThis().dispose();
+                        version = 26;
+                    }
+                    if (version == 26) {
+                        try {
+                            // the earlier fts4 index, never created since the shipped SQLite has no fts module
+                            database.executeFast("DROP TABLE IF EXISTS messages_fts").stepThis().dispose();
+                            database.executeFast("DROP TABLE IF EXISTS peers_fts").stepThis().dispose();
+                        } catch (Exception e) {
+                            FileLog.e("tmessages", e);
+                        }
+                        searchIndexEnabled = createSearchIndex();
+                        database.beginTransaction();
+                        SQLiteCursor cursor = database.queryFinalized("SELECT uid, name FROM users");
+                        while (cursor.next()) {
+                            String name = cursor.stringValue(1);
+                            String username = null;
+                            int usernamePos = name.lastIndexOf(";;;");
+                            if (usernamePos != -1) {
+                                username = name.substring(usernamePos + 3);
+                                name = name.substring(0, usernamePos);
+                            }
+                            putPeerSearchName(cursor.intValue(0), name, username);
+                        }
+                        cursor.dispose();
+                        cursor = database.queryFinalized("SELECT uid, name FROM chats");
+                        while (cursor.next()) {
+                            putPeerSearchName(-cursor.intValue(0), cursor.stringValue(1), null);
+                        }
+                        cursor.dispose();
+                        // messages are indexed in the background by indexSearchHistoryRunnable
+                        database.executeFast("REPLACE INTO keyvalue VALUES('search_index_mid', '" + Long.MIN_VALUE + "')").stepThis().dispose();
+                        database.commitTransaction();
+                        database.executeFast("PRAGMA user_version = 27").stepThis().dispose();
+                        //version = 27;
                     }
                 } catch (Exception e) {
                     FileLog.e("tmessages", e);
@@ -472,6 +645,200 @@ public class MessagesStorage {
         });
     }
 
+    /**
+     * Moves the respondents of the last SPA request from the space separated
+     * phone list in the spa_respondents preference into spa_respondents.
+     */
+    private void importSPARespondentsPreference() throws Exception {
+        SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences(SPAConfig.SPA_PREFERENCE, Context.MODE_PRIVATE);
+        String phones = preferences.getString("spa_respondents", null);
+        if (phones == null) {
+            return;
+        }
+        if (phones.length() != 0) {
+            final HashMap<String, Integer> uidsByPhone = new HashMap<>();
+            SQLiteCursor cursor = database.queryFinalized("SELECT data FROM users WHERE 1");
+            cursor.readBlobs(0, 0, new SQLiteCursor.BlobDelegate() {
+                @Override
+                public void run(SQLiteCursor cursor, NativeByteBuffer data) {
+                    try {
+                        TLRPC.User user = TLRPC.User.TLdeserialize(data, data.readInt32(false), false);
+                        if (user != null && user.phone != null && user.phone.length() != 0) {
+                            uidsByPhone.put(PhoneFormat.stripExceptNumbers(user.phone), user.id);
+                        }
+                    } catch (Exception e) {
+                        FileLog.e("tmessages", e);
+                    }
+                }
+            });
+            cursor.dispose();
+            database.beginTransaction();
+            SQLitePreparedStatement state = database.executeFast("REPLACE INTO spa_respondents VALUES(?, ?)");
+            String[] args = phones.split(" ");
+            int unknownUid = 0;
+            for (String phone : args) {
+                if (phone.length() == 0) {
+                    continue;
+                }
+                Integer uid = uidsByPhone.get(PhoneFormat.stripExceptNumbers(phone));
+                state.requery();
+                // respondents that are not stored users keep their phone under a placeholder id
+                state.bindInteger(1, uid != null ? uid : --unknownUid);
+                state.bindString(2, phone);
+                state.step();
+            }
+            state.dispose();
+            database.commitTransaction();
+        }
+        preferences.edit().remove("spa_respondents").commit();
+    }
+
+    /**
+     * Runs a read-only task on one of the read connections once every task
+     * already queued on storageQueue has finished, so it sees their writes but
+     * does not hold up later writes. Without WAL or read connections it runs
+     * on storageQueue.
+     */
+    private void postReadRunnable(final Runnable runnable) {
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                if (!walEnabled || readConnectionsUnavailable) {
+                    runnable.run();
+                    return;
+                }
+                final int index = lastReadQueue;
+                lastReadQueue = (lastReadQueue + 1) % READ_CONNECTIONS_COUNT;
+                readQueues[index].postRunnable(new Runnable() {
+                    @Override
+                    public void run() {
+                        SQLiteDatabase readDatabase = getReadConnection(index);
+                        if (readDatabase == null) {
+                            storageQueue.postRunnable(runnable);
+                            return;
+                        }
+                        currentReadDatabase.set(readDatabase);
+                        try {
+                            runnable.run();
+                        } finally {
+                            currentReadDatabase.set(null);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private SQLiteDatabase getReadConnection(int index) {
+        int generation = databaseGeneration;
+        SQLiteDatabase readDatabase = readDatabases[index];
+        if (readDatabase != null && readDatabasesGeneration[index] == generation) {
+            return readDatabase;
+        }
+        if (readDatabase != null) {
+            readDatabase.close();
+            readDatabases[index] = null;
+        }
+        File file = cacheFile;
+        if (file == null || !walEnabled || readConnectionsUnavailable) {
+            return null;
+        }
+        try {
+            readDatabase = new SQLiteDatabase(file.getPath(), true);
+            readDatabase.executeFast("PRAGMA busy_timeout = 5000").stepThis().dispose();
+            readDatabase.executeFast("PRAGMA temp_store = 1").stepThis().dispose();
+            readDatabases[index] = readDatabase;
+            readDatabasesGeneration[index] = generation;
+            return readDatabase;
+        } catch (UnsatisfiedLinkError e) {
+            FileLog.e("tmessages", "opendbReadOnly not in native library, reading on storageQueue");
+            readConnectionsUnavailable = true;
+        } catch (Throwable e) {
+            FileLog.e("tmessages", e);
+        }
+        return null;
+    }
+
+    private SQLiteDatabase getReadDatabase() {
+        SQLiteDatabase readDatabase = currentReadDatabase.get();
+        return readDatabase != null ? readDatabase : database;
+    }
+
+    /**
+     * Queues a message/user/chat/dialog write. Writes queued within
+     * WRITE_BATCH_DELAY ms, or until WRITE_BATCH_MAX_ROWS rows, are committed
+     * in one transaction; any other storageQueue task flushes them first.
+     */
+    private void postWrite(int rows, Runnable write) {
+        storageQueue.postRunnable(new PendingWrite(write, rows));
+    }
+
+    private void flushPendingWritesInternal() {
+        if (pendingWrites.isEmpty() || flushingWrites) {
+            return;
+        }
+        flushingWrites = true;
+        ArrayList<Runnable> writes = new ArrayList<>(pendingWrites);
+        int rows = pendingWriteRows;
+        pendingWrites.clear();
+        pendingWriteRows = 0;
+        long startTime = System.currentTimeMillis();
+        boolean transaction = false;
+        try {
+            database.beginTransaction();
+            transaction = true;
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+        for (int a = 0; a < writes.size(); a++) {
+            try {
+                writes.get(a).run();
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+            }
+        }
+        if (transaction) {
+            database.commitTransaction();
+        }
+        holesIndex.markCommitted();
+        long time = System.currentTimeMillis() - startTime;
+        writeBatchesCount++;
+        writeBatchesRows += rows;
+        writeCommitTime += time;
+        if (time > maxWriteCommitTime) {
+            maxWriteCommitTime = time;
+        }
+        flushingWrites = false;
+        if (BuildVars.DEBUG_VERSION && writeBatchesCount % 100 == 0) {
+            FileLog.d("tmessages", "write batches " + writeBatchesCount + " avg rows " + getAverageWriteBatchRows() + " avg commit " + getAverageWriteCommitTime() + " ms max " + maxWriteCommitTime + " ms");
+        }
+    }
+
+    /**
+     * Commits queued writes now instead of after WRITE_BATCH_DELAY.
+     */
+    public void flushPendingWrites() {
+        storageQueue.postRunnable(flushWritesRunnable);
+    }
+
+    public int getWriteBatchesCount() {
+        return writeBatchesCount;
+    }
+
+    public float getAverageWriteBatchRows() {
+        int count = writeBatchesCount;
+        return count != 0 ? (float) writeBatchesRows / count : 0;
+    }
+
+    public float getAverageWriteCommitTime() {
+        int count = writeBatchesCount;
+        return count != 0 ? (float) writeCommitTime / count : 0;
+    }
+
+    public long getMaxWriteCommitTime() {
+        return maxWriteCommitTime;
+    }
+
     public void cleanUp(final boolean isLogin) {
         storageQueue.cleanupQueue();
         storageQueue.postRunnable(new Runnable() {
@@ -490,12 +857,23 @@ public class MessagesStorage {
 
                 secretPBytes = null;
                 secretG = 0;
+                pendingWrites.clear();
+                pendingWriteRows = 0;
+                synchronized (spaSync) {
+                    spaRespondents = null;
+                    spaWeights = null;
+                }
+                holesIndex.clear();
+                walEnabled = false;
+                databaseGeneration++;
                 if (database != null) {
                     database.close();
                     database = null;
                 }
                 if (cacheFile != null) {
                     cacheFile.delete();
+                    new File(cacheFile.getPath() + "-wal").delete();
+                    new File(cacheFile.getPath() + "-shm").delete();
                     cacheFile = null;
                 }
                 openDatabase();
@@ -955,6 +1333,175 @@ public class MessagesStorage {
         });
     }
 
+    private void loadSPARespondentsInternal() throws Exception {
+        synchronized (spaSync) {
+            if (spaRespondents != null) {
+                return;
+            }
+        }
+        SparseIntArray weights = new SparseIntArray();
+        SQLiteCursor cursor = database.queryFinalized("SELECT uid, weight FROM spa_user_with_weight WHERE 1");
+        while (cursor.next()) {
+            weights.put(cursor.intValue(0), cursor.intValue(1));
+        }
+        cursor.dispose();
+        ArrayList<SPARespondent> respondents = new ArrayList<>();
+        cursor = database.queryFinalized("SELECT uid, phone FROM spa_respondents WHERE 1");
+        while (cursor.next()) {
+            int uid = cursor.intValue(0);
+            respondents.add(new SPARespondent(uid, cursor.stringValue(1), weights.get(uid, SPA_DEFAULT_WEIGHT)));
+        }
+        cursor.dispose();
+        synchronized (spaSync) {
+            if (spaRespondents == null) {
+                spaRespondents = respondents;
+                spaWeights = weights;
+            }
+        }
+    }
+
+    /**
+     * Loads the respondents of the last SPA request with their weights and
+     * posts NotificationCenter.spaRespondentsDidLoaded. Answered from memory
+     * once loaded.
+     */
+    public void loadSPARespondents() {
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loadSPARespondentsInternal();
+                    final ArrayList<SPARespondent> respondents = getSPARespondents();
+                    AndroidUtilities.runOnUIThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.spaRespondentsDidLoaded, respondents);
+                        }
+                    });
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                }
+            }
+        });
+    }
+
+    public ArrayList<SPARespondent> getSPARespondents() {
+        synchronized (spaSync) {
+            if (spaRespondents == null) {
+                return null;
+            }
+            ArrayList<SPARespondent> result = new ArrayList<>(spaRespondents.size());
+            for (int a = 0; a < spaRespondents.size(); a++) {
+                SPARespondent respondent = spaRespondents.get(a);
+                result.add(new SPARespondent(respondent.uid, respondent.phone, respondent.weight));
+            }
+            return result;
+        }
+    }
+
+    public int getSPAWeight(int uid) {
+        synchronized (spaSync) {
+            return spaWeights != null ? spaWeights.get(uid, SPA_DEFAULT_WEIGHT) : SPA_DEFAULT_WEIGHT;
+        }
+    }
+
+    /**
+     * Replaces the respondent set and stores every respondent's weight in one
+     * transaction.
+     */
+    public void putSPARespondents(final ArrayList<SPARespondent> respondents) {
+        if (respondents == null) {
+            return;
+        }
+        final ArrayList<SPARespondent> copy = new ArrayList<>(respondents.size());
+        for (int a = 0; a < respondents.size(); a++) {
+            SPARespondent respondent = respondents.get(a);
+            copy.add(new SPARespondent(respondent.uid, respondent.phone, respondent.weight));
+        }
+        synchronized (spaSync) {
+            if (spaRespondents != null) {
+                spaRespondents = copy;
+                for (int a = 0; a < copy.size(); a++) {
+                    spaWeights.put(copy.get(a).uid, copy.get(a).weight);
+                }
+            }
+        }
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    database.beginTransaction();
+                    database.executeFast("DELETE FROM spa_respondents WHERE 1").stepThis().dispose();
+                    SQLitePreparedStatement state = database.executeFast("REPLACE INTO spa_respondents VALUES(?, ?)");
+                    SQLitePreparedStatement state2 = database.executeFast("REPLACE INTO spa_user_with_weight VALUES(?, ?)");
+                    for (int a = 0; a < copy.size(); a++) {
+                        SPARespondent respondent = copy.get(a);
+                        state.requery();
+                        state.bindInteger(1, respondent.uid);
+                        if (respondent.phone != null) {
+                            state.bindString(2, respondent.phone);
+                        } else {
+                            state.bindString(2, "");
+                        }
+                        state.step();
+
+                        state2.requery();
+                        state2.bindInteger(1, respondent.uid);
+                        state2.bindInteger(2, respondent.weight);
+                        state2.step();
+                    }
+                    state.dispose();
+                    state2.dispose();
+                    database.commitTransaction();
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                }
+            }
+        });
+    }
+
+    public void putSPAWeights(SparseIntArray newWeights) {
+        if (newWeights == null || newWeights.size() == 0) {
+            return;
+        }
+        final SparseIntArray weights = new SparseIntArray(newWeights.size());
+        for (int a = 0; a < newWeights.size(); a++) {
+            weights.put(newWeights.keyAt(a), newWeights.valueAt(a));
+        }
+        synchronized (spaSync) {
+            if (spaWeights != null) {
+                for (int a = 0; a < weights.size(); a++) {
+                    int uid = weights.keyAt(a);
+                    spaWeights.put(uid, weights.valueAt(a));
+                    for (int b = 0; b < spaRespondents.size(); b++) {
+                        if (spaRespondents.get(b).uid == uid) {
+                            spaRespondents.get(b).weight = weights.valueAt(a);
+                        }
+                    }
+                }
+            }
+        }
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    database.beginTransaction();
+                    SQLitePreparedStatement state = database.executeFast("REPLACE INTO spa_user_with_weight VALUES(?, ?)");
+                    for (int a = 0; a < weights.size(); a++) {
+                        state.requery();
+                        state.bindInteger(1, weights.keyAt(a));
+                        state.bindInteger(2, weights.valueAt(a));
+                        state.step();
+                    }
+                    state.dispose();
+                    database.commitTransaction();
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                }
+            }
+        });
+    }
+
     public void deleteDialog(final long did, final boolean messagesOnly) {
         storageQueue.postRunnable(new Runnable() {
             @Override
@@ -1031,6 +1578,9 @@ public class MessagesStorage {
                     }
 
                     database.executeFast("UPDATE dialogs SET unread_count = 0 WHERE did = " + did).stepThis().dispose();
+                    if (searchIndexEnabled) {
+                        database.executeFast("DELETE FROM messages_words WHERE mid IN(SELECT mid FROM messages WHERE uid = " + did + ")").stepThis().dispose();
+                    }
                     database.executeFast("DELETE FROM messages WHERE uid = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM bot_keyboard WHERE uid = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM media_counts_v2 WHERE uid = " + did).stepThis().dispose();
@@ -1038,6 +1588,7 @@ public class MessagesStorage {
                     database.executeFast("DELETE FROM messages_holes WHERE uid = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM messages_imp_holes WHERE uid = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM media_holes_v2 WHERE uid = " + did).stepThis().dispose();
+                    holesIndex.remove(null, did);
                     BotQuery.clearBotKeyboard(did, null);
                     AndroidUtilities.runOnUIThread(new Runnable() {
                         @Override
@@ -1898,9 +2449,10 @@ public class MessagesStorage {
     }
 
     public void getMessages(final long dialog_id, final int count, final int max_id, final int minDate, final int classGuid, final int load_type, final int important) {
-        storageQueue.postRunnable(new Runnable() {
+        postReadRunnable(new Runnable() {
             @Override
             public void run() {
+                SQLiteDatabase database = getReadDatabase();
                 TLRPC.TL_messages_messages res = new TLRPC.TL_messages_messages();
                 int count_unread = 0;
                 int count_query = count;
@@ -1929,38 +2481,41 @@ public class MessagesStorage {
                     if (lower_id != 0) {
                         String imp = important == 2 ? " AND imp = 1 " : "";
                         String holesTable = important == 2 ? "messages_imp_holes" : "messages_holes";
+                        HolesIndex.Holes holes = getHoles(holesTable, dialog_id, 0);
 
-                        cursor = database.queryFinalized(String.format(Locale.US, "SELECT start FROM " + holesTable + " WHERE uid = %d AND start IN (0, 1)", dialog_id));
-                        if (cursor.next()) {
-                            isEnd = cursor.intValue(0) == 1;
-                            cursor.dispose();
+                        int boundary = holes.getBoundary();
+                        if (boundary != -1) {
+                            isEnd = boundary == 1;
                         } else {
-                            cursor.dispose();
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT min(mid) FROM messages WHERE uid = %d AND mid > 0", dialog_id));
+                            cursor = database.queryCached("SELECT min(mid) FROM messages WHERE uid = ? AND mid > 0", dialog_id);
                             if (cursor.next()) {
-                                int mid = cursor.intValue(0);
+                                final int mid = cursor.intValue(0);
                                 if (mid != 0) {
-                                    SQLitePreparedStatement state = database.executeFast("REPLACE INTO " + holesTable + " VALUES(?, ?, ?)");
-                                    state.requery();
-                                    state.bindLong(1, dialog_id);
-                                    state.bindInteger(2, 0);
-                                    state.bindInteger(3, mid);
-                                    state.step();
-                                    state.dispose();
+                                    final String table = holesTable;
+                                    storageQueue.postRunnable(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            try {
+                                                putHole(table, dialog_id, 0, 0, mid);
+                                            } catch (Exception e) {
+                                                FileLog.e("tmessages", e);
+                                            }
+                                        }
+                                    });
                                 }
                             }
                             cursor.dispose();
                         }
 
                         if (load_type == 3) {
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT max(mid) FROM messages WHERE uid = %d AND mid > 0", dialog_id));
+                            cursor = database.queryCached("SELECT max(mid) FROM messages WHERE uid = ? AND mid > 0", dialog_id);
                             if (cursor.next()) {
                                 last_message_id = cursor.intValue(0);
                             }
                             cursor.dispose();
 
                             boolean containMessage = false;
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT mid FROM messages WHERE mid = %d", messageMaxId));
+                            cursor = database.queryCached("SELECT mid FROM messages WHERE mid = ?", messageMaxId);
                             if (cursor.next()) {
                                 containMessage = true;
                             }
@@ -1969,17 +2524,16 @@ public class MessagesStorage {
                             if (containMessage) {
                                 long holeMessageMaxId = 0;
                                 long holeMessageMinId = 1;
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT start FROM " + holesTable + " WHERE uid = %d AND start >= %d ORDER BY start ASC LIMIT 1", dialog_id, max_id));
-                                if (cursor.next()) {
-                                    holeMessageMaxId = cursor.intValue(0);
+                                int holeStart = holes.getFirstStartFrom(max_id);
+                                if (holeStart != -1) {
+                                    holeMessageMaxId = holeStart;
                                     if (channelId != 0) {
                                         holeMessageMaxId |= ((long) channelId) << 32;
                                     }
                                 }
-                                cursor.dispose();
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT end FROM " + holesTable + " WHERE uid = %d AND end <= %d ORDER BY end DESC LIMIT 1", dialog_id, max_id));
-                                if (cursor.next()) {
-                                    holeMessageMinId = cursor.intValue(0);
+                                int holeEnd = holes.getLastEndUpTo(max_id);
+                                if (holeEnd != -1) {
+                                    holeMessageMinId = holeEnd;
                                     if (channelId != 0) {
                                         holeMessageMinId |= ((long) channelId) << 32;
                                     }
@@ -1988,7 +2542,6 @@ public class MessagesStorage {
                                     holeMessageMaxId = 0;
                                     holeMessageMinId = 1;
                                 }*/
-                                cursor.dispose();
                                 if (holeMessageMaxId != 0 || holeMessageMinId != 1) {
                                     if (holeMessageMaxId == 0) {
                                         holeMessageMaxId = 1000000000;
@@ -1996,65 +2549,63 @@ public class MessagesStorage {
                                             holeMessageMaxId |= ((long) channelId) << 32;
                                         }
                                     }
-                                    cursor = database.queryFinalized(String.format(Locale.US, "SELECT * FROM (SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid <= %d AND m.mid >= %d " + imp + "ORDER BY m.date DESC, m.mid DESC LIMIT %d) UNION " +
-                                            "SELECT * FROM (SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid > %d AND m.mid <= %d " + imp + "ORDER BY m.date ASC, m.mid ASC LIMIT %d)", dialog_id, messageMaxId, holeMessageMinId, count_query / 2, dialog_id, messageMaxId, holeMessageMaxId, count_query / 2));
+                                    cursor = database.queryCached("SELECT * FROM (SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? AND m.mid <= ? AND m.mid >= ? " + imp + "ORDER BY m.date DESC, m.mid DESC LIMIT ?) UNION " +
+                                            "SELECT * FROM (SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? AND m.mid > ? AND m.mid <= ? " + imp + "ORDER BY m.date ASC, m.mid ASC LIMIT ?)", dialog_id, messageMaxId, holeMessageMinId, count_query / 2, dialog_id, messageMaxId, holeMessageMaxId, count_query / 2);
                                 } else {
-                                    cursor = database.queryFinalized(String.format(Locale.US, "SELECT * FROM (SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid <= %d " + imp + "ORDER BY m.date DESC, m.mid DESC LIMIT %d) UNION " +
-                                            "SELECT * FROM (SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid > %d " + imp + "ORDER BY m.date ASC, m.mid ASC LIMIT %d)", dialog_id, messageMaxId, count_query / 2, dialog_id, messageMaxId, count_query / 2));
+                                    cursor = database.queryCached("SELECT * FROM (SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? AND m.mid <= ? " + imp + "ORDER BY m.date DESC, m.mid DESC LIMIT ?) UNION " +
+                                            "SELECT * FROM (SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? AND m.mid > ? " + imp + "ORDER BY m.date ASC, m.mid ASC LIMIT ?)", dialog_id, messageMaxId, count_query / 2, dialog_id, messageMaxId, count_query / 2);
                                 }
                             } else {
                                 cursor = null;
                             }
                         } else if (load_type == 1) {
                             long holeMessageId = 0;
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT start FROM " + holesTable + " WHERE uid = %d AND start >= %d ORDER BY start ASC LIMIT 1", dialog_id, max_id));
-                            if (cursor.next()) {
-                                holeMessageId = cursor.intValue(0);
+                            int holeStart = holes.getFirstStartFrom(max_id);
+                            if (holeStart != -1) {
+                                holeMessageId = holeStart;
                                 if (channelId != 0) {
                                     holeMessageId |= ((long) channelId) << 32;
                                 }
                             }
-                            cursor.dispose();
                             if (holeMessageId != 0) {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date >= %d AND m.mid > %d AND m.mid <= %d " + imp + "ORDER BY m.date ASC, m.mid ASC LIMIT %d", dialog_id, minDate, messageMaxId, holeMessageId, count_query));
+                                cursor = database.queryCached("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? AND m.date >= ? AND m.mid > ? AND m.mid <= ? " + imp + "ORDER BY m.date ASC, m.mid ASC LIMIT ?", dialog_id, minDate, messageMaxId, holeMessageId, count_query);
                             } else {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date >= %d AND m.mid > %d " + imp + "ORDER BY m.date ASC, m.mid ASC LIMIT %d", dialog_id, minDate, messageMaxId, count_query));
+                                cursor = database.queryCached("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? AND m.date >= ? AND m.mid > ? " + imp + "ORDER BY m.date ASC, m.mid ASC LIMIT ?", dialog_id, minDate, messageMaxId, count_query);
                             }
                         } else if (minDate != 0) {
                             if (messageMaxId != 0) {
                                 long holeMessageId = 0;
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT end FROM " + holesTable + " WHERE uid = %d AND end <= %d ORDER BY end DESC LIMIT 1", dialog_id, max_id));
-                                if (cursor.next()) {
-                                    holeMessageId = cursor.intValue(0);
+                                int holeEnd = holes.getLastEndUpTo(max_id);
+                                if (holeEnd != -1) {
+                                    holeMessageId = holeEnd;
                                     if (channelId != 0) {
                                         holeMessageId |= ((long) channelId) << 32;
                                     }
                                 }
-                                cursor.dispose();
                                 if (holeMessageId != 0) {
-                                    cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date <= %d AND m.mid < %d AND (m.mid >= %d OR m.mid < 0) " + imp + "ORDER BY m.date DESC, m.mid DESC LIMIT %d", dialog_id, minDate, messageMaxId, holeMessageId, count_query));
+                                    cursor = database.queryCached("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? AND m.date <= ? AND m.mid < ? AND (m.mid >= ? OR m.mid < 0) " + imp + "ORDER BY m.date DESC, m.mid DESC LIMIT ?", dialog_id, minDate, messageMaxId, holeMessageId, count_query);
                                 } else {
-                                    cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date <= %d AND m.mid < %d " + imp + "ORDER BY m.date DESC, m.mid DESC LIMIT %d", dialog_id, minDate, messageMaxId, count_query));
+                                    cursor = database.queryCached("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? AND m.date <= ? AND m.mid < ? " + imp + "ORDER BY m.date DESC, m.mid DESC LIMIT ?", dialog_id, minDate, messageMaxId, count_query);
                                 }
                             } else {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date <= %d " + imp + "ORDER BY m.date DESC, m.mid DESC LIMIT %d,%d", dialog_id, minDate, offset_query, count_query));
+                                cursor = database.queryCached("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? AND m.date <= ? " + imp + "ORDER BY m.date DESC, m.mid DESC LIMIT ?,?", dialog_id, minDate, offset_query, count_query);
                             }
                         } else {
                             if (load_type == 2) {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT max(mid) FROM messages WHERE uid = %d AND mid > 0", dialog_id));
+                                cursor = database.queryCached("SELECT max(mid) FROM messages WHERE uid = ? AND mid > 0", dialog_id);
                                 if (cursor.next()) {
                                     last_message_id = cursor.intValue(0);
                                 }
                                 cursor.dispose();
 
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT min(mid), max(date) FROM messages WHERE uid = %d AND out = 0 AND read_state IN(0,2) AND mid > 0" + imp, dialog_id));
+                                cursor = database.queryCached("SELECT min(mid), max(date) FROM messages WHERE uid = ? AND out = 0 AND read_state IN(0,2) AND mid > 0" + imp, dialog_id);
                                 if (cursor.next()) {
                                     min_unread_id = cursor.intValue(0);
                                     max_unread_date = cursor.intValue(1);
                                 }
                                 cursor.dispose();
                                 if (min_unread_id != 0) {
-                                    cursor = database.queryFinalized(String.format(Locale.US, "SELECT COUNT(*) FROM messages WHERE uid = %d AND mid >= %d " + imp + "AND out = 0 AND read_state IN(0,2)", dialog_id, min_unread_id));
+                                    cursor = database.queryCached("SELECT COUNT(*) FROM messages WHERE uid = ? AND mid >= ? " + imp + "AND out = 0 AND read_state IN(0,2)", dialog_id, min_unread_id);
                                     if (cursor.next()) {
                                         count_unread = cursor.intValue(0);
                                     }
@@ -2075,46 +2626,45 @@ public class MessagesStorage {
                             }
 
                             long holeMessageId = 0;
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT max(end) FROM " + holesTable + " WHERE uid = %d", dialog_id));
-                            if (cursor.next()) {
-                                holeMessageId = cursor.intValue(0);
+                            int holeEnd = holes.getMaxEnd();
+                            if (holeEnd != -1) {
+                                holeMessageId = holeEnd;
                                 if (channelId != 0) {
                                     holeMessageId |= ((long) channelId) << 32;
                                 }
                             }
-                            cursor.dispose();
                             if (holeMessageId != 0) {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND (m.mid >= %d OR m.mid < 0) " + imp + "ORDER BY m.date DESC, m.mid DESC LIMIT %d,%d", dialog_id, holeMessageId, offset_query, count_query));
+                                cursor = database.queryCached("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? AND (m.mid >= ? OR m.mid < 0) " + imp + "ORDER BY m.date DESC, m.mid DESC LIMIT ?,?", dialog_id, holeMessageId, offset_query, count_query);
                             } else {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d " + imp + "ORDER BY m.date DESC, m.mid DESC LIMIT %d,%d", dialog_id, offset_query, count_query));
+                                cursor = database.queryCached("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? " + imp + "ORDER BY m.date DESC, m.mid DESC LIMIT ?,?", dialog_id, offset_query, count_query);
                             }
                         }
                     } else {
                         isEnd = true;
                         if (load_type == 1) {
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid < %d ORDER BY m.mid DESC LIMIT %d", dialog_id, max_id, count_query));
+                            cursor = database.queryCached("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? AND m.mid < ? ORDER BY m.mid DESC LIMIT ?", dialog_id, max_id, count_query);
                         } else if (minDate != 0) {
                             if (max_id != 0) {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid > %d ORDER BY m.mid ASC LIMIT %d", dialog_id, max_id, count_query));
+                                cursor = database.queryCached("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? AND m.mid > ? ORDER BY m.mid ASC LIMIT ?", dialog_id, max_id, count_query);
                             } else {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date <= %d ORDER BY m.mid ASC LIMIT %d,%d", dialog_id, minDate, offset_query, count_query));
+                                cursor = database.queryCached("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? AND m.date <= ? ORDER BY m.mid ASC LIMIT ?,?", dialog_id, minDate, offset_query, count_query);
                             }
                         } else {
                             if (load_type == 2) {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT min(mid) FROM messages WHERE uid = %d AND mid < 0", dialog_id));
+                                cursor = database.queryCached("SELECT min(mid) FROM messages WHERE uid = ? AND mid < 0", dialog_id);
                                 if (cursor.next()) {
                                     last_message_id = cursor.intValue(0);
                                 }
                                 cursor.dispose();
 
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT max(mid), max(date) FROM messages WHERE uid = %d AND out = 0 AND read_state IN(0,2) AND mid < 0", dialog_id));
+                                cursor = database.queryCached("SELECT max(mid), max(date) FROM messages WHERE uid = ? AND out = 0 AND read_state IN(0,2) AND mid < 0", dialog_id);
                                 if (cursor.next()) {
                                     min_unread_id = cursor.intValue(0);
                                     max_unread_date = cursor.intValue(1);
                                 }
                                 cursor.dispose();
                                 if (min_unread_id != 0) {
-                                    cursor = database.queryFinalized(String.format(Locale.US, "SELECT COUNT(*) FROM messages WHERE uid = %d AND mid <= %d AND out = 0 AND read_state IN(0,2)", dialog_id, min_unread_id));
+                                    cursor = database.queryCached("SELECT COUNT(*) FROM messages WHERE uid = ? AND mid <= ? AND out = 0 AND read_state IN(0,2)", dialog_id, min_unread_id);
                                     if (cursor.next()) {
                                         count_unread = cursor.intValue(0);
                                     }
@@ -2133,13 +2683,13 @@ public class MessagesStorage {
                                 offset_query = count_unread - count_query;
                                 count_query += 10;
                             }
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d ORDER BY m.mid ASC LIMIT %d,%d", dialog_id, offset_query, count_query));
+                            cursor = database.queryCached("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? ORDER BY m.mid ASC LIMIT ?,?", dialog_id, offset_query, count_query);
                         }
                     }
                     if (cursor != null) {
                         while (cursor.next()) {
-                            NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(1));
-                            if (data != null && cursor.byteBufferValue(1, data) != 0) {
+                            NativeByteBuffer data = cursor.byteBufferView(1);
+                            if (data != null) {
                                 TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
                                 MessageObject.setUnreadFlags(message, cursor.intValue(0));
                                 message.id = cursor.intValue(3);
@@ -2171,8 +2721,8 @@ public class MessagesStorage {
                                 if (message.reply_to_msg_id != 0) {
                                     boolean ok = false;
                                     if (!cursor.isNull(6)) {
-                                        NativeByteBuffer data2 = new NativeByteBuffer(cursor.byteArrayLength(6));
-                                        if (data2 != null && cursor.byteBufferValue(6, data2) != 0) {
+                                        NativeByteBuffer data2 = cursor.byteBufferView(6);
+                                        if (data2 != null) {
                                             message.replyMessage = TLRPC.Message.TLdeserialize(data2, data2.readInt32(false), false);
                                             if (message.replyMessage != null) {
                                                 fromUser.add(message.replyMessage.from_id);
@@ -2197,7 +2747,6 @@ public class MessagesStorage {
                                                 ok = true;
                                             }
                                         }
-                                        data2.reuse();
                                     }
                                     if (!ok) {
                                         long messageId = message.reply_to_msg_id;
@@ -2224,7 +2773,7 @@ public class MessagesStorage {
                                 }
                                 if ((int) dialog_id == 0 && message.media != null && message.media.photo != null) {
                                     try {
-                                        SQLiteCursor cursor2 = database.queryFinalized(String.format(Locale.US, "SELECT date FROM enc_tasks_v2 WHERE mid = %d", message.id));
+                                        SQLiteCursor cursor2 = database.queryCached("SELECT date FROM enc_tasks_v2 WHERE mid = ?", message.id);
                                         if (cursor2.next()) {
                                             message.destroyTime = cursor2.intValue(0);
                                         }
@@ -2234,7 +2783,6 @@ public class MessagesStorage {
                                     }
                                 }
                             }
-                            data.reuse();
                         }
                         cursor.dispose();
                     }
@@ -2271,9 +2819,9 @@ public class MessagesStorage {
 
                     if (important == 2 && !res.messages.isEmpty()) {
                         if (max_id != 0) {
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT start, end, count FROM channel_group WHERE uid = %d AND ((start >= %d AND end <= %d) OR (start = %d))", dialog_id, res.messages.get(res.messages.size() - 1).id, res.messages.get(0).id, res.messages.get(0).id));
+                            cursor = database.queryCached("SELECT start, end, count FROM channel_group WHERE uid = ? AND ((start >= ? AND end <= ?) OR (start = ?))", dialog_id, res.messages.get(res.messages.size() - 1).id, res.messages.get(0).id, res.messages.get(0).id);
                         } else {
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT start, end, count FROM channel_group WHERE uid = %d AND start >= %d", dialog_id, res.messages.get(res.messages.size() - 1).id));
+                            cursor = database.queryCached("SELECT start, end, count FROM channel_group WHERE uid = ? AND start >= ?", dialog_id, res.messages.get(res.messages.size() - 1).id);
                         }
                         while (cursor.next()) {
                             TLRPC.TL_messageGroup group = new TLRPC.TL_messageGroup();
@@ -2715,18 +3263,290 @@ public class MessagesStorage {
         });
     }
 
-    private String formatUserSearchName(TLRPC.User user) {
-        StringBuilder str = new StringBuilder("");
-        if (user.first_name != null && user.first_name.length() > 0) {
-            str.append(user.first_name);
+    private boolean createSearchIndex() {
+        try {
+            database.executeFast("CREATE TABLE IF NOT EXISTS messages_words(word TEXT, mid INTEGER, PRIMARY KEY(word, mid)) WITHOUT ROWID").stepThis().dispose();
+            database.executeFast("CREATE INDEX IF NOT EXISTS mid_idx_messages_words ON messages_words(mid);").stepThis().dispose();
+            database.executeFast("CREATE TABLE IF NOT EXISTS peers_words(word TEXT, did INTEGER, PRIMARY KEY(word, did)) WITHOUT ROWID").stepThis().dispose();
+            database.executeFast("CREATE INDEX IF NOT EXISTS did_idx_peers_words ON peers_words(did);").stepThis().dispose();
+            return true;
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+            return false;
         }
-        if (user.last_name != null && user.last_name.length() > 0) {
-            if (str.length() > 0) {
-                str.append(" ");
-            }
-            str.append(user.last_name);
+    }
+
+    /**
+     * Indexes the next SEARCH_INDEX_CHUNK messages of a database that existed
+     * before messages_words, then reposts itself until the whole history is in.
+     */
+    private void indexSearchHistoryChunk() {
+        if (!searchIndexEnabled) {
+            return;
         }
-        str.append(";;;");
+        try {
+            SQLiteCursor cursor = database.queryFinalized("SELECT value FROM keyvalue WHERE id = 'search_index_mid'");
+            String value = null;
+            if (cursor.next()) {
+                value = cursor.stringValue(0);
+            }
+            cursor.dispose();
+            if (value == null) {
+                return;
+            }
+            long lastMid = Long.parseLong(value);
+            int count = 0;
+            database.beginTransaction();
+            cursor = database.queryFinalized(String.format(Locale.US, "SELECT mid, data FROM messages WHERE mid > %d ORDER BY mid ASC LIMIT %d", lastMid, SEARCH_INDEX_CHUNK));
+            while (cursor.next()) {
+                lastMid = cursor.longValue(0);
+                count++;
+                NativeByteBuffer data = cursor.byteBufferView(1);
+                if (data != null) {
+                    TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
+                    if (message != null) {
+                        putMessageSearchText(lastMid, message);
+                    }
+                }
+            }
+            cursor.dispose();
+            if (count < SEARCH_INDEX_CHUNK) {
+                database.executeFast("DELETE FROM keyvalue WHERE id = 'search_index_mid'").stepThis().dispose();
+            } else {
+                SQLitePreparedStatement state = database.executeFast("REPLACE INTO keyvalue VALUES('search_index_mid', ?)");
+                state.bindString(1, "" + lastMid);
+                state.step();
+                state.dispose();
+            }
+            database.commitTransaction();
+            if (count == SEARCH_INDEX_CHUNK) {
+                storageQueue.postRunnable(indexSearchHistoryRunnable, 100);
+            }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+
+    private void putMessageSearchText(long messageId, TLRPC.Message message) throws Exception {
+        if (!searchIndexEnabled) {
+            return;
+        }
+        String text = message.message;
+        if (message.media != null && message.media.caption != null && message.media.caption.length() > 0) {
+            text = text != null && text.length() > 0 ? text + " " + message.media.caption : message.media.caption;
+        }
+        SQLitePreparedStatement state = database.executeCached("DELETE FROM messages_words WHERE mid = ?");
+        state.bindLong(1, messageId);
+        state.step();
+        state.dispose();
+        if (text == null || text.length() == 0) {
+            return;
+        }
+        putSearchWords("REPLACE INTO messages_words VALUES(?, ?)", messageId, text.toLowerCase());
+    }
+
+    /**
+     * Indexes a user (uid) or chat (-chat_id) by its lower case name, the
+     * LocaleController.getTranslitString form of it and the username.
+     */
+    private void putPeerSearchName(long did, String name, String username) throws Exception {
+        if (!searchIndexEnabled) {
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        if (name != null && name.length() > 0) {
+            name = name.toLowerCase();
+            text.append(name);
+            String tName = LocaleController.getInstance().getTranslitString(name);
+            if (!name.equals(tName)) {
+                text.append(" ").append(tName);
+            }
+        }
+        if (username != null && username.length() > 0) {
+            text.append(" ").append(username.toLowerCase());
+        }
+        SQLitePreparedStatement state = database.executeCached("DELETE FROM peers_words WHERE did = ?");
+        state.bindLong(1, did);
+        state.step();
+        state.dispose();
+        putSearchWords("REPLACE INTO peers_words VALUES(?, ?)", did, text.toString());
+    }
+
+    private void putSearchWords(String sql, long id, String text) throws Exception {
+        HashSet<String> words = new HashSet<>(splitSearchWords(text));
+        if (words.isEmpty()) {
+            return;
+        }
+        SQLitePreparedStatement state = database.executeCached(sql);
+        for (String word : words) {
+            state.requery();
+            state.bindString(1, word);
+            state.bindLong(2, id);
+            state.step();
+        }
+        state.dispose();
+    }
+
+    /**
+     * Splits user input into the words to look up, each with its
+     * LocaleController.getTranslitString form if that differs, or null.
+     */
+    private static ArrayList<String[]> getSearchWords(String query) {
+        String search1 = query.trim().toLowerCase();
+        String search2 = LocaleController.getInstance().getTranslitString(search1);
+        ArrayList<String> words1 = splitSearchWords(search1);
+        ArrayList<String> words2 = search2.equals(search1) ? null : splitSearchWords(search2);
+        ArrayList<String[]> words = new ArrayList<>();
+        for (int a = 0; a < words1.size(); a++) {
+            String alternative = null;
+            if (words2 != null && words2.size() == words1.size() && !words2.get(a).equals(words1.get(a))) {
+                alternative = words2.get(a);
+            }
+            words.add(new String[]{words1.get(a), alternative});
+        }
+        return words;
+    }
+
+    /**
+     * Appends the condition that the word column starts with word[0] or
+     * word[1], as a range over the word index, and adds its bounds to args.
+     */
+    private static void appendWordRange(StringBuilder sql, ArrayList<Object> args, String[] word) {
+        sql.append("(word >= ? AND word < ?");
+        args.add(word[0]);
+        args.add(getPrefixEnd(word[0]));
+        if (word[1] != null) {
+            sql.append(" OR word >= ? AND word < ?");
+            args.add(word[1]);
+            args.add(getPrefixEnd(word[1]));
+        }
+        sql.append(")");
+    }
+
+    // the smallest string greater than every string starting with prefix
+    private static String getPrefixEnd(String prefix) {
+        int last = prefix.length() - 1;
+        return prefix.substring(0, last) + (char) (prefix.charAt(last) + 1);
+    }
+
+    // ASCII letters and digits and non-ASCII letters and digits form words
+    private static ArrayList<String> splitSearchWords(String text) {
+        ArrayList<String> words = new ArrayList<>();
+        int start = -1;
+        for (int a = 0; a <= text.length(); a++) {
+            char c = a < text.length() ? text.charAt(a) : ' ';
+            boolean wordChar = c >= 128 ? Character.isLetterOrDigit(c) : c >= 'a' && c <= 'z' || c >= '0' && c <= '9';
+            if (wordChar) {
+                if (start == -1) {
+                    start = a;
+                }
+            } else if (start != -1) {
+                words.add(text.substring(start, a));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Returns up to limit dialog ids (uid for users, -chat_id for chats and
+     * channels) whose name, transliterated name or username has words
+     * starting with the words of query, dialogs with the most recent activity
+     * first. Returns null if the search index is not available. Must be
+     * called on the storage queue or a read queue.
+     */
+    public ArrayList<Long> searchPeersInternal(String query, int limit) throws Exception {
+        if (!searchIndexEnabled) {
+            return null;
+        }
+        ArrayList<Long> result = new ArrayList<>();
+        ArrayList<String[]> words = getSearchWords(query);
+        if (words.isEmpty()) {
+            return result;
+        }
+        ArrayList<Object> args = new ArrayList<>();
+        StringBuilder sql = new StringBuilder("SELECT p.did FROM (SELECT DISTINCT did FROM peers_words WHERE ");
+        appendWordRange(sql, args, words.get(0));
+        sql.append(") p LEFT JOIN dialogs d ON d.did = p.did");
+        for (int a = 1; a < words.size(); a++) {
+            sql.append(a == 1 ? " WHERE " : " AND ").append("p.did IN(SELECT did FROM peers_words WHERE ");
+            appendWordRange(sql, args, words.get(a));
+            sql.append(")");
+        }
+        sql.append(" ORDER BY d.date IS NULL, d.date DESC LIMIT ?");
+        args.add(limit);
+        SQLiteCursor cursor = getReadDatabase().queryCached(sql.toString(), args.toArray());
+        while (cursor.next()) {
+            result.add(cursor.longValue(0));
+        }
+        cursor.dispose();
+        return result;
+    }
+
+    /**
+     * Searches the local history of dialog_id, or of all dialogs if it is 0,
+     * for messages whose text has words starting with the words of query.
+     * Newest messages come first, max_date limits the results to messages
+     * older than it if not 0. Returns null if the search index is not
+     * available. Must be called on the storage queue or a read queue.
+     */
+    public ArrayList<TLRPC.Message> searchMessagesInternal(long dialog_id, String query, int max_date, int limit) throws Exception {
+        if (!searchIndexEnabled) {
+            return null;
+        }
+        ArrayList<TLRPC.Message> result = new ArrayList<>();
+        ArrayList<String[]> words = getSearchWords(query);
+        if (words.isEmpty()) {
+            return result;
+        }
+        if (max_date == 0) {
+            max_date = Integer.MAX_VALUE;
+        }
+        ArrayList<Object> args = new ArrayList<>();
+        StringBuilder sql = new StringBuilder("SELECT m.data, m.mid, m.read_state, m.send_state, m.date, m.uid FROM messages m WHERE");
+        for (int a = 0; a < words.size(); a++) {
+            sql.append(" m.mid IN(SELECT mid FROM messages_words WHERE ");
+            appendWordRange(sql, args, words.get(a));
+            sql.append(") AND");
+        }
+        if (dialog_id != 0) {
+            sql.append(" m.uid = ? AND");
+            args.add(dialog_id);
+        }
+        sql.append(" m.date < ? ORDER BY m.date DESC, m.mid DESC LIMIT ?");
+        args.add(max_date);
+        args.add(limit);
+        SQLiteCursor cursor = getReadDatabase().queryCached(sql.toString(), args.toArray());
+        while (cursor.next()) {
+            NativeByteBuffer data = cursor.byteBufferView(0);
+            if (data != null) {
+                TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
+                if (message != null) {
+                    message.id = cursor.intValue(1);
+                    MessageObject.setUnreadFlags(message, cursor.intValue(2));
+                    message.send_state = cursor.intValue(3);
+                    message.date = cursor.intValue(4);
+                    message.dialog_id = cursor.longValue(5);
+                    result.add(message);
+                }
+            }
+        }
+        cursor.dispose();
+        return result;
+    }
+
+    private String formatUserSearchName(TLRPC.User user) {
+        StringBuilder str = new StringBuilder("");
+        if (user.first_name != null && user.first_name.length() > 0) {
+            str.append(user.first_name);
+        }
+        if (user.last_name != null && user.last_name.length() > 0) {
+            if (str.length() > 0) {
+                str.append(" ");
+            }
+            str.append(user.last_name);
+        }
+        str.append(";;;");
         if (user.username != null && user.username.length() > 0) {
             str.append(user.username);
         }
@@ -2759,6 +3579,7 @@ public class MessagesStorage {
             state.bindByteBuffer(4, data);
             state.step();
             data.reuse();
+            putPeerSearchName(user.id, ContactsController.formatName(user.first_name, user.last_name), user.username);
         }
         state.dispose();
     }
@@ -2782,19 +3603,20 @@ public class MessagesStorage {
             state.bindByteBuffer(3, data);
             state.step();
             data.reuse();
+            putPeerSearchName(-chat.id, chat.title, chat.username);
         }
         state.dispose();
     }
 
-    public void getUsersInternal(String usersToLoad, ArrayList<TLRPC.User> result) throws Exception {
+    public void getUsersInternal(String usersToLoad, final ArrayList<TLRPC.User> result) throws Exception {
         if (usersToLoad == null || usersToLoad.length() == 0 || result == null) {
             return;
         }
-        SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, status FROM users WHERE uid IN(%s)", usersToLoad));
-        while (cursor.next()) {
-            try {
-                NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
-                if (data != null && cursor.byteBufferValue(0, data) != 0) {
+        SQLiteDatabase database = getReadDatabase();
+        SQLiteCursor.BlobDelegate delegate = new SQLiteCursor.BlobDelegate() {
+            @Override
+            public void run(SQLiteCursor cursor, NativeByteBuffer data) {
+                try {
                     TLRPC.User user = TLRPC.User.TLdeserialize(data, data.readInt32(false), false);
                     if (user != null) {
                         if (user.status != null) {
@@ -2802,34 +3624,68 @@ public class MessagesStorage {
                         }
                         result.add(user);
                     }
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
                 }
-                data.reuse();
-            } catch (Exception e) {
-                FileLog.e("tmessages", e);
             }
+        };
+        String[] ids = usersToLoad.split(",");
+        for (int offset = 0; offset < ids.length; offset += MAX_IN_LIST_SIZE) {
+            int count = Math.min(MAX_IN_LIST_SIZE, ids.length - offset);
+            int size = getInListSize(count);
+            Object[] args = new Object[size];
+            for (int a = 0; a < size; a++) {
+                // pad with the last id, duplicates don't change the result of IN
+                args[a] = Integer.parseInt(ids[offset + Math.min(a, count - 1)].trim());
+            }
+            SQLiteCursor cursor = database.queryCached("SELECT data, status FROM users WHERE uid IN(" + getInListPlaceholders(size) + ")", args);
+            cursor.readBlobs(0, 0, delegate);
+            cursor.dispose();
         }
-        cursor.dispose();
     }
 
-    public void getChatsInternal(String chatsToLoad, ArrayList<TLRPC.Chat> result) throws Exception {
+    private static int getInListSize(int count) {
+        int size = 1;
+        while (size < count) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    private static synchronized String getInListPlaceholders(int size) {
+        String placeholders = inListPlaceholders.get(size);
+        if (placeholders == null) {
+            StringBuilder builder = new StringBuilder(size * 2);
+            for (int a = 0; a < size; a++) {
+                if (a != 0) {
+                    builder.append(',');
+                }
+                builder.append('?');
+            }
+            placeholders = builder.toString();
+            inListPlaceholders.put(size, placeholders);
+        }
+        return placeholders;
+    }
+
+    public void getChatsInternal(String chatsToLoad, final ArrayList<TLRPC.Chat> result) throws Exception {
         if (chatsToLoad == null || chatsToLoad.length() == 0 || result == null) {
             return;
         }
-        SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT data FROM chats WHERE uid IN(%s)", chatsToLoad));
-        while (cursor.next()) {
-            try {
-                NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
-                if (data != null && cursor.byteBufferValue(0, data) != 0) {
+        SQLiteCursor cursor = getReadDatabase().queryFinalized(String.format(Locale.US, "SELECT data FROM chats WHERE uid IN(%s)", chatsToLoad));
+        cursor.readBlobs(0, 0, new SQLiteCursor.BlobDelegate() {
+            @Override
+            public void run(SQLiteCursor cursor, NativeByteBuffer data) {
+                try {
                     TLRPC.Chat chat = TLRPC.Chat.TLdeserialize(data, data.readInt32(false), false);
                     if (chat != null) {
                         result.add(chat);
                     }
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
                 }
-                data.reuse();
-            } catch (Exception e) {
-                FileLog.e("tmessages", e);
             }
-        }
+        });
         cursor.dispose();
     }
 
@@ -2837,11 +3693,11 @@ public class MessagesStorage {
         if (chatsToLoad == null || chatsToLoad.length() == 0 || result == null) {
             return;
         }
-        SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, user, g, authkey, ttl, layer, seq_in, seq_out, use_count, exchange_id, key_date, fprint, fauthkey, khash FROM enc_chats WHERE uid IN(%s)", chatsToLoad));
+        SQLiteCursor cursor = getReadDatabase().queryFinalized(String.format(Locale.US, "SELECT data, user, g, authkey, ttl, layer, seq_in, seq_out, use_count, exchange_id, key_date, fprint, fauthkey, khash FROM enc_chats WHERE uid IN(%s)", chatsToLoad));
         while (cursor.next()) {
             try {
-                NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
-                if (data != null && cursor.byteBufferValue(0, data) != 0) {
+                NativeByteBuffer data = cursor.byteBufferView(0);
+                if (data != null) {
                     TLRPC.EncryptedChat chat = TLRPC.EncryptedChat.TLdeserialize(data, data.readInt32(false), false);
                     if (chat != null) {
                         chat.user_id = cursor.intValue(1);
@@ -2865,7 +3721,6 @@ public class MessagesStorage {
                         result.add(chat);
                     }
                 }
-                data.reuse();
             } catch (Exception e) {
                 FileLog.e("tmessages", e);
             }
@@ -2893,10 +3748,10 @@ public class MessagesStorage {
             return;
         }
         if (useQueue) {
-            storageQueue.postRunnable(new Runnable() {
+            postWrite((users != null ? users.size() : 0) + (chats != null ? chats.size() : 0), new Runnable() {
                 @Override
                 public void run() {
-                    putUsersAndChatsInternal(users, chats, withTransaction);
+                    putUsersAndChatsInternal(users, chats, false);
                 }
             });
         } else {
@@ -3083,6 +3938,9 @@ public class MessagesStorage {
                 try {
                     final long did = -channel_id;
 
+                    if (searchIndexEnabled) {
+                        database.executeFast("DELETE FROM messages_words WHERE mid IN(SELECT mid FROM messages WHERE uid = " + did + ")").stepThis().dispose();
+                    }
                     database.executeFast("DELETE FROM messages WHERE uid = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM bot_keyboard WHERE uid = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM media_counts_v2 WHERE uid = " + did).stepThis().dispose();
@@ -3090,6 +3948,7 @@ public class MessagesStorage {
                     database.executeFast("DELETE FROM messages_holes WHERE uid = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM messages_imp_holes WHERE uid = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM media_holes_v2 WHERE uid = " + did).stepThis().dispose();
+                    holesIndex.remove(null, did);
                     BotQuery.clearBotKeyboard(did, null);
 
                     TLRPC.TL_messages_dialogs dialogs = new TLRPC.TL_messages_dialogs();
@@ -3108,7 +3967,7 @@ public class MessagesStorage {
                     dialog.notify_settings = null;
                     dialog.pts = difference.pts;
                     dialogs.dialogs.add(dialog);
-                    putDialogsInternal(dialogs);
+                    putDialogsInternal(dialogs, true);
 
                     MessagesStorage.getInstance().updateDialogsWithDeletedMessages(new ArrayList<Integer>(), false, channel_id);
                     AndroidUtilities.runOnUIThread(new Runnable() {
@@ -3124,6 +3983,115 @@ public class MessagesStorage {
         });
     }
 
+    /**
+     * Marks the content of viewed messages as read and keeps their views in
+     * pending_views until deletePendingViews is called for them.
+     */
+    public void putPendingViews(final SparseArray<SparseBooleanArray> views, final ArrayList<Long> mids) {
+        int rows = mids.size();
+        for (int a = 0; a < views.size(); a++) {
+            rows += views.valueAt(a).size();
+        }
+        postWrite(rows, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!mids.isEmpty()) {
+                        database.executeFast(String.format(Locale.US, "UPDATE messages SET read_state = read_state | 2 WHERE mid IN (%s)", TextUtils.join(",", mids))).stepThis().dispose();
+                    }
+                    SQLitePreparedStatement state = database.executeFast("REPLACE INTO pending_views VALUES(?, ?)");
+                    for (int a = 0; a < views.size(); a++) {
+                        int peer = views.keyAt(a);
+                        SparseBooleanArray ids = views.valueAt(a);
+                        for (int b = 0; b < ids.size(); b++) {
+                            state.requery();
+                            state.bindInteger(1, peer);
+                            state.bindInteger(2, ids.keyAt(b));
+                            state.step();
+                        }
+                    }
+                    state.dispose();
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                }
+            }
+        });
+    }
+
+    public void deletePendingViews(final int peer, final SparseBooleanArray ids) {
+        postWrite(ids.size(), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    StringBuilder mids = new StringBuilder();
+                    for (int a = 0; a < ids.size(); a++) {
+                        if (mids.length() != 0) {
+                            mids.append(",");
+                        }
+                        mids.append(ids.keyAt(a));
+                    }
+                    database.executeFast(String.format(Locale.US, "DELETE FROM pending_views WHERE peer = %d AND mid IN (%s)", peer, mids)).stepThis().dispose();
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Hands views that were not sent before the process died back to
+     * ChannelViewsQueue together with their peers.
+     */
+    public void loadPendingViews() {
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final SparseArray<SparseBooleanArray> views = new SparseArray<>();
+                    ArrayList<Integer> usersToLoad = new ArrayList<>();
+                    ArrayList<Integer> chatsToLoad = new ArrayList<>();
+                    SQLiteCursor cursor = database.queryFinalized("SELECT peer, mid FROM pending_views");
+                    while (cursor.next()) {
+                        int peer = cursor.intValue(0);
+                        SparseBooleanArray ids = views.get(peer);
+                        if (ids == null) {
+                            ids = new SparseBooleanArray();
+                            views.put(peer, ids);
+                            if (peer < 0) {
+                                chatsToLoad.add(-peer);
+                            } else {
+                                usersToLoad.add(peer);
+                            }
+                        }
+                        ids.put(cursor.intValue(1), true);
+                    }
+                    cursor.dispose();
+                    if (views.size() == 0) {
+                        return;
+                    }
+                    final ArrayList<TLRPC.User> users = new ArrayList<>();
+                    final ArrayList<TLRPC.Chat> chats = new ArrayList<>();
+                    if (!usersToLoad.isEmpty()) {
+                        getUsersInternal(TextUtils.join(",", usersToLoad), users);
+                    }
+                    if (!chatsToLoad.isEmpty()) {
+                        getChatsInternal(TextUtils.join(",", chatsToLoad), chats);
+                    }
+                    AndroidUtilities.runOnUIThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            MessagesController.getInstance().putUsers(users, true);
+                            MessagesController.getInstance().putChats(chats, true);
+                            ChannelViewsQueue.getInstance().addPending(views);
+                        }
+                    });
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                }
+            }
+        });
+    }
+
     public void putChannelViews(final SparseArray<SparseIntArray> channelViews, final boolean isChannel) {
         storageQueue.postRunnable(new Runnable() {
             @Override
@@ -3339,6 +4307,7 @@ public class MessagesStorage {
                 }
                 state.bindInteger(10, MessageObject.isImportant(message) ? 1 : 0);
                 state.step();
+                putMessageSearchText(messageId, message);
 
                 if (message.random_id != 0) {
                     state3.requery();
@@ -3570,10 +4539,10 @@ public class MessagesStorage {
             return;
         }
         if (useQueue) {
-            storageQueue.postRunnable(new Runnable() {
+            postWrite(messages.size(), new Runnable() {
                 @Override
                 public void run() {
-                    putMessagesInternal(messages, withTransaction, doNotUpdateDialogDate, downloadMask);
+                    putMessagesInternal(messages, false, doNotUpdateDialogDate, downloadMask);
                 }
             });
         } else {
@@ -3773,6 +4742,22 @@ public class MessagesStorage {
                 }
             }
 
+            if (searchIndexEnabled) {
+                try {
+                    state = database.executeFast("UPDATE OR REPLACE messages_words SET mid = ? WHERE mid = ?");
+                    state.bindLong(1, newMessageId);
+                    state.bindLong(2, oldMessageId);
+                    state.step();
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                } finally {
+                    if (state != null) {
+                        state.dispose();
+                        state = null;
+                    }
+                }
+            }
+
             try {
                 state = database.executeFast("UPDATE dialogs SET last_mid = ? WHERE last_mid = ?");
                 state.bindLong(1, newMessageId);
@@ -3877,10 +4862,10 @@ public class MessagesStorage {
             return;
         }
         if (useQueue) {
-            storageQueue.postRunnable(new Runnable() {
+            postWrite(users.size(), new Runnable() {
                 @Override
                 public void run() {
-                    updateUsersInternal(users, onlyStatus, withTransaction);
+                    updateUsersInternal(users, onlyStatus, false);
                 }
             });
         } else {
@@ -4053,6 +5038,9 @@ public class MessagesStorage {
             }
             cursor.dispose();
             FileLoader.getInstance().deleteFiles(filesToDelete);
+            if (searchIndexEnabled) {
+                database.executeFast(String.format(Locale.US, "DELETE FROM messages_words WHERE mid IN(%s)", ids)).stepThis().dispose();
+            }
             database.executeFast(String.format(Locale.US, "DELETE FROM messages WHERE mid IN(%s)", ids)).stepThis().dispose();
             database.executeFast(String.format(Locale.US, "DELETE FROM bot_keyboard WHERE mid IN(%s)", ids)).stepThis().dispose();
             database.executeFast(String.format(Locale.US, "DELETE FROM messages_seq WHERE mid IN(%s)", ids)).stepThis().dispose();
@@ -4268,135 +5256,121 @@ public class MessagesStorage {
         }
     }
 
+    /**
+     * Holes of a dialog for reading. On the storage queue this is the current
+     * set; elsewhere it is the committed cached set, or the set as seen by the
+     * read connection while the cache is loaded on the storage queue.
+     */
+    public HolesIndex.Holes getHoles(final String table, final long did, final int type) throws Exception {
+        if (Thread.currentThread().getId() == storageQueue.getId()) {
+            return holesIndex.load(database, table, did, type);
+        }
+        HolesIndex.Holes holes = holesIndex.getCommitted(table, did, type);
+        if (holes == null) {
+            holes = HolesIndex.query(getReadDatabase(), table, did, type);
+            if (!holesIndex.isCached(table, did, type)) {
+                storageQueue.postRunnable(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            holesIndex.load(database, table, did, type);
+                        } catch (Exception e) {
+                            FileLog.e("tmessages", e);
+                        }
+                    }
+                });
+            }
+        }
+        return holes;
+    }
+
+    /**
+     * Writes a hole to table and to the cached set. Storage queue only; type
+     * is ignored for the message tables.
+     */
+    public void putHole(String table, long did, int type, int start, int end) throws Exception {
+        SQLitePreparedStatement state;
+        if ("media_holes_v2".equals(table)) {
+            state = database.executeCached("REPLACE INTO media_holes_v2 VALUES(?, ?, ?, ?)");
+            state.bindLong(1, did);
+            state.bindInteger(2, type);
+            state.bindInteger(3, start);
+            state.bindInteger(4, end);
+        } else {
+            state = database.executeCached("REPLACE INTO " + table + " VALUES(?, ?, ?)");
+            state.bindLong(1, did);
+            state.bindInteger(2, start);
+            state.bindInteger(3, end);
+        }
+        state.step();
+        state.dispose();
+        holesIndex.put(table, did, type, start, end);
+    }
+
+    private void deleteHole(String table, long did, int type, int start, int end) throws Exception {
+        if ("media_holes_v2".equals(table)) {
+            database.executeFast(String.format(Locale.US, "DELETE FROM media_holes_v2 WHERE uid = %d AND type = %d AND start = %d AND end = %d", did, type, start, end)).stepThis().dispose();
+        } else {
+            database.executeFast(String.format(Locale.US, "DELETE FROM " + table + " WHERE uid = %d AND start = %d AND end = %d", did, start, end)).stepThis().dispose();
+        }
+        holesIndex.remove(table, did, type, start);
+    }
+
+    private void updateHole(String table, long did, int type, int start, int end, int newStart, int newEnd) throws Exception {
+        if ("media_holes_v2".equals(table)) {
+            database.executeFast(String.format(Locale.US, "UPDATE media_holes_v2 SET start = %d, end = %d WHERE uid = %d AND type = %d AND start = %d AND end = %d", newStart, newEnd, did, type, start, end)).stepThis().dispose();
+        } else {
+            database.executeFast(String.format(Locale.US, "UPDATE " + table + " SET start = %d, end = %d WHERE uid = %d AND start = %d AND end = %d", newStart, newEnd, did, start, end)).stepThis().dispose();
+        }
+        holesIndex.remove(table, did, type, start);
+        holesIndex.put(table, did, type, newStart, newEnd);
+    }
+
     private void doneHolesInTable(String table, long did, int max_id) throws Exception {
         if (max_id == 0) {
             database.executeFast(String.format(Locale.US, "DELETE FROM " + table + " WHERE uid = %d", did)).stepThis().dispose();
+            holesIndex.remove(table, did);
         } else {
             database.executeFast(String.format(Locale.US, "DELETE FROM " + table + " WHERE uid = %d AND start = 0", did)).stepThis().dispose();
+            holesIndex.remove(table, did, 0, 0);
         }
-        SQLitePreparedStatement state = database.executeFast("REPLACE INTO " + table + " VALUES(?, ?, ?)");
-        state.requery();
-        state.bindLong(1, did);
-        state.bindInteger(2, 1);
-        state.bindInteger(3, 1);
-        state.step();
-        state.dispose();
+        putHole(table, did, 0, 1, 1);
     }
 
     public void doneHolesInMedia(long did, int max_id, int type) throws Exception {
         if (type == -1) {
             if (max_id == 0) {
                 database.executeFast(String.format(Locale.US, "DELETE FROM media_holes_v2 WHERE uid = %d", did)).stepThis().dispose();
+                holesIndex.remove("media_holes_v2", did);
             } else {
                 database.executeFast(String.format(Locale.US, "DELETE FROM media_holes_v2 WHERE uid = %d AND start = 0", did)).stepThis().dispose();
+                for (int a = 0; a < SharedMediaQuery.MEDIA_TYPES_COUNT; a++) {
+                    holesIndex.remove("media_holes_v2", did, a, 0);
+                }
             }
-            SQLitePreparedStatement state = database.executeFast("REPLACE INTO media_holes_v2 VALUES(?, ?, ?, ?)");
             for (int a = 0; a < SharedMediaQuery.MEDIA_TYPES_COUNT; a++) {
-                state.requery();
-                state.bindLong(1, did);
-                state.bindInteger(2, a);
-                state.bindInteger(3, 1);
-                state.bindInteger(4, 1);
-                state.step();
+                putHole("media_holes_v2", did, a, 1, 1);
             }
-            state.dispose();
         } else {
             if (max_id == 0) {
                 database.executeFast(String.format(Locale.US, "DELETE FROM media_holes_v2 WHERE uid = %d AND type = %d", did, type)).stepThis().dispose();
+                holesIndex.remove("media_holes_v2", did);
             } else {
                 database.executeFast(String.format(Locale.US, "DELETE FROM media_holes_v2 WHERE uid = %d AND type = %d AND start = 0", did, type)).stepThis().dispose();
+                holesIndex.remove("media_holes_v2", did, type, 0);
             }
-            SQLitePreparedStatement state = database.executeFast("REPLACE INTO media_holes_v2 VALUES(?, ?, ?, ?)");
-            state.requery();
-            state.bindLong(1, did);
-            state.bindInteger(2, type);
-            state.bindInteger(3, 1);
-            state.bindInteger(4, 1);
-            state.step();
-            state.dispose();
-        }
-    }
-
-    private class Hole {
-
-        public Hole(int s, int e) {
-            start = s;
-            end = e;
-        }
-
-        public Hole(int t, int s, int e) {
-            type = t;
-            start = s;
-            end = e;
+            putHole("media_holes_v2", did, type, 1, 1);
         }
-
-        public int start;
-        public int end;
-        public int type;
     }
 
     public void closeHolesInMedia(long did, int minId, int maxId, int type) throws Exception {
         try {
-            boolean ok = false;
-            SQLiteCursor cursor;
             if (type < 0) {
-                cursor = database.queryFinalized(String.format(Locale.US, "SELECT type, start, end FROM media_holes_v2 WHERE uid = %d AND type >= 0 AND ((end >= %d AND end <= %d) OR (start >= %d AND start <= %d) OR (start >= %d AND end <= %d) OR (start <= %d AND end >= %d))", did, minId, maxId, minId, maxId, minId, maxId, minId, maxId));
-            } else {
-                cursor = database.queryFinalized(String.format(Locale.US, "SELECT type, start, end FROM media_holes_v2 WHERE uid = %d AND type = %d AND ((end >= %d AND end <= %d) OR (start >= %d AND start <= %d) OR (start >= %d AND end <= %d) OR (start <= %d AND end >= %d))", did, type, minId, maxId, minId, maxId, minId, maxId, minId, maxId));
-            }
-            ArrayList<Hole> holes = null;
-            while (cursor.next()) {
-                if (holes == null) {
-                    holes = new ArrayList<>();
-                }
-                int holeType = cursor.intValue(0);
-                int start = cursor.intValue(1);
-                int end = cursor.intValue(2);
-                if (start == end && start == 1) {
-                    continue;
-                }
-                holes.add(new Hole(holeType, start, end));
-            }
-            cursor.dispose();
-            if (holes != null) {
-                for (int a = 0; a < holes.size(); a++) {
-                    Hole hole = holes.get(a);
-                    if (maxId >= hole.end - 1 && minId <= hole.start + 1) {
-                        database.executeFast(String.format(Locale.US, "DELETE FROM media_holes_v2 WHERE uid = %d AND type = %d AND start = %d AND end = %d", did, hole.type, hole.start, hole.end)).stepThis().dispose();
-                    } else if (maxId >= hole.end - 1) {
-                        if (hole.end != minId) {
-                            try {
-                                database.executeFast(String.format(Locale.US, "UPDATE media_holes_v2 SET end = %d WHERE uid = %d AND type = %d AND start = %d AND end = %d", minId, did, hole.type, hole.start, hole.end)).stepThis().dispose();
-                            } catch (Exception e) {
-                                FileLog.e("tmessages", e);
-                            }
-                        }
-                    } else if (minId <= hole.start + 1) {
-                        if (hole.start != maxId) {
-                            try {
-                                database.executeFast(String.format(Locale.US, "UPDATE media_holes_v2 SET start = %d WHERE uid = %d AND type = %d AND start = %d AND end = %d", maxId, did, hole.type, hole.start, hole.end)).stepThis().dispose();
-                            } catch (Exception e) {
-                                FileLog.e("tmessages", e);
-                            }
-                        }
-                    } else {
-                        database.executeFast(String.format(Locale.US, "DELETE FROM media_holes_v2 WHERE uid = %d AND type = %d AND start = %d AND end = %d", did, hole.type, hole.start, hole.end)).stepThis().dispose();
-                        SQLitePreparedStatement state = database.executeFast("REPLACE INTO media_holes_v2 VALUES(?, ?, ?, ?)");
-                        state.requery();
-                        state.bindLong(1, did);
-                        state.bindInteger(2, hole.type);
-                        state.bindInteger(3, hole.start);
-                        state.bindInteger(4, minId);
-                        state.step();
-                        state.requery();
-                        state.bindLong(1, did);
-                        state.bindInteger(2, hole.type);
-                        state.bindInteger(3, maxId);
-                        state.bindInteger(4, hole.end);
-                        state.step();
-                        state.dispose();
-                    }
+                for (int a = 0; a < SharedMediaQuery.MEDIA_TYPES_COUNT; a++) {
+                    closeHoles("media_holes_v2", did, a, minId, maxId);
                 }
+            } else {
+                closeHoles("media_holes_v2", did, type, minId, maxId);
             }
         } catch (Exception e) {
             FileLog.e("tmessages", e);
@@ -4405,61 +5379,44 @@ public class MessagesStorage {
 
     private void closeHolesInTable(String table, long did, int minId, int maxId) throws Exception {
         try {
-            boolean ok = false;
-            SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT start, end FROM " + table + " WHERE uid = %d AND ((end >= %d AND end <= %d) OR (start >= %d AND start <= %d) OR (start >= %d AND end <= %d) OR (start <= %d AND end >= %d))", did, minId, maxId, minId, maxId, minId, maxId, minId, maxId));
-            ArrayList<Hole> holes = null;
-            while (cursor.next()) {
-                if (holes == null) {
-                    holes = new ArrayList<>();
-                }
-                int start = cursor.intValue(0);
-                int end = cursor.intValue(1);
-                if (start == end && start == 1) {
-                    continue;
+            closeHoles(table, did, 0, minId, maxId);
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+
+    /**
+     * Removes [minId, maxId] from the holes of a dialog, shrinking or
+     * splitting the holes it overlaps.
+     */
+    private void closeHoles(String table, long did, int type, int minId, int maxId) throws Exception {
+        ArrayList<HolesIndex.Hole> holes = new ArrayList<>();
+        holesIndex.load(database, table, did, type).getOverlapping(minId, maxId, holes);
+        for (int a = 0; a < holes.size(); a++) {
+            HolesIndex.Hole hole = holes.get(a);
+            if (maxId >= hole.end - 1 && minId <= hole.start + 1) {
+                deleteHole(table, did, type, hole.start, hole.end);
+            } else if (maxId >= hole.end - 1) {
+                if (hole.end != minId) {
+                    try {
+                        updateHole(table, did, type, hole.start, hole.end, hole.start, minId);
+                    } catch (Exception e) {
+                        FileLog.e("tmessages", e);
+                    }
                 }
-                holes.add(new Hole(start, end));
-            }
-            cursor.dispose();
-            if (holes != null) {
-                for (int a = 0; a < holes.size(); a++) {
-                    Hole hole = holes.get(a);
-                    if (maxId >= hole.end - 1 && minId <= hole.start + 1) {
-                        database.executeFast(String.format(Locale.US, "DELETE FROM " + table + " WHERE uid = %d AND start = %d AND end = %d", did, hole.start, hole.end)).stepThis().dispose();
-                    } else if (maxId >= hole.end - 1) {
-                        if (hole.end != minId) {
-                            try {
-                                database.executeFast(String.format(Locale.US, "UPDATE " + table + " SET end = %d WHERE uid = %d AND start = %d AND end = %d", minId, did, hole.start, hole.end)).stepThis().dispose();
-                            } catch (Exception e) {
-                                FileLog.e("tmessages", e);
-                            }
-                        }
-                    } else if (minId <= hole.start + 1) {
-                        if (hole.start != maxId) {
-                            try {
-                                database.executeFast(String.format(Locale.US, "UPDATE " + table + " SET start = %d WHERE uid = %d AND start = %d AND end = %d", maxId, did, hole.start, hole.end)).stepThis().dispose(); //TODO check
-                            } catch (Exception e) {
-                                FileLog.e("tmessages", e);
-                            }
-                        }
-                    } else {
-                        database.executeFast(String.format(Locale.US, "DELETE FROM " + table + " WHERE uid = %d AND start = %d AND end = %d", did, hole.start, hole.end)).stepThis().dispose();
-                        SQLitePreparedStatement state = database.executeFast("REPLACE INTO " + table + " VALUES(?, ?, ?)");
-                        state.requery();
-                        state.bindLong(1, did);
-                        state.bindInteger(2, hole.start);
-                        state.bindInteger(3, minId);
-                        state.step();
-                        state.requery();
-                        state.bindLong(1, did);
-                        state.bindInteger(2, maxId);
-                        state.bindInteger(3, hole.end);
-                        state.step();
-                        state.dispose();
+            } else if (minId <= hole.start + 1) {
+                if (hole.start != maxId) {
+                    try {
+                        updateHole(table, did, type, hole.start, hole.end, maxId, hole.end);
+                    } catch (Exception e) {
+                        FileLog.e("tmessages", e);
                     }
                 }
+            } else {
+                deleteHole(table, did, type, hole.start, hole.end);
+                putHole(table, did, type, hole.start, minId);
+                putHole(table, did, type, maxId, hole.end);
             }
-        } catch (Exception e) {
-            FileLog.e("tmessages", e);
         }
     }
 
@@ -4625,6 +5582,7 @@ public class MessagesStorage {
                         }
                         state.bindInteger(10, isImportant ? 1 : 0);
                         state.step();
+                        putMessageSearchText(messageId, message);
 
                         if (SharedMediaQuery.canAddMessageToMedia(message)) {
                             state2.requery();
@@ -4717,9 +5675,10 @@ public class MessagesStorage {
     }
 
     public void getDialogs(final int cacheOffset, final int offset, final int serverOffset, final int count) {
-        storageQueue.postRunnable(new Runnable() {
+        postReadRunnable(new Runnable() {
             @Override
             public void run() {
+                SQLiteDatabase database = getReadDatabase();
                 TLRPC.messages_Dialogs dialogs = new TLRPC.messages_Dialogs();
                 ArrayList<TLRPC.EncryptedChat> encryptedChats = new ArrayList<>();
                 try {
@@ -4755,8 +5714,8 @@ public class MessagesStorage {
                         }
                         dialogs.dialogs.add(dialog);
 
-                        NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(4));
-                        if (data != null && cursor.byteBufferValue(4, data) != 0) {
+                        NativeByteBuffer data = cursor.byteBufferView(4);
+                        if (data != null) {
                             TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
                             if (message != null) {
                                 MessageObject.setUnreadFlags(message, cursor.intValue(5));
@@ -4794,7 +5753,6 @@ public class MessagesStorage {
                                 }
                             }
                         }
-                        data.reuse();
 
                         int lower_id = (int)dialog.id;
                         int high_id = (int)(dialog.id >> 32);
@@ -4845,9 +5803,11 @@ public class MessagesStorage {
         });
     }
 
-    private void putDialogsInternal(final TLRPC.messages_Dialogs dialogs) {
+    private void putDialogsInternal(final TLRPC.messages_Dialogs dialogs, final boolean withTransaction) {
         try {
-            database.beginTransaction();
+            if (withTransaction) {
+                database.beginTransaction();
+            }
             final HashMap<Long, ArrayList<TLRPC.Message>> new_dialogMessage = new HashMap<>();
             for (int a = 0; a < dialogs.messages.size(); a++) {
                 TLRPC.Message message = dialogs.messages.get(a);
@@ -4924,6 +5884,7 @@ public class MessagesStorage {
                             }
                             state.bindInteger(10, MessageObject.isImportant(message) ? 1 : 0);
                             state.step();
+                            putMessageSearchText(messageId, message);
 
                             if (MessageObject.isImportant(message)) {
                                 state7.requery();
@@ -4931,6 +5892,7 @@ public class MessagesStorage {
                                 state7.bindInteger(2, message.id == 1 ? 1 : 0);
                                 state7.bindInteger(3, message.id);
                                 state7.step();
+                                holesIndex.put("messages_imp_holes", dialog.id, 0, message.id == 1 ? 1 : 0, message.id);
                                 impMessageId = message.id;
                             } else {
                                 notImpMessageId = message.id;
@@ -4958,6 +5920,7 @@ public class MessagesStorage {
                             state5.bindInteger(2, notImpMessageId == 1 ? 1 : 0);
                             state5.bindInteger(3, notImpMessageId);
                             state5.step();
+                            holesIndex.put("messages_holes", dialog.id, 0, notImpMessageId == 1 ? 1 : 0, notImpMessageId);
 
                             for (int b = 0; b < SharedMediaQuery.MEDIA_TYPES_COUNT; b++) {
                                 state6.requery();
@@ -4966,6 +5929,7 @@ public class MessagesStorage {
                                 state6.bindInteger(3, notImpMessageId == 1 ? 1 : 0);
                                 state6.bindInteger(4, notImpMessageId);
                                 state6.step();
+                                holesIndex.put("media_holes_v2", dialog.id, b, notImpMessageId == 1 ? 1 : 0, notImpMessageId);
                             }
                         } else {
                             int firstId = impMessageId > notImpMessageId ? notImpMessageId : impMessageId;
@@ -4976,12 +5940,14 @@ public class MessagesStorage {
                             state5.bindInteger(2, firstId == 1 ? 1 : 0);
                             state5.bindInteger(3, firstId);
                             state5.step();
+                            holesIndex.put("messages_holes", dialog.id, 0, firstId == 1 ? 1 : 0, firstId);
 
                             state5.requery();
                             state5.bindLong(1, dialog.id);
                             state5.bindInteger(2, firstId);
                             state5.bindInteger(3, lastId);
                             state5.step();
+                            holesIndex.put("messages_holes", dialog.id, 0, firstId, lastId);
 
                             for (int b = 0; b < SharedMediaQuery.MEDIA_TYPES_COUNT; b++) {
                                 state6.requery();
@@ -4990,6 +5956,7 @@ public class MessagesStorage {
                                 state6.bindInteger(3, firstId == 1 ? 1 : 0);
                                 state6.bindInteger(4, firstId);
                                 state6.step();
+                                holesIndex.put("media_holes_v2", dialog.id, b, firstId == 1 ? 1 : 0, firstId);
 
                                 state6.requery();
                                 state6.bindLong(1, dialog.id);
@@ -4997,6 +5964,7 @@ public class MessagesStorage {
                                 state6.bindInteger(3, firstId);
                                 state6.bindInteger(4, lastId);
                                 state6.step();
+                                holesIndex.put("media_holes_v2", dialog.id, b, firstId, lastId);
                             }
 
                             if (impMessageId < notImpMessageId) {
@@ -5055,7 +6023,9 @@ public class MessagesStorage {
             putUsersInternal(dialogs.users);
             putChatsInternal(dialogs.chats);
 
-            database.commitTransaction();
+            if (withTransaction) {
+                database.commitTransaction();
+            }
         } catch (Exception e) {
             FileLog.e("tmessages", e);
         }
@@ -5065,10 +6035,10 @@ public class MessagesStorage {
         if (dialogs.dialogs.isEmpty()) {
             return;
         }
-        storageQueue.postRunnable(new Runnable() {
+        postWrite(dialogs.dialogs.size() + dialogs.messages.size() + dialogs.users.size() + dialogs.chats.size(), new Runnable() {
             @Override
             public void run() {
-                putDialogsInternal(dialogs);
+                putDialogsInternal(dialogs, false);
                 loadUnreadMessages();
             }
         });
@@ -102,6 +102,8 @@ public class NotificationCenter {
     public static final int audioDidStarted = totalEvents++;
     public static final int audioRouteChanged = totalEvents++;
     public static final int spaSettings = totalEvents++;
+    public static final int spaEncryptionProgress = totalEvents++;
+    public static final int spaRespondentsDidLoaded = totalEvents++;
 
     private SparseArray<ArrayList<Object>> observers = new SparseArray<>();
     private SparseArray<ArrayList<Object>> removeAfterBroadcast = new SparseArray<>();
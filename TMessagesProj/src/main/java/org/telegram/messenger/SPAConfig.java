@@ -15,4 +15,7 @@ public class SPAConfig {
     public static String sendSPAResult = "http://10.131.1.38:8000/getResultQuality";
     public static String sendSPAAssessment = "http://10.131.1.38:8000/sendAssessment";
     public static String SPA_PREFERENCE = "spaconfig";
+    // Send ciphertexts as base64 fixed-width bytes instead of decimal text,
+    // only for merge servers that understand SPAWireFormat tokens
+    public static boolean binaryCiphertexts = false;
 }
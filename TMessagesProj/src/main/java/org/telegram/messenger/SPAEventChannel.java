@@ -0,0 +1,290 @@
+package org.telegram.messenger;
+
+import android.app.Activity;
+import android.content.SharedPreferences;
+import android.util.Log;
+import android.widget.Toast;
+
+import org.paillier.PaillierPrivateKey;
+import org.telegram.messenger.volley.DefaultRetryPolicy;
+import org.telegram.messenger.volley.Request;
+import org.telegram.messenger.volley.Response;
+import org.telegram.messenger.volley.VolleyError;
+import org.telegram.messenger.volley.toolbox.StringRequest;
+import org.telegram.tgnet.ConnectionsManager;
+import org.telegram.tgnet.TLRPC;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Single long-lived channel to the SPA key manager. One request is in flight
+ * at a time on the shared ApplicationLoader queue; the server may hold it
+ * for up to LONG_POLL_SECONDS until it has an event. The next poll is sent
+ * at once after an event or after an empty answer the server held; empty
+ * answers that come back at once (servers without long-poll support) and
+ * errors back off exponentially, and a tgnet reconnect or an explicit
+ * wakeUp() resets the backoff.
+ */
+public class SPAEventChannel implements NotificationCenter.NotificationCenterDelegate {
+
+    private static final int LONG_POLL_SECONDS = 25;
+    private static final int MIN_BACKOFF_MS = 1000;
+    private static final int MAX_BACKOFF_MS = 5 * 60 * 1000;
+    // an empty answer that took at least this long was held by the server
+    private static final int MIN_HELD_MS = LONG_POLL_SECONDS * 1000 / 2;
+
+    private StringRequest currentRequest;
+    private boolean started;
+    private int backoff = MIN_BACKOFF_MS;
+    private long requestStartTime;
+
+    private Runnable pollRunnable = new Runnable() {
+        @Override
+        public void run() {
+            poll();
+        }
+    };
+
+    private static volatile SPAEventChannel Instance = null;
+    public static SPAEventChannel getInstance() {
+        SPAEventChannel localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (SPAEventChannel.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new SPAEventChannel();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    public void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        NotificationCenter.getInstance().addObserver(this, NotificationCenter.didUpdatedConnectionState);
+        wakeUp();
+    }
+
+    public void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        NotificationCenter.getInstance().removeObserver(this, NotificationCenter.didUpdatedConnectionState);
+        AndroidUtilities.cancelRunOnUIThread(pollRunnable);
+        if (currentRequest != null) {
+            currentRequest.cancel();
+            currentRequest = null;
+        }
+    }
+
+    /**
+     * Poll now, e.g. after sending a request whose answer is expected soon.
+     */
+    public void wakeUp() {
+        if (!started) {
+            return;
+        }
+        backoff = MIN_BACKOFF_MS;
+        if (currentRequest == null) {
+            AndroidUtilities.cancelRunOnUIThread(pollRunnable);
+            poll();
+        }
+    }
+
+    @Override
+    public void didReceivedNotification(int id, Object... args) {
+        if (id == NotificationCenter.didUpdatedConnectionState) {
+            if (ConnectionsManager.getInstance().getConnectionState() == ConnectionsManager.ConnectionStateConnected) {
+                wakeUp();
+            }
+        }
+    }
+
+    private void scheduleNextPoll(int delay) {
+        AndroidUtilities.cancelRunOnUIThread(pollRunnable);
+        if (started) {
+            AndroidUtilities.runOnUIThread(pollRunnable, delay);
+        }
+    }
+
+    private void poll() {
+        if (!started || currentRequest != null) {
+            return;
+        }
+        StringRequest stringRequest = new StringRequest(Request.Method.POST, SPAConfig.pollingKeyManager,
+                new Response.Listener<String>() {
+                    @Override
+                    public void onResponse(String response) {
+                        currentRequest = null;
+                        boolean held = System.currentTimeMillis() - requestStartTime >= MIN_HELD_MS;
+                        if (processResponse(response) || held) {
+                            backoff = MIN_BACKOFF_MS;
+                            scheduleNextPoll(0);
+                        } else {
+                            scheduleNextPoll(backoff);
+                            backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+                        }
+                    }
+                }, new Response.ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                Log.v("SPA", "SPAEventChannel didn't work!");
+                currentRequest = null;
+                scheduleNextPoll(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            }
+        }) {
+            protected Map<String, String> getParams() {
+                TLRPC.User user = UserConfig.getCurrentUser();
+                String value;
+                if (user != null && user.phone != null && user.phone.length() != 0) {
+                    value = user.phone;
+                } else {
+                    value = LocaleController.getString("NumberUnknown", R.string.NumberUnknown);
+                }
+                Map<String, String> params = new HashMap<>();
+                params.put("id", value);
+                // servers without long-poll support ignore it and answer at once
+                params.put("wait", "" + LONG_POLL_SECONDS);
+                return params;
+            }
+        };
+        stringRequest.setRetryPolicy(new DefaultRetryPolicy((LONG_POLL_SECONDS + 5) * 1000, 0, DefaultRetryPolicy.DEFAULT_BACKOFF_MULT));
+        stringRequest.setShouldCache(false);
+        currentRequest = stringRequest;
+        requestStartTime = System.currentTimeMillis();
+        ApplicationLoader.getRequestQueue().add(stringRequest);
+    }
+
+    private boolean processResponse(String response) {
+        if (response.compareTo("ok") == 0) {
+            return false;
+        }
+        if (response.startsWith("merged:")) {
+            CharSequence text = "Get the merged result";
+            int duration = Toast.LENGTH_SHORT;
+            Toast toast = Toast.makeText(ApplicationLoader.applicationContext, text, duration);
+            toast.show();
+            // remove "merged:"
+            final String rawResult = response.substring(7);
+            Utilities.globalQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    processMergedResult(rawResult);
+                }
+            });
+        } else if (response.startsWith("result:")) {
+            CharSequence text = "Get an SPA result, please go to SPA setting to assess it";
+            int duration = Toast.LENGTH_SHORT;
+            Toast toast = Toast.makeText(ApplicationLoader.applicationContext, text, duration);
+            toast.show();
+            SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences(SPAConfig.SPA_PREFERENCE, Activity.MODE_PRIVATE);
+            SharedPreferences.Editor editor = preferences.edit();
+            editor.putString("spa_result_assessment", response.substring(7));
+            editor.commit();
+        } else if (response.startsWith("assess:")) {
+            String[] assessment = response.substring(7).split(",");
+            CharSequence text = assessment[0] + " friends think result is suitable.\n"
+                    + assessment[1] + " friends think result is malicious.\n"
+                    + assessment[2] + " friends have no iead.";
+            int duration = Toast.LENGTH_SHORT;
+            Toast toast = Toast.makeText(ApplicationLoader.applicationContext, text, duration);
+            toast.show();
+        } else {
+            CharSequence text = "Get an SPA request, please go to SPA setting to response it";
+            int duration = Toast.LENGTH_SHORT;
+            Toast toast = Toast.makeText(ApplicationLoader.applicationContext, text, duration);
+            toast.show();
+            SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences(SPAConfig.SPA_PREFERENCE, Activity.MODE_PRIVATE);
+            SharedPreferences.Editor editor = preferences.edit();
+            Set<String> set = preferences.getStringSet("spa_request_poll_service", new TreeSet<String>());
+            set.add(response);
+            editor.putStringSet("spa_request_poll_service", set);
+            editor.commit();
+            Log.v("spa", "get keys: " + response);
+        }
+        return true;
+    }
+
+    private static void processMergedResult(String rawResult) {
+        SPAWireFormat.Reader reader = new SPAWireFormat.Reader(rawResult, 0);
+        reader.nextGroup();
+        ArrayList<String> policies = reader.readTokens();
+        reader.nextGroup();
+        ArrayList<String> settings = reader.readTokens();
+        SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences(SPAConfig.SPA_PREFERENCE, Activity.MODE_PRIVATE);
+        SharedPreferences.Editor editor = preferences.edit();
+        PaillierPrivateKey paillierPrivateKey = SPAKeyStore.getInstance().getPrivateKey();
+        if (paillierPrivateKey == null) {
+            return;
+        }
+
+        // decrypt every ciphertext of the merged result in one batch
+        ArrayList<Integer> offsets = new ArrayList<>();
+        ArrayList<BigInteger> weights = new ArrayList<>();
+        ArrayList<BigInteger> ciphertexts = new ArrayList<>();
+        for (int j = 0; j < policies.size() && reader.nextGroup(); ++j) {
+            offsets.add(ciphertexts.size());
+            if (policies.get(j).compareTo("MajorityPreferred") == 0
+                    || policies.get(j).compareTo("MinorityPreferred") == 0) {
+                int count = settings.get(j).compareTo("last_seen_setting") == 0 ? 3 : 1;
+                for (int k = 0; k < count; k++) {
+                    ciphertexts.add(reader.nextCiphertext());
+                }
+                weights.add(null);
+            } else {
+                ciphertexts.add(reader.nextCiphertext());
+                weights.add(reader.nextDecimal());
+            }
+        }
+        List<BigInteger> plaintexts = paillierPrivateKey.decryptAll(ciphertexts);
+
+        for (int j = 0; j < offsets.size(); ++j) {
+            int offset = offsets.get(j);
+            if (policies.get(j).compareTo("MajorityPreferred") == 0
+                    || policies.get(j).compareTo("MinorityPreferred") == 0) {
+                if (settings.get(j).compareTo("last_seen_setting") == 0) {
+                    // If axay is neg number, the result is n + axay, which is a big number.
+                    BigInteger a1a2 = plaintexts.get(offset);
+                    BigInteger a1a3 = plaintexts.get(offset + 1);
+                    BigInteger a2a3 = plaintexts.get(offset + 2);
+                    if (a1a2.compareTo(BigInteger.ZERO) <= 0) {
+                        if (a2a3.compareTo(BigInteger.ZERO) <= 0) {
+                            editor.putInt(settings.get(j) + "_result", 3);
+                        } else {
+                            editor.putInt(settings.get(j) + "_result", 2);
+                        }
+                    } else {
+                        if (a1a3.compareTo(BigInteger.ZERO) <= 0) {
+                            editor.putInt(settings.get(j) + "_result", 3);
+                        } else {
+                            editor.putInt(settings.get(j) + "_result", 1);
+                        }
+                    }
+                } else {
+                    BigInteger a1a2 = plaintexts.get(offset);
+                    if (a1a2.compareTo(BigInteger.ZERO) <= 0) {
+                        editor.putInt(settings.get(j) + "_result", 2);
+                    } else {
+                        editor.putInt(settings.get(j) + "_result", 1);
+                    }
+                }
+            } else {
+                BigInteger value = plaintexts.get(offset);
+                BigInteger weight = weights.get(j);
+                editor.putInt(settings.get(j) + "_result", value.divide(weight).intValue());
+            }
+        }
+        editor.commit();
+    }
+}
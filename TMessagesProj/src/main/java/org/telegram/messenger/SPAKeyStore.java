@@ -0,0 +1,222 @@
+package org.telegram.messenger;
+
+import android.app.Activity;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import org.paillier.PaillierPrivateKey;
+import org.paillier.PaillierPublicKey;
+import org.telegram.tgnet.SerializedData;
+
+import java.math.BigInteger;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Paillier keys of the current user and of requesters, parsed once and kept
+ * as immutable key objects. The own keys are stored as one base64 encoded
+ * SerializedData blob ("paillier_keys") instead of decimal preference strings,
+ * older string keys are migrated on first load.
+ */
+public class SPAKeyStore {
+
+    private static final int KEYS_VERSION = 1;
+    private static final int MAX_CACHED_PUBLIC_KEYS = 8;
+    private static final String[] LEGACY_KEYS = {"paillier_lambda", "paillier_mu", "paillier_g", "paillier_n", "paillier_p", "paillier_q", "ope_key"};
+
+    private boolean loaded;
+    private BigInteger lambda;
+    private BigInteger mu;
+    private BigInteger n;
+    private BigInteger g;
+    private BigInteger p;
+    private BigInteger q;
+    private String opeKey;
+    private String nString;
+    private String gString;
+    private PaillierPublicKey publicKey;
+    private PaillierPrivateKey privateKey;
+
+    private final LinkedHashMap<String, PaillierPublicKey> publicKeys = new LinkedHashMap<String, PaillierPublicKey>(MAX_CACHED_PUBLIC_KEYS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PaillierPublicKey> eldest) {
+            return size() > MAX_CACHED_PUBLIC_KEYS;
+        }
+    };
+
+    private static volatile SPAKeyStore Instance = null;
+    public static SPAKeyStore getInstance() {
+        SPAKeyStore localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (SPAKeyStore.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new SPAKeyStore();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    public synchronized boolean hasKeys() {
+        loadKeys();
+        return n != null;
+    }
+
+    public synchronized PaillierPublicKey getPublicKey() {
+        loadKeys();
+        if (publicKey == null && n != null) {
+            publicKey = getPublicKey(nString, gString);
+        }
+        return publicKey;
+    }
+
+    public synchronized PaillierPrivateKey getPrivateKey() {
+        loadKeys();
+        if (privateKey == null && n != null) {
+            privateKey = new PaillierPrivateKey(lambda, mu, n, p, q);
+        }
+        return privateKey;
+    }
+
+    public synchronized String getN() {
+        loadKeys();
+        return nString;
+    }
+
+    public synchronized String getG() {
+        loadKeys();
+        return gString;
+    }
+
+    public synchronized String getOpeKey() {
+        loadKeys();
+        return opeKey;
+    }
+
+    /**
+     * Public key of a requester, keyed by its decimal n and g as they arrive
+     * in an SPA request.
+     */
+    public synchronized PaillierPublicKey getPublicKey(String n, String g) {
+        String key = n + " " + g;
+        PaillierPublicKey result = publicKeys.get(key);
+        if (result == null) {
+            result = new PaillierPublicKey(new BigInteger(n), new BigInteger(g));
+            publicKeys.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Stores new keys received from SPAConfig.addKeys and drops every cached
+     * key object built from the old ones. p and q may be null.
+     */
+    public synchronized void setKeys(String lambda, String mu, String g, String n, String opeKey, String p, String q) {
+        this.lambda = new BigInteger(lambda);
+        this.mu = new BigInteger(mu);
+        this.g = new BigInteger(g);
+        this.n = new BigInteger(n);
+        this.p = p != null ? new BigInteger(p) : null;
+        this.q = q != null ? new BigInteger(q) : null;
+        this.opeKey = opeKey;
+        nString = n;
+        gString = g;
+        publicKey = null;
+        privateKey = null;
+        loaded = true;
+        saveKeys();
+    }
+
+    public synchronized void clear() {
+        lambda = mu = g = n = p = q = null;
+        opeKey = nString = gString = null;
+        publicKey = null;
+        privateKey = null;
+        publicKeys.clear();
+        loaded = true;
+        SharedPreferences.Editor editor = getPreferences().edit();
+        editor.remove("paillier_keys");
+        for (String legacyKey : LEGACY_KEYS) {
+            editor.remove(legacyKey);
+        }
+        editor.commit();
+    }
+
+    private SharedPreferences getPreferences() {
+        return ApplicationLoader.applicationContext.getSharedPreferences(SPAConfig.SPA_PREFERENCE, Activity.MODE_PRIVATE);
+    }
+
+    private void loadKeys() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        SharedPreferences preferences = getPreferences();
+        try {
+            String keys = preferences.getString("paillier_keys", null);
+            if (keys != null) {
+                byte[] bytes = Base64.decode(keys, Base64.DEFAULT);
+                SerializedData data = new SerializedData(bytes);
+                int version = data.readInt32(false);
+                if (version == KEYS_VERSION) {
+                    lambda = new BigInteger(1, data.readByteArray(false));
+                    mu = new BigInteger(1, data.readByteArray(false));
+                    g = new BigInteger(1, data.readByteArray(false));
+                    n = new BigInteger(1, data.readByteArray(false));
+                    if (data.readBool(false)) {
+                        p = new BigInteger(1, data.readByteArray(false));
+                        q = new BigInteger(1, data.readByteArray(false));
+                    }
+                    opeKey = data.readString(false);
+                    nString = n.toString();
+                    gString = g.toString();
+                }
+                data.cleanup();
+            } else if (preferences.contains("paillier_lambda")) {
+                setKeys(preferences.getString("paillier_lambda", "0"), preferences.getString("paillier_mu", "0"),
+                        preferences.getString("paillier_g", "1"), preferences.getString("paillier_n", "1"),
+                        preferences.getString("ope_key", "1"), preferences.getString("paillier_p", null),
+                        preferences.getString("paillier_q", null));
+            }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+
+    private void saveKeys() {
+        try {
+            SerializedData data = new SerializedData();
+            data.writeInt32(KEYS_VERSION);
+            data.writeByteArray(magnitude(lambda));
+            data.writeByteArray(magnitude(mu));
+            data.writeByteArray(magnitude(g));
+            data.writeByteArray(magnitude(n));
+            data.writeBool(p != null && q != null);
+            if (p != null && q != null) {
+                data.writeByteArray(magnitude(p));
+                data.writeByteArray(magnitude(q));
+            }
+            data.writeString(opeKey != null ? opeKey : "");
+            SharedPreferences.Editor editor = getPreferences().edit();
+            editor.putString("paillier_keys", Base64.encodeToString(data.toByteArray(), Base64.DEFAULT));
+            for (String legacyKey : LEGACY_KEYS) {
+                editor.remove(legacyKey);
+            }
+            editor.commit();
+            data.cleanup();
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+
+    private static byte[] magnitude(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) {
+            byte[] result = new byte[bytes.length - 1];
+            System.arraycopy(bytes, 1, result, 0, result.length);
+            return result;
+        }
+        return bytes;
+    }
+}
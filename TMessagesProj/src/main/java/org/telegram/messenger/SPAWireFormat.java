@@ -0,0 +1,187 @@
+package org.telegram.messenger;
+
+import android.util.Base64;
+
+import org.paillier.PaillierCiphertextCodec;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+
+/**
+ * Ciphertext tokens of SPA payloads. A token is either the legacy decimal
+ * text or, when SPAConfig.binaryCiphertexts is on, BINARY_PREFIX followed by
+ * the url-safe base64 of the fixed-width big-endian ciphertext.
+ */
+public class SPAWireFormat {
+    public static final char BINARY_PREFIX = '#';
+    private static final int BASE64_FLAGS = Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING;
+
+    public static String encodeCiphertext(PaillierCiphertextCodec codec, BigInteger c) {
+        if (!SPAConfig.binaryCiphertexts) {
+            return c.toString();
+        }
+        return BINARY_PREFIX + Base64.encodeToString(codec.encode(c), BASE64_FLAGS);
+    }
+
+    public static BigInteger decodeCiphertext(String payload, int start, int end) {
+        if (start < end && payload.charAt(start) == BINARY_PREFIX) {
+            return new BigInteger(1, Base64.decode(payload.substring(start + 1, end), BASE64_FLAGS));
+        }
+        return new BigInteger(payload.substring(start, end));
+    }
+
+    /**
+     * Streaming reader over "a b c,d e,..." payloads such as the body of a
+     * "merged:" response. Groups are separated by ',' and tokens by ' '; no
+     * intermediate arrays are built, and decimal numbers are parsed in place
+     * through scratch buffers kept by the reader.
+     */
+    public static class Reader {
+        private final String payload;
+        private final int end;
+        private int position;
+        private int groupEnd = -1;
+        private int[] words = new int[0];
+        private byte[] bytes = new byte[0];
+
+        public Reader(String payload, int start) {
+            this.payload = payload;
+            end = payload.length();
+            position = start;
+        }
+
+        public boolean nextGroup() {
+            if (groupEnd >= 0) {
+                if (groupEnd >= end) {
+                    return false;
+                }
+                position = groupEnd + 1;
+            } else if (position > end) {
+                return false;
+            }
+            int comma = payload.indexOf(',', position);
+            groupEnd = comma < 0 ? end : comma;
+            return true;
+        }
+
+        public boolean hasNextToken() {
+            skipSpaces();
+            return position < groupEnd;
+        }
+
+        public String nextToken() {
+            skipSpaces();
+            int tokenEnd = tokenEnd();
+            String token = payload.substring(position, tokenEnd);
+            position = tokenEnd;
+            return token;
+        }
+
+        public BigInteger nextCiphertext() {
+            skipSpaces();
+            int tokenEnd = tokenEnd();
+            BigInteger value;
+            if (payload.charAt(position) == BINARY_PREFIX) {
+                value = decodeCiphertext(payload, position, tokenEnd);
+            } else {
+                value = parseDecimal(position, tokenEnd);
+            }
+            position = tokenEnd;
+            return value;
+        }
+
+        public BigInteger nextDecimal() {
+            skipSpaces();
+            int tokenEnd = tokenEnd();
+            BigInteger value = parseDecimal(position, tokenEnd);
+            position = tokenEnd;
+            return value;
+        }
+
+        public ArrayList<String> readTokens() {
+            ArrayList<String> tokens = new ArrayList<>();
+            while (hasNextToken()) {
+                tokens.add(nextToken());
+            }
+            return tokens;
+        }
+
+        /**
+         * Same result as new BigInteger(payload.substring(start, end)) for
+         * decimal text, but builds the magnitude 9 digits at a time in words
+         * and hands it to BigInteger right-aligned in bytes, the leading zero
+         * bytes being dropped by BigInteger.
+         */
+        private BigInteger parseDecimal(int start, int end) {
+            boolean negative = false;
+            if (start < end && (payload.charAt(start) == '-' || payload.charAt(start) == '+')) {
+                negative = payload.charAt(start) == '-';
+                start++;
+            }
+            if (start >= end) {
+                throw new NumberFormatException("no digits at " + start);
+            }
+            int digits = end - start;
+            int capacity = digits / 9 + 2;
+            if (words.length < capacity) {
+                words = new int[capacity];
+                bytes = new byte[capacity * 4];
+            }
+            int used = 0;
+            int chunkStart = start;
+            int chunkEnd = start + (digits % 9 == 0 ? 9 : digits % 9);
+            while (chunkStart < end) {
+                int chunk = 0;
+                int multiplier = 1;
+                for (int a = chunkStart; a < chunkEnd; a++) {
+                    char c = payload.charAt(a);
+                    if (c < '0' || c > '9') {
+                        throw new NumberFormatException("invalid digit at " + a);
+                    }
+                    chunk = chunk * 10 + (c - '0');
+                    multiplier *= 10;
+                }
+                // words (least significant first) = words * multiplier + chunk
+                long carry = chunk;
+                for (int a = 0; a < used; a++) {
+                    long product = (words[a] & 0xffffffffL) * multiplier + carry;
+                    words[a] = (int) product;
+                    carry = product >>> 32;
+                }
+                if (carry != 0) {
+                    words[used++] = (int) carry;
+                }
+                chunkStart = chunkEnd;
+                chunkEnd += 9;
+            }
+            int offset = bytes.length - used * 4;
+            for (int a = 0; a < offset; a++) {
+                bytes[a] = 0;
+            }
+            for (int a = 0; a < used; a++) {
+                int word = words[used - 1 - a];
+                int index = offset + a * 4;
+                bytes[index] = (byte) (word >>> 24);
+                bytes[index + 1] = (byte) (word >>> 16);
+                bytes[index + 2] = (byte) (word >>> 8);
+                bytes[index + 3] = (byte) word;
+            }
+            BigInteger value = new BigInteger(1, bytes);
+            return negative ? value.negate() : value;
+        }
+
+        private void skipSpaces() {
+            while (position < groupEnd && payload.charAt(position) == ' ') {
+                position++;
+            }
+        }
+
+        private int tokenEnd() {
+            if (position >= groupEnd) {
+                throw new IllegalStateException("no token at " + position);
+            }
+            int space = payload.indexOf(' ', position);
+            return space < 0 || space > groupEnd ? groupEnd : space;
+        }
+    }
+}
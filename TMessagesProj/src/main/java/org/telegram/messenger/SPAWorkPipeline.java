@@ -0,0 +1,258 @@
+package org.telegram.messenger;
+
+import org.paillier.PaillierCiphertextCodec;
+import org.paillier.PaillierPublicKey;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background work for SPA screens. Jobs are coordinated on spaWorkQueue,
+ * ciphertexts are computed in parallel on a bounded pool, progress is posted
+ * as NotificationCenter.spaEncryptionProgress (job id, done, total) and
+ * results are delivered on the UI thread unless the job's tag was canceled.
+ */
+public class SPAWorkPipeline {
+
+    public interface Delegate<T> {
+        void didFinish(T result);
+        void didFail(Throwable e);
+    }
+
+    /**
+     * Plaintexts encrypted into one space separated group, followed by an
+     * optional plain text suffix.
+     */
+    public static class Group {
+        public BigInteger[] plaintexts;
+        public String suffix;
+
+        public Group(BigInteger[] plaintexts, String suffix) {
+            this.plaintexts = plaintexts;
+            this.suffix = suffix;
+        }
+    }
+
+    private static final int MAX_QUEUED_TASKS = 256;
+
+    private final DispatchQueue workQueue = new DispatchQueue("spaWorkQueue");
+    private final ThreadPoolExecutor encryptExecutor;
+    private final ArrayList<Job> activeJobs = new ArrayList<>();
+    private int lastJobId;
+
+    private static volatile SPAWorkPipeline Instance = null;
+    public static SPAWorkPipeline getInstance() {
+        SPAWorkPipeline localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (SPAWorkPipeline.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new SPAWorkPipeline();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    public SPAWorkPipeline() {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        // when the pool is saturated the coordinating spaWorkQueue runs the task itself
+        encryptExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED_TASKS), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "spaEncrypt" + count.incrementAndGet());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        encryptExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs work on spaWorkQueue and hands the result to delegate on the UI thread.
+     */
+    public <T> int submit(Object tag, final Callable<T> work, final Delegate<T> delegate) {
+        final Job job = createJob(tag);
+        workQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                if (job.canceled) {
+                    finishJob(job);
+                    return;
+                }
+                try {
+                    deliverResult(job, work.call(), delegate);
+                } catch (Throwable e) {
+                    deliverError(job, e, delegate);
+                }
+            }
+        });
+        return job.id;
+    }
+
+    /**
+     * Encrypts every group in parallel and returns one string per group, in the
+     * order of groups, each ciphertext encoded with SPAWireFormat.
+     */
+    public int encrypt(Object tag, final PaillierPublicKey publicKey, final ArrayList<Group> groups, final Delegate<String[]> delegate) {
+        final Job job = createJob(tag);
+        workQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    deliverResult(job, encryptGroups(job, publicKey, groups), delegate);
+                } catch (Throwable e) {
+                    deliverError(job, e, delegate);
+                }
+            }
+        });
+        return job.id;
+    }
+
+    public void cancel(Object tag) {
+        if (tag == null) {
+            return;
+        }
+        synchronized (activeJobs) {
+            for (int a = 0; a < activeJobs.size(); a++) {
+                Job job = activeJobs.get(a);
+                if (job.tag == tag) {
+                    job.canceled = true;
+                }
+            }
+        }
+    }
+
+    private String[] encryptGroups(final Job job, final PaillierPublicKey publicKey, ArrayList<Group> groups) throws InterruptedException {
+        final PaillierCiphertextCodec codec = new PaillierCiphertextCodec(publicKey);
+        int total = 0;
+        for (int a = 0; a < groups.size(); a++) {
+            total += groups.get(a).plaintexts.length;
+        }
+        final int totalCount = total;
+        final String[][] tokens = new String[groups.size()][];
+        final CountDownLatch latch = new CountDownLatch(total);
+        final AtomicInteger done = new AtomicInteger();
+        final Throwable[] error = new Throwable[1];
+        for (int a = 0; a < groups.size(); a++) {
+            final BigInteger[] plaintexts = groups.get(a).plaintexts;
+            final String[] groupTokens = tokens[a] = new String[plaintexts.length];
+            for (int b = 0; b < plaintexts.length; b++) {
+                final int index = b;
+                encryptExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (!job.canceled && !job.failed) {
+                                groupTokens[index] = SPAWireFormat.encodeCiphertext(codec, publicKey.encrypt(plaintexts[index]));
+                                postProgress(job, done.incrementAndGet(), totalCount);
+                            }
+                        } catch (Throwable e) {
+                            synchronized (error) {
+                                error[0] = e;
+                            }
+                            job.failed = true;
+                        } finally {
+                            latch.countDown();
+                        }
+                    }
+                });
+            }
+        }
+        latch.await();
+        synchronized (error) {
+            if (error[0] != null) {
+                throw new RuntimeException(error[0]);
+            }
+        }
+        String[] result = new String[groups.size()];
+        if (job.canceled) {
+            return result;
+        }
+        for (int a = 0; a < groups.size(); a++) {
+            StringBuilder builder = new StringBuilder();
+            String[] groupTokens = tokens[a];
+            for (int b = 0; b < groupTokens.length; b++) {
+                if (b != 0) {
+                    builder.append(' ');
+                }
+                builder.append(groupTokens[b]);
+            }
+            String suffix = groups.get(a).suffix;
+            if (suffix != null) {
+                builder.append(' ').append(suffix);
+            }
+            result[a] = builder.toString();
+        }
+        return result;
+    }
+
+    private Job createJob(Object tag) {
+        Job job = new Job();
+        job.tag = tag;
+        synchronized (activeJobs) {
+            job.id = ++lastJobId;
+            activeJobs.add(job);
+        }
+        return job;
+    }
+
+    private void finishJob(Job job) {
+        synchronized (activeJobs) {
+            activeJobs.remove(job);
+        }
+    }
+
+    private void postProgress(final Job job, final int done, final int total) {
+        AndroidUtilities.runOnUIThread(new Runnable() {
+            @Override
+            public void run() {
+                if (!job.canceled) {
+                    NotificationCenter.getInstance().postNotificationName(NotificationCenter.spaEncryptionProgress, job.id, done, total);
+                }
+            }
+        });
+    }
+
+    private <T> void deliverResult(final Job job, final T result, final Delegate<T> delegate) {
+        AndroidUtilities.runOnUIThread(new Runnable() {
+            @Override
+            public void run() {
+                finishJob(job);
+                if (!job.canceled && delegate != null) {
+                    delegate.didFinish(result);
+                }
+            }
+        });
+    }
+
+    private <T> void deliverError(final Job job, final Throwable e, final Delegate<T> delegate) {
+        FileLog.e("tmessages", e);
+        AndroidUtilities.runOnUIThread(new Runnable() {
+            @Override
+            public void run() {
+                finishJob(job);
+                if (!job.canceled && delegate != null) {
+                    delegate.didFail(e);
+                }
+            }
+        });
+    }
+
+    private static class Job {
+        int id;
+        Object tag;
+        volatile boolean canceled;
+        volatile boolean failed;
+    }
+}
@@ -9,6 +9,7 @@
 package org.telegram.messenger.query;
 
 import org.telegram.messenger.AndroidUtilities;
+import org.telegram.messenger.FileLog;
 import org.telegram.messenger.MessageObject;
 import org.telegram.messenger.MessagesController;
 import org.telegram.messenger.MessagesStorage;
@@ -75,6 +76,14 @@ public class MessagesSearchQuery {
         final TLRPC.TL_messages_search req = new TLRPC.TL_messages_search();
         req.limit = 21;
         int lower_part = (int) dialog_id;
+        final int currentReqId = ++lastReqId;
+        lastSearchQuery = query;
+        if (max_id == 0) {
+            searchLocalMessages(query, dialog_id, guid, currentReqId, lower_part == 0);
+        }
+        if (lower_part == 0) {
+            return;
+        }
         req.peer = MessagesController.getInputPeer(lower_part);
         if (req.peer == null) {
             return;
@@ -82,8 +91,6 @@ public class MessagesSearchQuery {
         req.q = query;
         req.max_id = max_id;
         req.filter = new TLRPC.TL_inputMessagesFilterEmpty();
-        final int currentReqId = ++lastReqId;
-        lastSearchQuery = query;
         reqId = ConnectionsManager.getInstance().sendRequest(req, new RequestDelegate() {
             @Override
             public void run(final TLObject response, final TLRPC.TL_error error) {
@@ -122,4 +129,40 @@ public class MessagesSearchQuery {
             }
         }, ConnectionsManager.RequestFlagFailOnServerErrors);
     }
+
+    //shows matches from the local history until the server answers, secret chats only have those
+    private static void searchLocalMessages(final String query, final long dialog_id, final int guid, final int currentReqId, final boolean localOnly) {
+        MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final ArrayList<TLRPC.Message> messages = MessagesStorage.getInstance().searchMessagesInternal(dialog_id, query, 0, localOnly ? 100 : 20);
+                    if (messages == null || messages.isEmpty() && !localOnly) {
+                        return;
+                    }
+                    AndroidUtilities.runOnUIThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (currentReqId != lastReqId || !localOnly && reqId == 0) {
+                                return;
+                            }
+                            lastReturnedNum = 0;
+                            searchResultMessages.clear();
+                            for (int a = 0; a < messages.size(); a++) {
+                                searchResultMessages.add(new MessageObject(messages.get(a), null, false));
+                            }
+                            messagesSearchEndReached = localOnly;
+                            if (searchResultMessages.isEmpty()) {
+                                NotificationCenter.getInstance().postNotificationName(NotificationCenter.chatSearchResultsAvailable, guid, 0, getMask());
+                            } else {
+                                NotificationCenter.getInstance().postNotificationName(NotificationCenter.chatSearchResultsAvailable, guid, searchResultMessages.get(lastReturnedNum).getId(), getMask());
+                            }
+                        }
+                    });
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                }
+            }
+        });
+    }
 }
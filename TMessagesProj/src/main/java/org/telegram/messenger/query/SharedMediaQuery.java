@@ -15,6 +15,7 @@ import org.telegram.SQLite.SQLiteDatabase;
 import org.telegram.SQLite.SQLitePreparedStatement;
 import org.telegram.messenger.AndroidUtilities;
 import org.telegram.messenger.ChatObject;
+import org.telegram.messenger.HolesIndex;
 import org.telegram.messenger.ImageLoader;
 import org.telegram.messenger.MessageObject;
 import org.telegram.messenger.MessagesController;
@@ -333,24 +334,16 @@ public class SharedMediaQuery {
                             messageMaxId |= ((long) channelId) << 32;
                         }
 
-                        cursor = database.queryFinalized(String.format(Locale.US, "SELECT start FROM media_holes_v2 WHERE uid = %d AND type = %d AND start IN (0, 1)", uid, type));
-                        if (cursor.next()) {
-                            isEnd = cursor.intValue(0) == 1;
-                            cursor.dispose();
+                        HolesIndex.Holes holes = MessagesStorage.getInstance().getHoles("media_holes_v2", uid, type);
+                        int boundary = holes.getBoundary();
+                        if (boundary != -1) {
+                            isEnd = boundary == 1;
                         } else {
-                            cursor.dispose();
                             cursor = database.queryFinalized(String.format(Locale.US, "SELECT min(mid) FROM media_v2 WHERE uid = %d AND type = %d AND mid > 0", uid, type));
                             if (cursor.next()) {
                                 int mid = cursor.intValue(0);
                                 if (mid != 0) {
-                                    SQLitePreparedStatement state = database.executeFast("REPLACE INTO media_holes_v2 VALUES(?, ?, ?, ?)");
-                                    state.requery();
-                                    state.bindLong(1, uid);
-                                    state.bindInteger(2, type);
-                                    state.bindInteger(3, 0);
-                                    state.bindInteger(4, mid);
-                                    state.step();
-                                    state.dispose();
+                                    MessagesStorage.getInstance().putHole("media_holes_v2", uid, type, 0, mid);
                                 }
                             }
                             cursor.dispose();
@@ -358,14 +351,13 @@ public class SharedMediaQuery {
 
                         if (messageMaxId != 0) {
                             long holeMessageId = 0;
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT end FROM media_holes_v2 WHERE uid = %d AND type = %d AND end <= %d ORDER BY end DESC LIMIT 1", uid, type, max_id));
-                            if (cursor.next()) {
-                                holeMessageId = cursor.intValue(0);
+                            int holeEnd = holes.getLastEndUpTo(max_id);
+                            if (holeEnd != -1) {
+                                holeMessageId = holeEnd;
                                 if (channelId != 0) {
                                     holeMessageId |= ((long) channelId) << 32;
                                 }
                             }
-                            cursor.dispose();
                             if (holeMessageId > 1) {
                                 cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, mid FROM media_v2 WHERE uid = %d AND mid < %d AND mid >= %d AND type = %d ORDER BY date DESC, mid DESC LIMIT %d", uid, messageMaxId, holeMessageId, type, countToLoad));
                             } else {
@@ -373,14 +365,13 @@ public class SharedMediaQuery {
                             }
                         } else {
                             long holeMessageId = 0;
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT max(end) FROM media_holes_v2 WHERE uid = %d AND type = %d", uid, type));
-                            if (cursor.next()) {
-                                holeMessageId = cursor.intValue(0);
+                            int holeEnd = holes.getMaxEnd();
+                            if (holeEnd != -1) {
+                                holeMessageId = holeEnd;
                                 if (channelId != 0) {
                                     holeMessageId |= ((long) channelId) << 32;
                                 }
                             }
-                            cursor.dispose();
                             if (holeMessageId > 1) {
                                 cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, mid FROM media_v2 WHERE uid = %d AND type = %d AND mid >= %d ORDER BY date DESC, mid DESC LIMIT %d,%d", uid, type, holeMessageId, offset, countToLoad));
                             } else {
@@ -20,6 +20,7 @@ import android.net.TrafficStats;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import org.telegram.messenger.volley.VolleyLog.MarkerLog;
@@ -102,6 +103,9 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /** An opaque token tagging this request; used for bulk cancellation. */
     private Object mTag;
 
+    /** Time this request was added to its queue, in {@link SystemClock#elapsedRealtime()} millis. */
+    private long mQueuedTimeMs;
+
     /**
      * Creates a new request with the given URL and error listener.  Note that
      * the normal response listener is not provided here as delivery of responses
@@ -137,6 +141,20 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mMethod;
     }
 
+    /**
+     * Marks the time this request was added to a {@link RequestQueue}.
+     */
+    /* package */ void markQueued() {
+        mQueuedTimeMs = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Returns the {@link SystemClock#elapsedRealtime()} at which this request was queued.
+     */
+    public long getQueuedTimeMs() {
+        return mQueuedTimeMs;
+    }
+
     /**
      * Set a tag on this request. Can be used to cancel all requests with this
      * tag by {@link RequestQueue#cancelAll(Object)}.
@@ -18,6 +18,7 @@ package org.telegram.messenger.volley;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -45,6 +46,15 @@ public class RequestQueue {
         public void onRequestFinished(Request<T> request);
     }
 
+    /** Callback interface for queue depth and request latency. */
+    public static interface MetricsListener {
+        /** Called when a request has been added; queueDepth includes it. */
+        public void onRequestAdded(Request<?> request, int queueDepth);
+
+        /** Called when a request has finished, latencyMs being the time since it was added. */
+        public void onRequestFinished(Request<?> request, long latencyMs, int queueDepth);
+    }
+
     /** Used for generating monotonically-increasing sequence numbers for requests. */
     private AtomicInteger mSequenceGenerator = new AtomicInteger();
 
@@ -97,6 +107,8 @@ public class RequestQueue {
     private List<RequestFinishedListener> mFinishedListeners =
             new ArrayList<RequestFinishedListener>();
 
+    private volatile MetricsListener mMetricsListener;
+
     /**
      * Creates the worker pool. Processing will not begin until {@link #start()} is called.
      *
@@ -167,6 +179,22 @@ public class RequestQueue {
         }
     }
 
+    /**
+     * Returns the number of requests waiting in any queue or being processed.
+     */
+    public int getPendingRequestsCount() {
+        synchronized (mCurrentRequests) {
+            return mCurrentRequests.size();
+        }
+    }
+
+    /**
+     * Sets the listener notified about queue depth and request latency, or null to remove it.
+     */
+    public void setMetricsListener(MetricsListener listener) {
+        mMetricsListener = listener;
+    }
+
     /**
      * Gets a sequence number.
      */
@@ -227,8 +255,15 @@ public class RequestQueue {
     public <T> Request<T> add(Request<T> request) {
         // Tag the request as belonging to this queue and add it to the set of current requests.
         request.setRequestQueue(this);
+        request.markQueued();
+        int queueDepth;
         synchronized (mCurrentRequests) {
             mCurrentRequests.add(request);
+            queueDepth = mCurrentRequests.size();
+        }
+        MetricsListener metricsListener = mMetricsListener;
+        if (metricsListener != null) {
+            metricsListener.onRequestAdded(request, queueDepth);
         }
 
         // Process requests in the order they are added.
@@ -274,8 +309,15 @@ public class RequestQueue {
      */
     <T> void finish(Request<T> request) {
         // Remove from the set of requests currently being processed.
+        int queueDepth;
         synchronized (mCurrentRequests) {
             mCurrentRequests.remove(request);
+            queueDepth = mCurrentRequests.size();
+        }
+        MetricsListener metricsListener = mMetricsListener;
+        if (metricsListener != null) {
+            metricsListener.onRequestFinished(request,
+                    SystemClock.elapsedRealtime() - request.getQueuedTimeMs(), queueDepth);
         }
         synchronized (mFinishedListeners) {
           for (RequestFinishedListener<T> listener : mFinishedListeners) {
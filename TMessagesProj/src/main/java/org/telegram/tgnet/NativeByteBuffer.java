@@ -40,6 +40,21 @@ public class NativeByteBuffer extends AbstractSerializedData {
 
     }
 
+    /**
+     * Returns a read-only buffer over memory that does not come from the
+     * buffer pool, e.g. an SQLite column blob. view, if it was returned by
+     * this method before, is repointed instead of creating a new object.
+     * reuse() does nothing for such buffers.
+     */
+    public static NativeByteBuffer wrap(ByteBuffer memory, NativeByteBuffer view) {
+        if (view == null || view.address != 0) {
+            view = new NativeByteBuffer(0, true);
+        }
+        view.buffer = memory.asReadOnlyBuffer();
+        view.buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return view;
+    }
+
     public NativeByteBuffer(int size) {
         address = native_getFreeBuffer(size);
         if (address != 0) {
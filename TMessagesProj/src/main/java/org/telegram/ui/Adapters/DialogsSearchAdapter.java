@@ -391,7 +391,14 @@ public class DialogsSearchAdapter extends BaseSearchAdapterRecycler {
                     int resultCount = 0;
 
                     HashMap<Long, DialogSearchResult> dialogsResult = new HashMap<>();
-                    SQLiteCursor cursor = MessagesStorage.getInstance().getDatabase().queryFinalized("SELECT did, date FROM dialogs ORDER BY date DESC LIMIT 200");
+                    SQLiteCursor cursor;
+                    ArrayList<Long> matchedDialogs = MessagesStorage.getInstance().searchPeersInternal(search1, 200);
+                    if (matchedDialogs != null) {
+                        //secret chats and broadcasts are matched by the user and chat names below
+                        cursor = MessagesStorage.getInstance().getDatabase().queryFinalized(String.format(Locale.US, "SELECT did, date FROM dialogs WHERE did IN(%s) OR (did & 4294967295) = 0 OR (did >> 32) = 1 ORDER BY date DESC LIMIT 200", TextUtils.join(",", matchedDialogs)));
+                    } else {
+                        cursor = MessagesStorage.getInstance().getDatabase().queryFinalized("SELECT did, date FROM dialogs ORDER BY date DESC LIMIT 200");
+                    }
                     while (cursor.next()) {
                         long id = cursor.longValue(0);
                         DialogSearchResult dialogSearchResult = new DialogSearchResult();
@@ -49,6 +49,7 @@ import org.telegram.messenger.ContactsController;
 import org.telegram.messenger.MessagesController;
 import org.telegram.messenger.MessagesStorage;
 import org.telegram.messenger.NativeCrashManager;
+import org.telegram.messenger.SPAEventChannel;
 import org.telegram.messenger.SPAKeyManagePollingService;
 import org.telegram.messenger.SPAPollingUtils;
 import org.telegram.messenger.SendMessagesHelper;
@@ -464,7 +465,9 @@ public class LaunchActivity extends Activity implements ActionBarLayout.ActionBa
             ViewServer.get(this).addWindow(this);
         }*/
 
-        SPAPollingUtils.startPollingService(this, 1, SPAKeyManagePollingService.class, SPAKeyManagePollingService.ACTION);
+        // drop the repeating alarm of older versions, SPAEventChannel polls on its own
+        SPAPollingUtils.stopPollingService(this, SPAKeyManagePollingService.class, SPAKeyManagePollingService.ACTION);
+        SPAEventChannel.getInstance().start();
 
         handleIntent(getIntent(), false, savedInstanceState != null, false);
         needLayout();
@@ -1482,7 +1485,7 @@ public class LaunchActivity extends Activity implements ActionBarLayout.ActionBa
         } catch (Exception e) {
             FileLog.e("tmessages", e);
         }
-        SPAPollingUtils.stopPollingService(this, SPAKeyManagePollingService.class, SPAKeyManagePollingService.ACTION);
+        SPAEventChannel.getInstance().stop();
         super.onDestroy();
         onFinish();
     }
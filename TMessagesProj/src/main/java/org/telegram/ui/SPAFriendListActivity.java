@@ -8,6 +8,7 @@ import android.content.SharedPreferences;
 import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
+import android.util.SparseIntArray;
 import android.view.Gravity;
 import android.view.MotionEvent;
 import android.view.View;
@@ -22,21 +23,22 @@ import android.widget.Toast;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.paillier.PaillierPrivateKey;
-import org.paillier.PaillierPublicKey;
 import org.telegram.PhoneFormat.PhoneFormat;
 import org.telegram.messenger.ApplicationLoader;
 import org.telegram.messenger.LocaleController;
 import org.telegram.messenger.MessagesController;
+import org.telegram.messenger.MessagesStorage;
+import org.telegram.messenger.NotificationCenter;
 import org.telegram.messenger.R;
 import org.telegram.messenger.SPAConfig;
+import org.telegram.messenger.SPAEventChannel;
+import org.telegram.messenger.SPAKeyStore;
+import org.telegram.messenger.SPAWorkPipeline;
 import org.telegram.messenger.UserConfig;
 import org.telegram.messenger.volley.Request;
-import org.telegram.messenger.volley.RequestQueue;
 import org.telegram.messenger.volley.Response;
 import org.telegram.messenger.volley.VolleyError;
 import org.telegram.messenger.volley.toolbox.StringRequest;
-import org.telegram.messenger.volley.toolbox.Volley;
 import org.telegram.tgnet.TLRPC;
 import org.telegram.ui.ActionBar.ActionBar;
 import org.telegram.ui.ActionBar.ActionBarMenu;
@@ -47,22 +49,22 @@ import org.telegram.ui.Cells.TextSettingsCell;
 import org.telegram.ui.Cells.UserCell;
 import org.telegram.ui.Components.LayoutHelper;
 
-import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 
 /**
  * Created by zqguo on 2015/10/28.
  */
-public class SPAFriendListActivity extends BaseFragment implements ContactsActivity.ContactsActivityDelegate {
+public class SPAFriendListActivity extends BaseFragment implements ContactsActivity.ContactsActivityDelegate, NotificationCenter.NotificationCenterDelegate {
     private class SPAUser {
         int userId;
         int weight;
         SPAUser(int userId, int weight) {
-            if (weight != UNPROFESSIONAL_USER || weight != PROFESSIONAL_USER) {
+            if (weight != NO_WEIGHT_USER && weight != UNPROFESSIONAL_USER && weight != PROFESSIONAL_USER) {
                 weight = UNPROFESSIONAL_USER;
             }
             this.userId = userId;
@@ -70,6 +72,7 @@ public class SPAFriendListActivity extends BaseFragment implements ContactsActiv
         }
     }
 
+    private final int NO_WEIGHT_USER = 0;
     private final int UNPROFESSIONAL_USER = 1;
     private final int PROFESSIONAL_USER = 2;
 
@@ -79,9 +82,7 @@ public class SPAFriendListActivity extends BaseFragment implements ContactsActiv
     private FrameLayout progressView;
     private int selectedUserId;
     private ArrayList<SPAUser> usersId = new ArrayList<>();
-
-    // in order to get users' phone number for `sendSPARequest`
-    private ArrayList<String[]> usersPhoneAndWeight = new ArrayList<>();
+    private boolean respondentsLoaded;
 
     private final int leastNumberForSendSPARequest = 1;
 
@@ -89,12 +90,17 @@ public class SPAFriendListActivity extends BaseFragment implements ContactsActiv
 
     @Override
     public boolean onFragmentCreate() {
+        NotificationCenter.getInstance().addObserver(this, NotificationCenter.spaRespondentsDidLoaded);
+        MessagesStorage.getInstance().loadSPARespondents();
         return super.onFragmentCreate();
     }
 
     @Override
     public void onFragmentDestroy() {
         super.onFragmentDestroy();
+        NotificationCenter.getInstance().removeObserver(this, NotificationCenter.spaRespondentsDidLoaded);
+        SPAWorkPipeline.getInstance().cancel(this);
+        ApplicationLoader.cancelRequests(this);
     }
 
     @Override
@@ -205,12 +211,12 @@ public class SPAFriendListActivity extends BaseFragment implements ContactsActiv
                 builder.setItems(items, new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialogInterface, int i) {
-                        if (i == 0) {
-                            usersId.get(selectedItem).weight = 1;
-                        } else if (i == 1) {
-                            usersId.get(selectedItem).weight = 2;
-                        } else if (i == 2) {
-                            usersId.get(selectedItem).weight = 0;
+                        if (i >= 0 && i <= 2) {
+                            SPAUser spaUser = usersId.get(selectedItem);
+                            spaUser.weight = i == 0 ? UNPROFESSIONAL_USER : i == 1 ? PROFESSIONAL_USER : NO_WEIGHT_USER;
+                            SparseIntArray weights = new SparseIntArray(1);
+                            weights.put(spaUser.userId, spaUser.weight);
+                            MessagesStorage.getInstance().putSPAWeights(weights);
                         } else if (i == 3) {
                             usersId.remove(selectedItem);
                             listViewAdapter.notifyDataSetChanged();
@@ -223,10 +229,14 @@ public class SPAFriendListActivity extends BaseFragment implements ContactsActiv
             }
         });
 
-        if (!usersId.isEmpty()) {
+        if (!respondentsLoaded) {
             progressView.setVisibility(View.VISIBLE);
             emptyTextView.setVisibility(View.GONE);
             listView.setEmptyView(null);
+        } else if (!usersId.isEmpty()) {
+            progressView.setVisibility(View.GONE);
+            emptyTextView.setVisibility(View.GONE);
+            listView.setEmptyView(null);
         } else {
             progressView.setVisibility(View.GONE);
             listView.setEmptyView(emptyTextView);
@@ -235,14 +245,48 @@ public class SPAFriendListActivity extends BaseFragment implements ContactsActiv
         return fragmentView;
     }
 
-    private boolean sendSPARequest(boolean containsLastSeen, boolean containsPasscodeLock,
-                                   boolean containsAverage, final Context context) {
+    private boolean sendSPARequest(final boolean containsLastSeen, final boolean containsPasscodeLock,
+                                   final boolean containsAverage, final Context context) {
+        final ArrayList<String[]> respondents = new ArrayList<>(usersId.size());
+        ArrayList<MessagesStorage.SPARespondent> storedRespondents = new ArrayList<>(usersId.size());
+        for (int a = 0; a < usersId.size(); a++) {
+            SPAUser spaUser = usersId.get(a);
+            TLRPC.User respondent = MessagesController.getInstance().getUser(spaUser.userId);
+            if (respondent == null || respondent.phone == null || respondent.phone.length() == 0) {
+                continue;
+            }
+            respondents.add(new String[]{respondent.phone, "" + spaUser.weight});
+            storedRespondents.add(new MessagesStorage.SPARespondent(spaUser.userId, respondent.phone, spaUser.weight));
+        }
+        MessagesStorage.getInstance().putSPARespondents(storedRespondents);
+        final TLRPC.User user = UserConfig.getCurrentUser();
+        SPAWorkPipeline.getInstance().submit(this, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return buildSPARequest(containsLastSeen, containsPasscodeLock, containsAverage, respondents, user);
+            }
+        }, new SPAWorkPipeline.Delegate<String>() {
+            @Override
+            public void didFinish(String content) {
+                postSPARequest(content, context);
+            }
+
+            @Override
+            public void didFail(Throwable e) {
+                Toast.makeText(context, "Cannot create request", Toast.LENGTH_SHORT).show();
+            }
+        });
+        return false;
+    }
+
+    private static String buildSPARequest(boolean containsLastSeen, boolean containsPasscodeLock,
+                                          boolean containsAverage, ArrayList<String[]> usersPhoneAndWeight,
+                                          TLRPC.User user) {
         final SharedPreferences preferences =
                 ApplicationLoader. applicationContext.
                         getSharedPreferences(SPAConfig.SPA_PREFERENCE, Activity.MODE_PRIVATE);
 
         // generate json request
-        RequestQueue queue = Volley.newRequestQueue(context);
         ArrayList<String> settings = new ArrayList<>();
         ArrayList<String> policies = new ArrayList<>();
         ArrayList<String> respondentsId = new ArrayList<>();
@@ -260,29 +304,16 @@ public class SPAFriendListActivity extends BaseFragment implements ContactsActiv
             settings.add("average");
             policies.add("Average");
         }
-        TLRPC.User user = UserConfig.getCurrentUser();
         int respondentsSize = usersPhoneAndWeight.size();
-        String paillierN = preferences.getString("paillier_n", "1");
-        String paillierG = preferences.getString("paillier_g", "1");
-        String paillierM = preferences.getString("paillier_mu", "0");
-        String paillierL = preferences.getString("paillier_lambda", "0");
-
-        String opeK = preferences.getString("ope_key", "1");
-        PaillierPublicKey pk = new PaillierPublicKey(new BigInteger(paillierN),
-                new BigInteger(paillierG));
-        StringBuffer users = new StringBuffer();
+        SPAKeyStore keyStore = SPAKeyStore.getInstance();
+        String paillierN = keyStore.hasKeys() ? keyStore.getN() : "1";
+        String paillierG = keyStore.hasKeys() ? keyStore.getG() : "1";
+        String opeK = keyStore.hasKeys() ? keyStore.getOpeKey() : "1";
         for (int i = 0; i < respondentsSize; ++i) {
             String[] cu = usersPhoneAndWeight.get(i);
             respondentsId.add(cu[0]);
-            users.append(" " + cu[0]);
             respondentsWeight.add(cu[1]);
         }
-        if (users.length() > 0) {
-            users.deleteCharAt(0);
-        }
-        SharedPreferences.Editor editor = preferences.edit();
-        editor.putString("spa_respondents", users.toString());
-        editor.commit();
 
         final JSONObject sendC = new JSONObject();
         try {
@@ -296,7 +327,10 @@ public class SPAFriendListActivity extends BaseFragment implements ContactsActiv
             sendC.put("weights", new JSONArray(respondentsWeight));
         } catch (JSONException e) {}
         Log.v("spa", sendC.toString());
+        return sendC.toString();
+    }
 
+    private void postSPARequest(final String content, final Context context) {
         StringRequest stringRequest = new StringRequest(
                 Request.Method.POST,
                 SPAConfig.sendSPARequest,
@@ -304,6 +338,7 @@ public class SPAFriendListActivity extends BaseFragment implements ContactsActiv
                     @Override
                     public void onResponse(String response) {
                         if (response.compareTo("ok") == 0) {
+                            SPAEventChannel.getInstance().wakeUp();
                             CharSequence text = "Send request successfully";
                             int duration = Toast.LENGTH_SHORT;
                             Toast toast = Toast.makeText(context, text, duration);
@@ -328,12 +363,12 @@ public class SPAFriendListActivity extends BaseFragment implements ContactsActiv
                 }) {
             protected Map<String, String> getParams() {
                 Map<String, String> params = new HashMap<>();
-                params.put("content", sendC.toString());
+                params.put("content", content);
                 return params;
             }
         };
-        queue.add(stringRequest);
-        return false;
+        stringRequest.setTag(this);
+        ApplicationLoader.getRequestQueue().add(stringRequest);
     }
 
     @Override
@@ -349,7 +384,44 @@ public class SPAFriendListActivity extends BaseFragment implements ContactsActiv
         if (user == null) {
             return;
         }
-        usersId.add(new SPAUser(user.id, UNPROFESSIONAL_USER));
+        for (int a = 0; a < usersId.size(); a++) {
+            if (usersId.get(a).userId == user.id) {
+                return;
+            }
+        }
+        usersId.add(new SPAUser(user.id, MessagesStorage.getInstance().getSPAWeight(user.id)));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void didReceivedNotification(int id, Object... args) {
+        if (id == NotificationCenter.spaRespondentsDidLoaded) {
+            if (respondentsLoaded) {
+                return;
+            }
+            respondentsLoaded = true;
+            ArrayList<MessagesStorage.SPARespondent> respondents = (ArrayList<MessagesStorage.SPARespondent>) args[0];
+            for (int a = 0; a < respondents.size(); a++) {
+                MessagesStorage.SPARespondent respondent = respondents.get(a);
+                boolean exists = false;
+                for (int b = 0; b < usersId.size(); b++) {
+                    if (usersId.get(b).userId == respondent.uid) {
+                        exists = true;
+                        break;
+                    }
+                }
+                if (!exists) {
+                    usersId.add(new SPAUser(respondent.uid, respondent.weight));
+                }
+            }
+            if (listViewAdapter != null) {
+                listViewAdapter.notifyDataSetChanged();
+            }
+            if (listView != null) {
+                progressView.setVisibility(View.GONE);
+                listView.setEmptyView(usersId.isEmpty() ? emptyTextView : null);
+            }
+        }
     }
 
     private class ListAdapter extends BaseFragmentAdapter {
@@ -405,7 +477,6 @@ public class SPAFriendListActivity extends BaseFragment implements ContactsActiv
                 }
                 TLRPC.User user = MessagesController.getInstance().getUser(usersId.get(i).userId);
                 if (user != null) {
-                    usersPhoneAndWeight.add(new String[]{user.phone, "1"});
                     ((UserCell) view).setData(user, null, user.phone != null && user.phone.length() != 0 ? PhoneFormat.getInstance().format("+" + user.phone) : LocaleController.getString("NumberUnknown", R.string.NumberUnknown), 0);
                 }
             } else if (type == 1) {
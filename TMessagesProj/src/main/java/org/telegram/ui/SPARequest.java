@@ -2,6 +2,7 @@ package org.telegram.ui;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.SharedPreferences;
@@ -16,17 +17,20 @@ import android.widget.Toast;
 
 import org.paillier.PaillierPublicKey;
 import org.telegram.messenger.ApplicationLoader;
+import org.telegram.messenger.FileLog;
 import org.telegram.messenger.LocaleController;
 import org.telegram.messenger.MessagesController;
+import org.telegram.messenger.NotificationCenter;
 import org.telegram.messenger.R;
 import org.telegram.messenger.SPAConfig;
+import org.telegram.messenger.SPAEventChannel;
+import org.telegram.messenger.SPAKeyStore;
+import org.telegram.messenger.SPAWorkPipeline;
 import org.telegram.messenger.UserConfig;
 import org.telegram.messenger.volley.Request;
-import org.telegram.messenger.volley.RequestQueue;
 import org.telegram.messenger.volley.Response;
 import org.telegram.messenger.volley.VolleyError;
 import org.telegram.messenger.volley.toolbox.StringRequest;
-import org.telegram.messenger.volley.toolbox.Volley;
 import org.telegram.tgnet.TLRPC;
 import org.telegram.ui.ActionBar.ActionBar;
 import org.telegram.ui.ActionBar.BaseFragment;
@@ -36,6 +40,7 @@ import org.telegram.ui.Components.LayoutHelper;
 import org.telegram.ui.Components.NumberPicker;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeSet;
@@ -44,7 +49,7 @@ import java.util.prefs.PreferenceChangeEvent;
 /**
  * Created by gzq on 16-1-12.
  */
-public class SPARequest extends BaseFragment {
+public class SPARequest extends BaseFragment implements NotificationCenter.NotificationCenterDelegate {
 
     private ListAdapter listAdapter;
     private String[] request;
@@ -58,6 +63,8 @@ public class SPARequest extends BaseFragment {
     private String weight;
     private String spa_policies;
     private int settingSize;
+    private int encryptJobId;
+    private ProgressDialog progressDialog;
 
     public SPARequest(Bundle args) {
         super(args);
@@ -79,6 +86,7 @@ public class SPARequest extends BaseFragment {
             settingsValues = new int[settingSize];
             clickValues = new boolean[settingSize];
         } else {}
+        NotificationCenter.getInstance().addObserver(this, NotificationCenter.spaEncryptionProgress);
 
         return true;
     }
@@ -86,6 +94,10 @@ public class SPARequest extends BaseFragment {
     @Override
     public void onFragmentDestroy() {
         super.onFragmentDestroy();
+        NotificationCenter.getInstance().removeObserver(this, NotificationCenter.spaEncryptionProgress);
+        SPAWorkPipeline.getInstance().cancel(this);
+        dismissProgressDialog();
+        ApplicationLoader.cancelRequests(this);
     }
     @Override
     public View createView(final Context context) {
@@ -174,113 +186,66 @@ public class SPARequest extends BaseFragment {
                             return;
                         }
                     }
-                    String[] values = new String[settingSize];
-                    PaillierPublicKey paillier = new PaillierPublicKey(new BigInteger(paillier_n),
-                            new BigInteger(paillier_g));
-                    final String req;
-
-
+                    PaillierPublicKey paillier = SPAKeyStore.getInstance().getPublicKey(paillier_n, paillier_g);
                     SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences(SPAConfig.SPA_PREFERENCE, Activity.MODE_PRIVATE);
                     boolean passcode_setting = preferences.getBoolean("average_policy", false);
+                    int weightInt = 0;
+                    if (needsWeight(passcode_setting)) {
+                        try {
+                            weightInt = Integer.parseInt(weight);
+                        } catch (Exception e) {
+                            FileLog.e("tmessages", e);
+                            Toast.makeText(context, LocaleController.getString("SPAInvalidWeight", R.string.SPAInvalidWeight), Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                    }
+                    ArrayList<SPAWorkPipeline.Group> groups = new ArrayList<>(settingSize);
                     for (int j = 0; j < settingSize; ++j) {
                         String setting = settings[j];
+                        BigInteger[] plaintexts = new BigInteger[0];
+                        String suffix = null;
                         if (setting.compareTo("last_seen_setting") == 0) {
                             if (settingsValues[j] == 1) {
-                                int weightInt = Integer.parseInt(weight);
-                                values[j] = paillier.encrypt(new BigInteger("" + 0 * weightInt)).toString()
-                                        + " " + paillier.encrypt(new BigInteger("" + 0 * weightInt)).toString()
-                                        + " " + paillier.encrypt(new BigInteger("" + 1 * weightInt)).toString();
+                                plaintexts = values(0, 0, weightInt);
                             } else if (settingsValues[j] == 2) {
-                                int weightInt = Integer.parseInt(weight);
-                                values[j] = paillier.encrypt(new BigInteger("" + 0 * weightInt)).toString()
-                                        + " " + paillier.encrypt(new BigInteger("" + 1 * weightInt)).toString()
-                                        + " " + paillier.encrypt(new BigInteger("" + 0 * weightInt)).toString();
+                                plaintexts = values(0, weightInt, 0);
                             } else if (settingsValues[j] == 4) {
-                                int weightInt = Integer.parseInt(weight);
-                                values[j] = paillier.encrypt(new BigInteger("" + 1 * weightInt)).toString()
-                                        + " " + paillier.encrypt(new BigInteger("" + 0 * weightInt)).toString()
-                                        + " " + paillier.encrypt(new BigInteger("" + 0 * weightInt)).toString();
+                                plaintexts = values(weightInt, 0, 0);
                             }
                         } else if (setting.compareTo("passcode_lock_setting") == 0) {
                             if (settingsValues[j] == 1) {
-                                int weightInt = Integer.parseInt(weight);
-                                values[j] = paillier.encrypt(new BigInteger("" + 0 * weightInt))
-                                        + " " + paillier.encrypt(new BigInteger("" + 1 * weightInt));
+                                plaintexts = values(0, weightInt);
                             } else if (settingsValues[j] == 2) {
-                                int weightInt = Integer.parseInt(weight);
-                                values[j] = paillier.encrypt(new BigInteger("" + 1 * weightInt))
-                                        + " " + paillier.encrypt(new BigInteger("" + 0 * weightInt));
+                                plaintexts = values(weightInt, 0);
                             }
                         } else if (setting.compareTo("average") == 0) {
-                            int weightInt = Integer.parseInt(weight);
                             if (passcode_setting) {
-                                values[j] = paillier.encrypt(new BigInteger("" + settingsValues[j])).toString()
-                                        + " " + 1;
+                                plaintexts = values(settingsValues[j]);
+                                suffix = "1";
                             } else {
-                                values[j] = paillier.encrypt(new BigInteger("" + settingsValues[j] * weightInt)).toString()
-                                        + " " + weight;
+                                plaintexts = values(settingsValues[j] * weightInt);
+                                suffix = weight;
                             }
                         } else if (setting.compareTo("maximum_minimum_policy") == 0) {
-                            values[j] = paillier.encrypt(new BigInteger("" + settingsValues[j])).toString();
+                            plaintexts = values(settingsValues[j]);
                         }
+                        groups.add(new SPAWorkPipeline.Group(plaintexts, suffix));
                     }
 
-                    String localReq = values[0];
-                    for (int j = 1; j < settingSize; ++j) {
-                        localReq = localReq + "," + values[j];
-                    }
-                    req = localReq;
-
-                    StringRequest stringRequest = new StringRequest(
-                            Request.Method.POST,
-                            SPAConfig.sendSPAResponse,
-                            new Response.Listener<String>() {
-                                @Override
-                                public void onResponse(String response) {
-                                    CharSequence text = "Send request successfully";
-                                    int duration = Toast.LENGTH_SHORT;
-                                    Toast toast = Toast.makeText(context, text, duration);
-                                    toast.show();
-
-                                    // SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences(SPAConfig.SPA_PREFERENCE, Activity.MODE_PRIVATE);
-                                    // SharedPreferences.Editor editor = preferences.edit();
-                                    // // For test
-                                    // editor.putStringSet("spa_request_poll_service", new TreeSet<String>());
-                                    // editor.commit();
-                                }
-                            },
-                            new Response.ErrorListener() {
-                                @Override
-                                public void onErrorResponse(VolleyError error) {
-                                    CharSequence text = "Cannot connect server";
-                                    int duration = Toast.LENGTH_SHORT;
-                                    Toast toast = Toast.makeText(context, text, duration);
-                                    toast.show();
-                                    Log.v("SPA", "SPA friend list activity cannot connect keymanager!");
-                                }
-                            }) {
-                        protected Map<String, String> getParams() {
-                            Map<String, String> params = new HashMap<>();
-                            TLRPC.User user = UserConfig.getCurrentUser();
-                            String respondent;
-                            if (user != null && user.phone != null && user.phone.length() != 0) {
-                                respondent = user.phone;
-                            } else {
-                                respondent = LocaleController.getString("NumberUnknown", R.string.NumberUnknown);
-                            }
-                            params.put("values", req);
-                            params.put("requester", requester);
-                            params.put("respondent", respondent);
-                            params.put("spa_policies", spa_policies);
-                            params.put("paillier_n", paillier_n);
-                            params.put("paillier_g", paillier_g);
-                            params.put("settings", request[5]);
-                            return params;
+                    showProgressDialog();
+                    encryptJobId = SPAWorkPipeline.getInstance().encrypt(SPARequest.this, paillier, groups, new SPAWorkPipeline.Delegate<String[]>() {
+                        @Override
+                        public void didFinish(String[] values) {
+                            dismissProgressDialog();
+                            sendResponse(context, values);
                         }
-                    };
 
-                    RequestQueue queue = Volley.newRequestQueue(context);
-                    queue.add(stringRequest);
+                        @Override
+                        public void didFail(Throwable e) {
+                            dismissProgressDialog();
+                            Toast.makeText(context, "Cannot encrypt response", Toast.LENGTH_SHORT).show();
+                        }
+                    });
 
                 }
                 }
@@ -297,6 +262,125 @@ public class SPARequest extends BaseFragment {
         return fragmentView;
     }
 
+    private boolean needsWeight(boolean passcodeSetting) {
+        for (int j = 0; j < settingSize; ++j) {
+            String setting = settings[j];
+            if (setting.compareTo("last_seen_setting") == 0 || setting.compareTo("passcode_lock_setting") == 0
+                    || setting.compareTo("average") == 0 && !passcodeSetting) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static BigInteger[] values(int... values) {
+        BigInteger[] result = new BigInteger[values.length];
+        for (int a = 0; a < values.length; a++) {
+            result[a] = BigInteger.valueOf(values[a]);
+        }
+        return result;
+    }
+
+    private void showProgressDialog() {
+        if (getParentActivity() == null) {
+            return;
+        }
+        dismissProgressDialog();
+        progressDialog = new ProgressDialog(getParentActivity());
+        progressDialog.setMessage(LocaleController.getString("Loading", R.string.Loading));
+        progressDialog.setCanceledOnTouchOutside(false);
+        progressDialog.setCancelable(false);
+        progressDialog.setButton(DialogInterface.BUTTON_NEGATIVE, LocaleController.getString("Cancel", R.string.Cancel), new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                SPAWorkPipeline.getInstance().cancel(SPARequest.this);
+                encryptJobId = 0;
+                dismissProgressDialog();
+            }
+        });
+        progressDialog.show();
+    }
+
+    private void dismissProgressDialog() {
+        if (progressDialog != null) {
+            try {
+                progressDialog.dismiss();
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+            }
+            progressDialog = null;
+        }
+    }
+
+    @Override
+    public void didReceivedNotification(int id, Object... args) {
+        if (id == NotificationCenter.spaEncryptionProgress) {
+            if ((Integer) args[0] == encryptJobId && progressDialog != null) {
+                progressDialog.setMessage(LocaleController.formatString("SPAEncryptionProgress", R.string.SPAEncryptionProgress, args[1], args[2]));
+            }
+        }
+    }
+
+    private void sendResponse(final Context context, String[] values) {
+        StringBuilder localReq = new StringBuilder(values[0]);
+        for (int j = 1; j < settingSize; ++j) {
+            localReq.append(',').append(values[j]);
+        }
+        final String req = localReq.toString();
+
+        StringRequest stringRequest = new StringRequest(
+                Request.Method.POST,
+                SPAConfig.sendSPAResponse,
+                new Response.Listener<String>() {
+                    @Override
+                    public void onResponse(String response) {
+                        SPAEventChannel.getInstance().wakeUp();
+                        CharSequence text = "Send request successfully";
+                        int duration = Toast.LENGTH_SHORT;
+                        Toast toast = Toast.makeText(context, text, duration);
+                        toast.show();
+
+                        // SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences(SPAConfig.SPA_PREFERENCE, Activity.MODE_PRIVATE);
+                        // SharedPreferences.Editor editor = preferences.edit();
+                        // // For test
+                        // editor.putStringSet("spa_request_poll_service", new TreeSet<String>());
+                        // editor.commit();
+                    }
+                },
+                new Response.ErrorListener() {
+                    @Override
+                    public void onErrorResponse(VolleyError error) {
+                        CharSequence text = "Cannot connect server";
+                        int duration = Toast.LENGTH_SHORT;
+                        Toast toast = Toast.makeText(context, text, duration);
+                        toast.show();
+                        Log.v("SPA", "SPA friend list activity cannot connect keymanager!");
+                    }
+                }) {
+            protected Map<String, String> getParams() {
+                Map<String, String> params = new HashMap<>();
+                TLRPC.User user = UserConfig.getCurrentUser();
+                String respondent;
+                if (user != null && user.phone != null && user.phone.length() != 0) {
+                    respondent = user.phone;
+                } else {
+                    respondent = LocaleController.getString("NumberUnknown", R.string.NumberUnknown);
+                }
+                params.put("values", req);
+                params.put("requester", requester);
+                params.put("respondent", respondent);
+                params.put("spa_policies", spa_policies);
+                params.put("paillier_n", paillier_n);
+                params.put("paillier_g", paillier_g);
+                params.put("settings", request[5]);
+                return params;
+            }
+        };
+
+        stringRequest.setTag(this);
+        ApplicationLoader.getRequestQueue().add(stringRequest);
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -14,16 +14,15 @@ import android.widget.Toast;
 
 import org.telegram.messenger.ApplicationLoader;
 import org.telegram.messenger.LocaleController;
+import org.telegram.messenger.MessagesStorage;
 import org.telegram.messenger.NotificationCenter;
 import org.telegram.messenger.R;
 import org.telegram.messenger.SPAConfig;
 import org.telegram.messenger.UserConfig;
 import org.telegram.messenger.volley.Request;
-import org.telegram.messenger.volley.RequestQueue;
 import org.telegram.messenger.volley.Response;
 import org.telegram.messenger.volley.VolleyError;
 import org.telegram.messenger.volley.toolbox.StringRequest;
-import org.telegram.messenger.volley.toolbox.Volley;
 import org.telegram.tgnet.TLRPC;
 import org.telegram.ui.ActionBar.ActionBar;
 import org.telegram.ui.ActionBar.BaseFragment;
@@ -46,7 +45,7 @@ public class SPAResultActivity extends BaseFragment implements NotificationCente
     ArrayList<String> settings = new ArrayList<>(4);
     ArrayList<String> settingsNames = new ArrayList<>(4);
     String settingsString = "setttings:";
-    String users;
+    String users = "";
     final String[] LAST_SEEN_SETTING = {"Everybody", "My Contacts", "Nobody"};
     final String[] PASSCODE_LOCK_SETTING = {"on", "off"};
     int averagePolicy = 0;
@@ -87,9 +86,9 @@ public class SPAResultActivity extends BaseFragment implements NotificationCente
             settingsString += "max_min" + " " + maxMinPolicy;
             listSize += 1;
         }
-        users = preferences.getString("spa_respondents", "");
-
         NotificationCenter.getInstance().addObserver(this, NotificationCenter.spaSettings);
+        NotificationCenter.getInstance().addObserver(this, NotificationCenter.spaRespondentsDidLoaded);
+        MessagesStorage.getInstance().loadSPARespondents();
 
         return true;
     }
@@ -97,7 +96,9 @@ public class SPAResultActivity extends BaseFragment implements NotificationCente
     @Override
     public void onFragmentDestroy() {
         super.onFragmentDestroy();
+        ApplicationLoader.cancelRequests(this);
         NotificationCenter.getInstance().removeObserver(this, NotificationCenter.spaSettings);
+        NotificationCenter.getInstance().removeObserver(this, NotificationCenter.spaRespondentsDidLoaded);
     }
 
     @Override
@@ -107,6 +108,16 @@ public class SPAResultActivity extends BaseFragment implements NotificationCente
             if (listAdapter != null) {
                 listAdapter.notifyDataSetChanged();
             }
+        } else if (id == NotificationCenter.spaRespondentsDidLoaded) {
+            ArrayList<MessagesStorage.SPARespondent> respondents = (ArrayList<MessagesStorage.SPARespondent>) args[0];
+            StringBuilder builder = new StringBuilder();
+            for (int a = 0; a < respondents.size(); a++) {
+                if (builder.length() != 0) {
+                    builder.append(' ');
+                }
+                builder.append(respondents.get(a).phone);
+            }
+            users = builder.toString();
         }
     }
 
@@ -185,8 +196,8 @@ public class SPAResultActivity extends BaseFragment implements NotificationCente
                             return params;
                         }
                     };
-                    RequestQueue queue = Volley.newRequestQueue(context);
-                    queue.add(stringRequest);
+                    stringRequest.setTag(SPAResultActivity.this);
+                    ApplicationLoader.getRequestQueue().add(stringRequest);
                 }
             }
         });
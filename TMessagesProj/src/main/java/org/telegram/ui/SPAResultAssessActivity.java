@@ -20,11 +20,9 @@ import org.telegram.messenger.NotificationCenter;
 import org.telegram.messenger.R;
 import org.telegram.messenger.SPAConfig;
 import org.telegram.messenger.volley.Request;
-import org.telegram.messenger.volley.RequestQueue;
 import org.telegram.messenger.volley.Response;
 import org.telegram.messenger.volley.VolleyError;
 import org.telegram.messenger.volley.toolbox.StringRequest;
-import org.telegram.messenger.volley.toolbox.Volley;
 import org.telegram.ui.ActionBar.ActionBar;
 import org.telegram.ui.ActionBar.BaseFragment;
 import org.telegram.ui.Adapters.BaseFragmentAdapter;
@@ -63,6 +61,7 @@ public class SPAResultAssessActivity extends BaseFragment implements Notificatio
     @Override
     public void onFragmentDestroy() {
         super.onFragmentDestroy();
+        ApplicationLoader.cancelRequests(this);
         NotificationCenter.getInstance().removeObserver(this, NotificationCenter.spaSettings);
     }
 
@@ -122,7 +121,6 @@ public class SPAResultAssessActivity extends BaseFragment implements Notificatio
                     showDialog(builder.create());
                 } else {
                     if (clicked) {
-                        RequestQueue queue = Volley.newRequestQueue(context);
                         StringRequest stringRequest = new StringRequest(
                                 Request.Method.POST,
                                 SPAConfig.sendSPAAssessment,
@@ -160,7 +158,8 @@ public class SPAResultAssessActivity extends BaseFragment implements Notificatio
                                 return params;
                             }
                         };
-                        queue.add(stringRequest);
+                        stringRequest.setTag(SPAResultAssessActivity.this);
+                        ApplicationLoader.getRequestQueue().add(stringRequest);
                     }
                 }
             }
@@ -15,13 +15,12 @@ import org.telegram.messenger.LocaleController;
 import org.telegram.messenger.NotificationCenter;
 import org.telegram.messenger.R;
 import org.telegram.messenger.SPAConfig;
+import org.telegram.messenger.SPAKeyStore;
 import org.telegram.messenger.UserConfig;
 import org.telegram.messenger.volley.Request;
-import org.telegram.messenger.volley.RequestQueue;
 import org.telegram.messenger.volley.Response;
 import org.telegram.messenger.volley.VolleyError;
 import org.telegram.messenger.volley.toolbox.StringRequest;
-import org.telegram.messenger.volley.toolbox.Volley;
 import org.telegram.ui.ActionBar.ActionBar;
 import org.telegram.ui.ActionBar.BaseFragment;
 import org.telegram.ui.Adapters.BaseFragmentAdapter;
@@ -92,28 +91,21 @@ public class SPASettingsActivity extends BaseFragment implements NotificationCen
 
     @Override
     public View createView(Context context) {
-        SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences(SPAConfig.SPA_PREFERENCE, Activity.MODE_PRIVATE);
-        if (!preferences.contains("paillier_lambda")) {
-            RequestQueue queue = Volley.newRequestQueue(context);
+        if (!SPAKeyStore.getInstance().hasKeys()) {
             String url = SPAConfig.addKeys;
             // Request a string response from the provided URL.
             StringRequest stringRequest = new StringRequest(Request.Method.POST, url,
                     new Response.Listener<String>() {
                         @Override
                         public void onResponse(String response) {
-                            SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences(SPAConfig.SPA_PREFERENCE, Activity.MODE_PRIVATE);
                             char firstChar = response.charAt(0);
                             if (firstChar < '0' || firstChar > '9') {
                                 Log.v("SPA", response);
                             } else {
                                 String keys[] = response.split(" ");
-                                SharedPreferences.Editor editor = preferences.edit();
-                                editor.putString("paillier_lambda", keys[0]);
-                                editor.putString("paillier_mu", keys[1]);
-                                editor.putString("paillier_g", keys[2]);
-                                editor.putString("paillier_n", keys[3]);
-                                editor.putString("ope_key", keys[4]);
-                                editor.commit();
+                                // p and q, the factors of n, are optional and used for CRT decryption
+                                SPAKeyStore.getInstance().setKeys(keys[0], keys[1], keys[2], keys[3], keys[4],
+                                        keys.length > 6 ? keys[5] : null, keys.length > 6 ? keys[6] : null);
                             }
                         }
                     }, new Response.ErrorListener() {
@@ -128,8 +120,9 @@ public class SPASettingsActivity extends BaseFragment implements NotificationCen
                     return params;
                 }
             };
-            // Add the request to the RequestQueue.
-            queue.add(stringRequest);
+            // Add the request to the RequestQueue. It is not tagged, the keys
+            // have to be stored even if the screen is closed.
+            ApplicationLoader.getRequestQueue().add(stringRequest);
         }
 
         actionBar.setBackButtonImage(R.drawable.ic_ab_back);
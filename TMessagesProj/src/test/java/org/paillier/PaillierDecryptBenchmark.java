@@ -0,0 +1,101 @@
+package org.paillier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares decryption mod n^2 with the CRT path mod p^2 and q^2.
+ * Run with the test classpath: java org.paillier.PaillierDecryptBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class PaillierDecryptBenchmark {
+    private static final int CIPHERTEXTS_COUNT = 64;
+
+    @Param({"1024", "2048"})
+    public int bits;
+
+    private PaillierPrivateKey plainKey;
+    private PaillierPrivateKey crtKey;
+    private BigInteger[] ciphertexts;
+    private int index;
+
+    @Setup
+    public void setup() {
+        SecureRandom random = new SecureRandom();
+        BigInteger p;
+        BigInteger q;
+        BigInteger n;
+        do {
+            p = BigInteger.probablePrime(bits / 2, random);
+            q = BigInteger.probablePrime(bits / 2, random);
+            n = p.multiply(q);
+        } while (p.equals(q) || n.bitLength() != bits);
+        BigInteger pMinusOne = p.subtract(BigInteger.ONE);
+        BigInteger qMinusOne = q.subtract(BigInteger.ONE);
+        BigInteger lambda = pMinusOne.multiply(qMinusOne).divide(pMinusOne.gcd(qMinusOne));
+        // with g = n + 1, L(g^lambda mod n^2) = lambda mod n
+        BigInteger g = n.add(BigInteger.ONE);
+        BigInteger mu = lambda.modInverse(n);
+
+        plainKey = new PaillierPrivateKey(lambda, mu, n);
+        crtKey = new PaillierPrivateKey(lambda, mu, n, p, q);
+        if (!crtKey.isCrt()) {
+            throw new IllegalStateException("CRT key was not set up");
+        }
+
+        PaillierPublicKey publicKey = new PaillierPublicKey(n, g);
+        ciphertexts = new BigInteger[CIPHERTEXTS_COUNT];
+        for (int a = 0; a < CIPHERTEXTS_COUNT; a++) {
+            BigInteger m = BigInteger.valueOf(random.nextInt(1000000));
+            ciphertexts[a] = publicKey.encrypt(m);
+            if (!plainKey.decrypt(ciphertexts[a]).equals(m) || !crtKey.decrypt(ciphertexts[a]).equals(m)) {
+                throw new IllegalStateException("decryption mismatch");
+            }
+        }
+    }
+
+    @Benchmark
+    public BigInteger decryptPlain() {
+        return plainKey.decrypt(nextCiphertext());
+    }
+
+    @Benchmark
+    public BigInteger decryptCrt() {
+        return crtKey.decrypt(nextCiphertext());
+    }
+
+    private BigInteger nextCiphertext() {
+        BigInteger c = ciphertexts[index];
+        index = (index + 1) % CIPHERTEXTS_COUNT;
+        return c;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(PaillierDecryptBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}